@@ -0,0 +1,294 @@
+/*
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDrawLib
+
+	LDrawLib is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDrawLib is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDrawLib.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+
+package bricksnspace.ldrawlib;
+
+import java.io.IOException;
+import java.io.LineNumberReader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+
+
+/**
+ * Line reader over a whole file in a byte buffer, as returned by {@link MappedZip}
+ * <p>
+ * Lines are split directly on bytes, ASCII lines are converted to String
+ * without a charset decoder. A direct buffer (i.e. a stored entry in a mapped zip)
+ * is copied to an array in a single step, because single byte reads from direct
+ * buffers are slow. Other lines are decoded with platform charset,
+ * as {@link java.io.InputStreamReader} does. Only arrays taken from {@link MappedZip}
+ * pool by reader are given back when reader is closed, caller buffer is never released.
+ *
+ * @author Mario Pascucci
+ *
+ */
+public class ByteBufferLineReader extends LineNumberReader {
+
+	private ByteBuffer buf;
+	// buffer array is given back to pool on close
+	private boolean pooled;
+	// buffer contents, from pos to end
+	private byte[] data;
+	private int pos;
+	private int end;
+	private int line = 0;
+	private char[] chars = new char[256];
+	private CharsetDecoder decoder = null;
+	// second half of a surrogate pair returned by read() one char at a time
+	private int pending = -1;
+
+
+
+	/**
+	 * Reader over a buffer owned by caller, buffer isn't released on close
+	 * @param b file contents, from position to limit
+	 */
+	public ByteBufferLineReader(ByteBuffer b) {
+
+		this(b, false);
+	}
+
+
+
+	/**
+	 * @param b file contents, from position to limit
+	 * @param owned true if reader takes ownership of buffer, i.e. a buffer from
+	 * {@link MappedZip#getEntry(String)} that must be given back on close
+	 */
+	ByteBufferLineReader(ByteBuffer b, boolean owned) {
+
+		// base reader isn't used
+		super(new StringReader(""));
+		if (b.hasArray()) {
+			// caller buffer position isn't changed
+			buf = b.duplicate();
+			pooled = owned;
+		}
+		else {
+			byte[] a = MappedZip.acquire(b.remaining());
+			b.duplicate().get(a, 0, b.remaining());
+			buf = ByteBuffer.wrap(a, 0, b.remaining()).slice();
+			pooled = true;
+		}
+		data = buf.array();
+		pos = buf.arrayOffset() + buf.position();
+		end = buf.arrayOffset() + buf.limit();
+	}
+
+
+
+	/**
+	 * Updates buffer position after lines read
+	 */
+	private void sync() {
+
+		buf.position(pos - buf.arrayOffset());
+	}
+
+
+
+	private void ensureOpen() throws IOException {
+
+		if (buf == null) {
+			throw new IOException("[ByteBufferLineReader] Reader closed");
+		}
+	}
+
+
+
+	private CharsetDecoder getDecoder() {
+
+		if (decoder == null) {
+			decoder = Charset.defaultCharset().newDecoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		}
+		return decoder.reset();
+	}
+
+
+
+	@Override
+	public String readLine() throws IOException {
+
+		ensureOpen();
+		int start = pos;
+		String head = "";
+		if (pending >= 0) {
+			head = String.valueOf((char) pending);
+			pending = -1;
+		}
+		if (start >= end) {
+			return head.length() > 0 ? head : null;
+		}
+		int i = start;
+		boolean ascii = true;
+		while (i < end) {
+			byte b = data[i];
+			if (b == '\n' || b == '\r') {
+				break;
+			}
+			if (b < 0) {
+				ascii = false;
+			}
+			i++;
+		}
+		int len = i - start;
+		// skip line terminator, "\r\n" is a single terminator
+		int next = i;
+		if (next < end) {
+			if (data[next] == '\r' && next+1 < end && data[next+1] == '\n') {
+				next++;
+			}
+			next++;
+		}
+		String l;
+		if (ascii) {
+			if (chars.length < len) {
+				chars = new char[len*2];
+			}
+			for (int j=0;j<len;j++) {
+				chars[j] = (char) data[start+j];
+			}
+			l = new String(chars, 0, len);
+		}
+		else {
+			l = getDecoder().decode(ByteBuffer.wrap(data, start, len)).toString();
+		}
+		pos = next;
+		line++;
+		return head.length() > 0 ? head+l : l;
+	}
+
+
+
+	@Override
+	public int read() throws IOException {
+
+		char[] c = new char[1];
+		return read(c, 0, 1) < 0 ? -1 : c[0];
+	}
+
+
+
+	@Override
+	public int read(char[] cbuf, int off, int len) throws IOException {
+
+		ensureOpen();
+		if (len == 0) {
+			return 0;
+		}
+		if (pending >= 0) {
+			cbuf[off] = (char) pending;
+			pending = -1;
+			return 1;
+		}
+		sync();
+		if (!buf.hasRemaining()) {
+			return -1;
+		}
+		CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+		CharsetDecoder dec = getDecoder();
+		dec.decode(buf, out, true);
+		if (out.position() == off) {
+			// a surrogate pair doesn't fit in requested length
+			char[] c = new char[2];
+			CharBuffer o = CharBuffer.wrap(c);
+			dec.reset().decode(buf, o, true);
+			cbuf[off] = c[0];
+			if (o.position() > 1) {
+				pending = c[1];
+			}
+			out.position(off+1);
+		}
+		pos = buf.arrayOffset() + buf.position();
+		int n = out.position() - off;
+		for (int j=off;j<off+n;j++) {
+			if (cbuf[j] == '\n') {
+				line++;
+			}
+		}
+		return n;
+	}
+
+
+
+	@Override
+	public boolean ready() throws IOException {
+
+		ensureOpen();
+		return pending >= 0 || pos < end;
+	}
+
+
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+
+
+	@Override
+	public void mark(int readAheadLimit) throws IOException {
+		throw new IOException("[ByteBufferLineReader] Mark not supported");
+	}
+
+
+
+	@Override
+	public void reset() throws IOException {
+		throw new IOException("[ByteBufferLineReader] Reset not supported");
+	}
+
+
+
+	@Override
+	public int getLineNumber() {
+		return line;
+	}
+
+
+
+	@Override
+	public void setLineNumber(int lineNumber) {
+		line = lineNumber;
+	}
+
+
+
+	@Override
+	public void close() {
+
+		if (buf != null) {
+			if (pooled) {
+				MappedZip.release(buf);
+			}
+			buf = null;
+			data = null;
+		}
+	}
+
+}
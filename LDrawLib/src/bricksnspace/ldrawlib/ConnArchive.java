@@ -0,0 +1,436 @@
+/*
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDrawLib
+
+	LDrawLib is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDrawLib is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDrawLib.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+
+package bricksnspace.ldrawlib;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.xml.stream.XMLStreamException;
+
+import bricksnspace.j3dgeom.Point3D;
+
+
+
+/**
+ * Binary connection archive, a single memory mapped file with connections for all parts
+ * <p>
+ * File layout (big endian):
+ * <pre>
+ * header:  int magic, int version, int type count, int part count, int names length
+ * types:   for every type: short name length, name bytes (UTF-8)
+ * index:   for every part, sorted by name bytes: int name offset, int name length,
+ *          int first record, int record count
+ * names:   part names (UTF-8), offsets are from names start
+ * records: for every connection point: int type, float x1, y1, z1, x2, y2, z2
+ * </pre>
+ * Part names are connection file names without extension, as in {@link ConnectionPoint#getPartMainName(String)}.
+ * Connection types are stored by name, so archive doesn't depend on definition order.
+ * Archive is read only and can be used by more threads.
+ *
+ * @author Mario Pascucci
+ *
+ */
+public class ConnArchive {
+
+	private static final int MAGIC = 0x4c44434e;	// "LDCN"
+	private static final int VERSION = 1;
+	private static final int HEADERSIZE = 20;
+	private static final int INDEXSIZE = 16;
+	private static final int RECORDSIZE = 28;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final ByteBuffer data;
+	private final ConnectionTypes[] types;
+	private final int parts;
+	private final int indexStart;
+	private final int namesStart;
+	private final int recordsStart;
+
+
+
+	/**
+	 * Opens a binary connection archive
+	 * @param f archive file
+	 * @throws IOException if file can't be read or isn't a connection archive
+	 */
+	public ConnArchive(File f) throws IOException {
+
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			FileChannel fc = raf.getChannel();
+			// mapping stays valid after channel is closed
+			data = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+		}
+		finally {
+			raf.close();
+		}
+		if (data.limit() < HEADERSIZE || data.getInt(0) != MAGIC) {
+			throw new IOException("[ConnArchive] Not a connection archive: "+f);
+		}
+		if (data.getInt(4) != VERSION) {
+			throw new IOException("[ConnArchive] Unsupported archive version: "+data.getInt(4));
+		}
+		// a truncated or corrupt archive must fail here, not when parts are read
+		int ntypes = data.getInt(8);
+		parts = data.getInt(12);
+		int namesLen = data.getInt(16);
+		if (ntypes < 0 || parts < 0 || namesLen < 0) {
+			throw corrupt(f, "invalid header");
+		}
+		types = new ConnectionTypes[ntypes];
+		int pos = HEADERSIZE;
+		for (int i=0;i<ntypes;i++) {
+			if (pos+2 > data.limit()) {
+				throw corrupt(f, "truncated type table");
+			}
+			int len = data.getShort(pos) & 0xffff;
+			if (pos+2+len > data.limit()) {
+				throw corrupt(f, "truncated type table");
+			}
+			String name = getString(pos+2, len);
+			types[i] = ConnectionTypes.getByName(name);
+			if (types[i] == null) {
+				Logger.getGlobal().warning("[ConnArchive] Unknown connection type: "+name);
+			}
+			pos += 2+len;
+		}
+		indexStart = pos;
+		long names = indexStart + (long) parts*INDEXSIZE;
+		long records = names + namesLen;
+		if (records > data.limit()) {
+			throw corrupt(f, "truncated index");
+		}
+		namesStart = (int) names;
+		recordsStart = (int) records;
+		long totalRecords = (data.limit() - records) / RECORDSIZE;
+		for (int e=0;e<parts;e++) {
+			int p = indexStart + e*INDEXSIZE;
+			long off = data.getInt(p);
+			long len = data.getInt(p+4);
+			long first = data.getInt(p+8);
+			long count = data.getInt(p+12);
+			if (off < 0 || len < 0 || off+len > namesLen || 
+					first < 0 || count < 0 || first+count > totalRecords) {
+				throw corrupt(f, "invalid index entry "+e);
+			}
+		}
+	}
+
+
+
+	private static IOException corrupt(File f, String msg) {
+
+		return new IOException("[ConnArchive] Corrupted connection archive ("+msg+"): "+f);
+	}
+
+
+
+	private String getString(int pos, int len) {
+
+		byte[] b = new byte[len];
+		for (int i=0;i<len;i++) {
+			b[i] = data.get(pos+i);
+		}
+		return new String(b, UTF8);
+	}
+
+
+
+	/**
+	 * Compares name of an index entry with a key, as unsigned bytes
+	 */
+	private int compare(int entry, byte[] key) {
+
+		int p = indexStart + entry*INDEXSIZE;
+		int off = namesStart + data.getInt(p);
+		int len = data.getInt(p+4);
+		int n = Math.min(len, key.length);
+		for (int i=0;i<n;i++) {
+			int c = (data.get(off+i) & 0xff) - (key[i] & 0xff);
+			if (c != 0) {
+				return c;
+			}
+		}
+		return len - key.length;
+	}
+
+
+
+	/**
+	 * Binary search in index
+	 * @return index entry or -1 if part isn't in archive
+	 */
+	private int find(String name) {
+
+		byte[] key = name.getBytes(UTF8);
+		int lo = 0;
+		int hi = parts-1;
+		while (lo <= hi) {
+			int mid = (lo+hi) >>> 1;
+			int c = compare(mid, key);
+			if (c < 0) {
+				lo = mid+1;
+			}
+			else if (c > 0) {
+				hi = mid-1;
+			}
+			else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+
+
+	/**
+	 * @param name connection file name, without extension
+	 * @return true if archive contains connections for part
+	 */
+	public boolean contains(String name) {
+
+		return find(name) >= 0;
+	}
+
+
+
+	/**
+	 * Reads connections for a part
+	 * @param name connection file name, without extension
+	 * @return connections in part local frame, or null if part isn't in archive
+	 */
+	public List<ConnectionPoint> getConnections(String name) {
+
+		int e = find(name);
+		if (e < 0) {
+			return null;
+		}
+		int p = indexStart + e*INDEXSIZE;
+		int first = data.getInt(p+8);
+		int count = data.getInt(p+12);
+		List<ConnectionPoint> l = new ArrayList<ConnectionPoint>(count);
+		int r = recordsStart + first*RECORDSIZE;
+		for (int i=0;i<count;i++,r+=RECORDSIZE) {
+			int ti = data.getInt(r);
+			// unknown type or invalid type index
+			ConnectionTypes t = ti >= 0 && ti < types.length ? types[ti] : null;
+			if (t == null) {
+				continue;
+			}
+			ConnectionPoint cp = ConnectionPoint.createCPoint(t.getId());
+			cp.setP1(new Point3D(data.getFloat(r+4), data.getFloat(r+8), data.getFloat(r+12)));
+			cp.setP2(new Point3D(data.getFloat(r+16), data.getFloat(r+20), data.getFloat(r+24)));
+			l.add(cp);
+		}
+		return l;
+	}
+
+
+
+	/**
+	 * @return number of parts in archive
+	 */
+	public int size() {
+
+		return parts;
+	}
+
+
+
+	/**
+	 * Writes a binary connection archive
+	 * @param connections connections for every part, by connection file name
+	 * @param f file to write
+	 * @throws IOException
+	 */
+	public static void write(Map<String,List<ConnectionPoint>> connections, File f) throws IOException {
+
+		// sort by name bytes, the order used by binary search
+		TreeMap<String,List<ConnectionPoint>> sorted = new TreeMap<String,List<ConnectionPoint>>(
+				new Comparator<String>() {
+					@Override
+					public int compare(String a, String b) {
+						byte[] ba = a.getBytes(UTF8);
+						byte[] bb = b.getBytes(UTF8);
+						int n = Math.min(ba.length, bb.length);
+						for (int i=0;i<n;i++) {
+							int c = (ba[i] & 0xff) - (bb[i] & 0xff);
+							if (c != 0) {
+								return c;
+							}
+						}
+						return ba.length - bb.length;
+					}
+				});
+		sorted.putAll(connections);
+		// connection types table
+		Map<ConnectionTypes,Integer> typeIndex = new HashMap<ConnectionTypes,Integer>();
+		List<ConnectionTypes> typeList = new ArrayList<ConnectionTypes>();
+		for (List<ConnectionPoint> l : sorted.values()) {
+			for (ConnectionPoint cp : l) {
+				if (cp.getType() == null) {
+					throw new IllegalArgumentException("[ConnArchive] Connection point without type: "+cp);
+				}
+				if (!typeIndex.containsKey(cp.getType())) {
+					typeIndex.put(cp.getType(), typeList.size());
+					typeList.add(cp.getType());
+				}
+			}
+		}
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(typeList.size());
+			out.writeInt(sorted.size());
+			int namesLength = 0;
+			for (String n : sorted.keySet()) {
+				namesLength += n.getBytes(UTF8).length;
+			}
+			out.writeInt(namesLength);
+			for (ConnectionTypes t : typeList) {
+				byte[] b = t.getName().getBytes(UTF8);
+				out.writeShort(b.length);
+				out.write(b);
+			}
+			int nameOffset = 0;
+			int record = 0;
+			List<byte[]> names = new ArrayList<byte[]>(sorted.size());
+			for (Map.Entry<String,List<ConnectionPoint>> e : sorted.entrySet()) {
+				byte[] b = e.getKey().getBytes(UTF8);
+				names.add(b);
+				out.writeInt(nameOffset);
+				out.writeInt(b.length);
+				out.writeInt(record);
+				out.writeInt(e.getValue().size());
+				nameOffset += b.length;
+				record += e.getValue().size();
+			}
+			for (byte[] b : names) {
+				out.write(b);
+			}
+			for (List<ConnectionPoint> l : sorted.values()) {
+				for (ConnectionPoint cp : l) {
+					out.writeInt(typeIndex.get(cp.getType()));
+					out.writeFloat(cp.getP1().x);
+					out.writeFloat(cp.getP1().y);
+					out.writeFloat(cp.getP1().z);
+					out.writeFloat(cp.getP2().x);
+					out.writeFloat(cp.getP2().y);
+					out.writeFloat(cp.getP2().z);
+				}
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+
+
+
+	private static void addCxml(Map<String,List<ConnectionPoint>> conns, String name, InputStream is) throws IOException {
+
+		try {
+			conns.put(name.substring(0, name.length()-ConnectionPoint.CONNEXT.length()),
+					ConnectionPoint.readFromFile(0, is));
+		} catch (XMLStreamException e) {
+			Logger.getGlobal().log(Level.SEVERE,"[ConnArchive] Error reading connection file: "+name,e);
+		}
+		finally {
+			is.close();
+		}
+	}
+
+
+
+	/**
+	 * Converts all cxml files in a connection zip archive to a binary archive
+	 * <p>
+	 * Connection types must be already initialized.
+	 * @param zip connection zip archive (ldrconn.zip)
+	 * @param f binary archive to write
+	 * @return number of parts converted
+	 * @throws IOException
+	 */
+	public static int convert(ZipFile zip, File f) throws IOException {
+
+		Map<String,List<ConnectionPoint>> conns = new HashMap<String,List<ConnectionPoint>>();
+		Enumeration<? extends ZipEntry> entries = zip.entries();
+		while (entries.hasMoreElements()) {
+			ZipEntry ze = entries.nextElement();
+			String name = ze.getName();
+			if (ze.isDirectory() || !name.startsWith(ConnectionPoint.ZIPFOLDER)
+					|| !name.endsWith(ConnectionPoint.CONNEXT)) {
+				continue;
+			}
+			addCxml(conns, name.substring(ConnectionPoint.ZIPFOLDER.length()), zip.getInputStream(ze));
+		}
+		write(conns, f);
+		return conns.size();
+	}
+
+
+
+	/**
+	 * Converts all cxml files in a connection folder to a binary archive
+	 * <p>
+	 * Connection types must be already initialized.
+	 * @param folder connection folder (conn/)
+	 * @param f binary archive to write
+	 * @return number of parts converted
+	 * @throws IOException
+	 */
+	public static int convert(File folder, File f) throws IOException {
+
+		Map<String,List<ConnectionPoint>> conns = new HashMap<String,List<ConnectionPoint>>();
+		File[] files = folder.listFiles();
+		if (files != null) {
+			for (File cf : files) {
+				if (cf.isFile() && cf.getName().endsWith(ConnectionPoint.CONNEXT)) {
+					addCxml(conns, cf.getName(), new FileInputStream(cf));
+				}
+			}
+		}
+		write(conns, f);
+		return conns.size();
+	}
+
+}
@@ -48,7 +48,7 @@ import bricksnspace.j3dgeom.Point3D;
  * @author Mario Pascucci
  *
  */
-public class ConnGrid {
+public class ConnGrid implements ConnSpatialIndex {
 
 	private static float tolerance = 10;
 	/** this is the unitary cube size of a single "box" of points */
@@ -124,7 +124,7 @@ public class ConnGrid {
 			if (isLeaf) {
 				points = new HashMap<Integer,List<ConnectionPoint>>();
 				for (ConnectionTypes ct:ConnectionTypes.listTypes()) {
-					points.put(ct.getId(), new ArrayList<ConnectionPoint>());
+					points.put(ct.getId(), new SwapRemoveList<ConnectionPoint>());
 				}
 
 			}
@@ -0,0 +1,493 @@
+/*
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDrawLib
+
+	LDrawLib is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDrawLib is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDrawLib.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+
+package bricksnspace.ldrawlib;
+
+
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import bricksnspace.j3dgeom.Point3D;
+
+
+/**
+ * Connections spatial index using a flat hashed grid
+ * <p/>
+ * Space is divided in cubic cells, every cell is identified by its three integer
+ * coordinates packed in a single long. Cells are stored in an open addressing
+ * hash table with long keys, so finding a cell is a single probe sequence, without
+ * boxing keys or walking a tree.
+ * <p/>
+ * Every cell keeps a list of points for every connection type, allocated only when
+ * first point of that type is added to cell.
+ * <p/>
+ * Cell coordinates are limited to 21 bits (signed), so indexed space is
+ * &plusmn;(2<sup>20</sup> &times; spacing) LDU on every axis.
+ *
+ * @author Mario Pascucci
+ *
+ */
+public class ConnHashGrid implements ConnSpatialIndex {
+
+	/** cell side size in LDU */
+	private static float spacing = 160f;
+	private static final int COORDBITS = 21;
+	private static final long COORDMASK = (1L << COORDBITS) - 1;
+	private static final int INITIALSIZE = 256;
+
+	private long[] keys = new long[INITIALSIZE];
+	private Cell[] cells = new Cell[INITIALSIZE];
+	private int mask = INITIALSIZE - 1;
+	private int size = 0;
+	/** bounds of occupied cells, in cell coordinates */
+	private int minX, minY, minZ, maxX, maxY, maxZ;
+	/** max ray length in LDU for ray queries, 0 = no limit */
+	private float maxRayLength = 0;
+
+
+
+	/**
+	 * A grid cell, with its points grouped by connection type
+	 */
+	static final class Cell {
+
+		final int x, y, z;
+		/** point lists indexed by connection type id, allocated on demand */
+		private List<ConnectionPoint>[] points = null;
+
+
+		Cell(int x, int y, int z) {
+
+			this.x = x;
+			this.y = y;
+			this.z = z;
+		}
+
+
+		/**
+		 * @param type connection type id
+		 * @return list of points of requested type, or null if cell has no point of that type
+		 */
+		List<ConnectionPoint> getPoints(int type) {
+
+			if (points == null || type >= points.length) {
+				return null;
+			}
+			return points[type];
+		}
+
+
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		void insertPoint(ConnectionPoint p) {
+
+			int type = p.getType().getId();
+			if (points == null) {
+				points = new List[Math.max(type+1, ConnectionTypes.listTypes().size()+1)];
+			}
+			else if (type >= points.length) {
+				List<ConnectionPoint>[] n = new List[type+1];
+				System.arraycopy(points, 0, n, 0, points.length);
+				points = n;
+			}
+			if (points[type] == null) {
+				points[type] = new SwapRemoveList<ConnectionPoint>(4);
+			}
+			points[type].add(p);
+		}
+
+
+		void deletePoint(ConnectionPoint p) {
+
+			List<ConnectionPoint> l = getPoints(p.getType().getId());
+			if (l != null) {
+				l.remove(p);
+			}
+		}
+
+
+		@Override
+		public String toString() {
+			return String.format("Cell [x=%d, y=%d, z=%d]", x, y, z);
+		}
+	}
+
+
+
+	public ConnHashGrid() {
+
+	}
+
+
+
+	public static float getSpacing() {
+		return spacing;
+	}
+
+
+
+	/**
+	 * Packs cell coordinates in a single key
+	 */
+	static long cellKey(int x, int y, int z) {
+
+		return ((x & COORDMASK) << (2*COORDBITS)) | ((y & COORDMASK) << COORDBITS) | (z & COORDMASK);
+	}
+
+
+
+	/**
+	 * Hash mixing for packed keys (from MurmurHash3 finalizer)
+	 */
+	private static int hash(long k) {
+
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return (int) k;
+	}
+
+
+
+	/**
+	 * Finds a cell by coordinates
+	 * @return cell or null if cell doesn't exists
+	 */
+	Cell findCell(int x, int y, int z) {
+
+		long k = cellKey(x, y, z);
+		int i = hash(k) & mask;
+		Cell c;
+		while ((c = cells[i]) != null) {
+			if (keys[i] == k) {
+				return c;
+			}
+			i = (i + 1) & mask;
+		}
+		return null;
+	}
+
+
+
+	/**
+	 * Finds a cell by coordinates, creating it if needed
+	 */
+	private Cell getCell(int x, int y, int z) {
+
+		long k = cellKey(x, y, z);
+		int i = hash(k) & mask;
+		Cell c;
+		while ((c = cells[i]) != null) {
+			if (keys[i] == k) {
+				return c;
+			}
+			i = (i + 1) & mask;
+		}
+		c = new Cell(x, y, z);
+		keys[i] = k;
+		cells[i] = c;
+		if (size == 0) {
+			minX = maxX = x;
+			minY = maxY = y;
+			minZ = maxZ = z;
+		}
+		else {
+			minX = Math.min(minX, x);
+			minY = Math.min(minY, y);
+			minZ = Math.min(minZ, z);
+			maxX = Math.max(maxX, x);
+			maxY = Math.max(maxY, y);
+			maxZ = Math.max(maxZ, z);
+		}
+		size++;
+		// max load factor 0.5
+		if (size * 2 > cells.length) {
+			resize();
+		}
+		return c;
+	}
+
+
+
+	private void resize() {
+
+		long[] oldKeys = keys;
+		Cell[] oldCells = cells;
+		keys = new long[oldKeys.length * 2];
+		cells = new Cell[oldCells.length * 2];
+		mask = cells.length - 1;
+		for (int j=0;j<oldCells.length;j++) {
+			if (oldCells[j] == null) {
+				continue;
+			}
+			int i = hash(oldKeys[j]) & mask;
+			while (cells[i] != null) {
+				i = (i + 1) & mask;
+			}
+			keys[i] = oldKeys[j];
+			cells[i] = oldCells[j];
+		}
+	}
+
+
+
+	static int cellCoord(float v) {
+
+		return (int) Math.floor(v / spacing);
+	}
+
+
+
+	public float getMaxRayLength() {
+		return maxRayLength;
+	}
+
+
+
+	/**
+	 * Limits ray length in ray queries
+	 * @param maxRayLength max distance from ray origin in LDU, 0 for no limit
+	 */
+	public void setMaxRayLength(float maxRayLength) {
+		if (maxRayLength < 0)
+			throw new IllegalArgumentException("[ConnHashGrid] Ray length can't be negative");
+		this.maxRayLength = maxRayLength;
+	}
+
+
+
+	/**
+	 * @return number of cells in grid
+	 */
+	public int getCellCount() {
+		return size;
+	}
+
+
+
+	@Override
+	public void insertPoint(ConnectionPoint p) {
+
+		Point3D p1 = p.getP1();
+		getCell(cellCoord(p1.x), cellCoord(p1.y), cellCoord(p1.z)).insertPoint(p);
+	}
+
+
+
+	@Override
+	public void removePoint(ConnectionPoint p) {
+
+		Point3D p1 = p.getP1();
+		Cell c = findCell(cellCoord(p1.x), cellCoord(p1.y), cellCoord(p1.z));
+		if (c != null) {
+			c.deletePoint(p);
+		}
+	}
+
+
+
+	/**
+	 * @return max distance from a point to occupied cells, 0 if grid is empty
+	 */
+	public float getMaxDistance(Point3D p) {
+
+		if (size == 0) {
+			return 0;
+		}
+		double dx = Math.max(Math.abs(p.x - minX*spacing), Math.abs((maxX+1)*spacing - p.x));
+		double dy = Math.max(Math.abs(p.y - minY*spacing), Math.abs((maxY+1)*spacing - p.y));
+		double dz = Math.max(Math.abs(p.z - minZ*spacing), Math.abs((maxZ+1)*spacing - p.z));
+		return (float) Math.sqrt(dx*dx + dy*dy + dz*dz);
+	}
+
+
+
+	/**
+	 * Intersects a ray with a box
+	 * (from http://gamedev.stackexchange.com/a/18459)
+	 * @return {tmin, tmax} or null if ray doesn't intersect box
+	 */
+	private static double[] rayBox(Point3D eye, double dfx, double dfy, double dfz,
+			double lbx, double lby, double lbz, double rtx, double rty, double rtz) {
+
+		double t1 = (lbx - eye.x)*dfx;
+		double t2 = (rtx - eye.x)*dfx;
+		double t3 = (lby - eye.y)*dfy;
+		double t4 = (rty - eye.y)*dfy;
+		double t5 = (lbz - eye.z)*dfz;
+		double t6 = (rtz - eye.z)*dfz;
+
+		double tmin = Math.max(Math.max(Math.min(t1, t2), Math.min(t3, t4)), Math.min(t5, t6));
+		double tmax = Math.min(Math.min(Math.max(t1, t2), Math.max(t3, t4)), Math.max(t5, t6));
+
+		// if tmin > tmax, ray doesn't intersect box
+		// if tmax < 0, ray (line) is intersecting box, but whole box is behind us
+		if (tmin > tmax || tmax < 0) {
+			return null;
+		}
+		return new double[] {tmin, tmax};
+	}
+
+
+
+	/**
+	 * Walks only cells crossed by ray, using a 3D-DDA voxel traversal 
+	 * (J. Amanatides, A. Woo, "A Fast Voxel Traversal Algorithm for Ray Tracing").
+	 * Ray is clipped to bounds of occupied cells and to max ray length, if any.
+	 * Neighbor cells are checked only where ray runs nearer than tolerance to cell border.
+	 */
+	@Override
+	public List<ConnectionPoint> selectByRay(int connType, Point3D eye, Point3D target) {
+
+		return selectByRay(connType, eye, target, ConnGrid.getTolerance());
+	}
+
+
+
+	/**
+	 * Selects connection points of a type in cells nearer than a tolerance to a ray
+	 * @param connType connection type id
+	 * @param eye ray origin
+	 * @param target a point on ray
+	 * @param tolerance distance from ray in LDU, can't be greater than cell size
+	 * @return candidate connection points, caller must check actual distance from ray
+	 */
+	public List<ConnectionPoint> selectByRay(int connType, Point3D eye, Point3D target, float tolerance) {
+
+		if (tolerance < 0 || tolerance > spacing)
+			throw new IllegalArgumentException("[ConnHashGrid] Ray tolerance must be between 0 and cell size");
+		List<ConnectionPoint> pt = new ArrayList<ConnectionPoint>();
+		if (size == 0) {
+			return pt;
+		}
+		Point3D dir = eye.vector(target).normalize();
+		double dfx = 1.0 / dir.x;
+		double dfy = 1.0 / dir.y;
+		double dfz = 1.0 / dir.z;
+		// clip ray to occupied bounds
+		double[] t = rayBox(eye, dfx, dfy, dfz,
+				minX*spacing - tolerance, minY*spacing - tolerance, minZ*spacing - tolerance, 
+				(maxX+1)*spacing + tolerance, (maxY+1)*spacing + tolerance, (maxZ+1)*spacing + tolerance);
+		if (t == null) {
+			return pt;
+		}
+		double tStart = Math.max(0, t[0]);
+		double tEnd = t[1];
+		if (maxRayLength > 0) {
+			tEnd = Math.min(tEnd, maxRayLength);
+		}
+		if (tStart > tEnd) {
+			return pt;
+		}
+		// starting cell
+		int cx = Math.min(maxX, Math.max(minX, cellCoord((float)(eye.x + dir.x*tStart))));
+		int cy = Math.min(maxY, Math.max(minY, cellCoord((float)(eye.y + dir.y*tStart))));
+		int cz = Math.min(maxZ, Math.max(minZ, cellCoord((float)(eye.z + dir.z*tStart))));
+		int stepX = dir.x > 0 ? 1 : (dir.x < 0 ? -1 : 0);
+		int stepY = dir.y > 0 ? 1 : (dir.y < 0 ? -1 : 0);
+		int stepZ = dir.z > 0 ? 1 : (dir.z < 0 ? -1 : 0);
+		double tDeltaX = stepX != 0 ? spacing * Math.abs(dfx) : Double.POSITIVE_INFINITY;
+		double tDeltaY = stepY != 0 ? spacing * Math.abs(dfy) : Double.POSITIVE_INFINITY;
+		double tDeltaZ = stepZ != 0 ? spacing * Math.abs(dfz) : Double.POSITIVE_INFINITY;
+		double tMaxX = stepX != 0 ? ((stepX > 0 ? cx+1 : cx)*spacing - eye.x)*dfx : Double.POSITIVE_INFINITY;
+		double tMaxY = stepY != 0 ? ((stepY > 0 ? cy+1 : cy)*spacing - eye.y)*dfy : Double.POSITIVE_INFINITY;
+		double tMaxZ = stepZ != 0 ? ((stepZ > 0 ? cz+1 : cz)*spacing - eye.z)*dfz : Double.POSITIVE_INFINITY;
+		Set<Cell> visited = new HashSet<Cell>();
+		double t0 = tStart;
+		while (true) {
+			double t1 = Math.min(Math.min(tMaxX, tMaxY), Math.min(tMaxZ, tEnd));
+			visitCell(pt, visited, connType, cx, cy, cz, eye, dir, t0, t1, dfx, dfy, dfz, tolerance);
+			if (t1 >= tEnd) {
+				break;
+			}
+			// step to next cell
+			if (tMaxX <= tMaxY && tMaxX <= tMaxZ) {
+				cx += stepX;
+				t0 = tMaxX;
+				tMaxX += tDeltaX;
+			}
+			else if (tMaxY <= tMaxZ) {
+				cy += stepY;
+				t0 = tMaxY;
+				tMaxY += tDeltaY;
+			}
+			else {
+				cz += stepZ;
+				t0 = tMaxZ;
+				tMaxZ += tDeltaZ;
+			}
+			if (cx < minX-1 || cx > maxX+1 || cy < minY-1 || cy > maxY+1 || cz < minZ-1 || cz > maxZ+1) {
+				// ray leaves occupied space
+				break;
+			}
+		}
+		return pt;
+	}
+
+
+
+	/**
+	 * Collects points from a cell crossed by ray, and from neighbor cells 
+	 * when ray segment in cell is nearer than tolerance to cell border 
+	 */
+	private void visitCell(List<ConnectionPoint> pt, Set<Cell> visited, int connType, 
+			int cx, int cy, int cz, Point3D eye, Point3D dir, double t0, double t1,
+			double dfx, double dfy, double dfz, float tolerance) {
+
+		// ray segment extent inside cell
+		double ax = eye.x + dir.x*t0, bx = eye.x + dir.x*t1;
+		double ay = eye.y + dir.y*t0, by = eye.y + dir.y*t1;
+		double az = eye.z + dir.z*t0, bz = eye.z + dir.z*t1;
+		int x0 = Math.min(ax, bx) - cx*spacing < tolerance ? -1 : 0;
+		int x1 = (cx+1)*spacing - Math.max(ax, bx) < tolerance ? 1 : 0;
+		int y0 = Math.min(ay, by) - cy*spacing < tolerance ? -1 : 0;
+		int y1 = (cy+1)*spacing - Math.max(ay, by) < tolerance ? 1 : 0;
+		int z0 = Math.min(az, bz) - cz*spacing < tolerance ? -1 : 0;
+		int z1 = (cz+1)*spacing - Math.max(az, bz) < tolerance ? 1 : 0;
+		for (int ox=x0;ox<=x1;ox++) {
+			for (int oy=y0;oy<=y1;oy++) {
+				for (int oz=z0;oz<=z1;oz++) {
+					Cell c = findCell(cx+ox, cy+oy, cz+oz);
+					if (c == null) {
+						continue;
+					}
+					List<ConnectionPoint> l = c.getPoints(connType);
+					if (l == null || l.size() == 0 || !visited.add(c)) {
+						continue;
+					}
+					if ((ox != 0 || oy != 0 || oz != 0) && rayBox(eye, dfx, dfy, dfz,
+							c.x*spacing - tolerance, c.y*spacing - tolerance, c.z*spacing - tolerance,
+							(c.x+1)*spacing + tolerance, (c.y+1)*spacing + tolerance, (c.z+1)*spacing + tolerance) 
+							== null) {
+						// neighbor cell not reached by ray
+						visited.remove(c);
+						continue;
+					}
+					pt.addAll(l);
+				}
+			}
+		}
+	}
+
+}
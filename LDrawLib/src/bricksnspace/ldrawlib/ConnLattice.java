@@ -0,0 +1,526 @@
+/*
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDrawLib
+
+	LDrawLib is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDrawLib is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDrawLib.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+
+package bricksnspace.ldrawlib;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import bricksnspace.j3dgeom.Matrix3D;
+import bricksnspace.j3dgeom.Point3D;
+
+
+
+/**
+ * A regular grid of connection points of same type and direction, like studs on a baseplate
+ * <p>
+ * Grid is defined in part local frame by a plane perpendicular to one axis and two
+ * uniform steps along other axes, so every point is rebuilt exactly as it was in
+ * connection list. Single connection points are created only when requested, and
+ * {@link ConnectionHandler} selects them with a ray without scanning the whole grid.
+ *
+ * @author Mario Pascucci
+ *
+ */
+public class ConnLattice {
+
+	/** min number of points for a grid to be handled as lattice */
+	public static final int MINPOINTS = 32;
+
+	/** rays almost parallel to lattice plane are checked on every point */
+	private static final double MINSIN = 1e-3;
+	/** extra distance for candidate selection, final check is done by caller */
+	private static final double MARGIN = 1;
+
+	private final ConnectionTypes type;
+	private final int partId;
+	// local grid, in part frame
+	private final int axisA, axisB, axisC;
+	private final float a0, stepA, b0, stepB, c;
+	private final float dx, dy, dz;
+	private final int na, nb;
+	// transformation to world
+	private final Matrix3D matrix;
+	// world geometry, used for selection
+	private final double[] origin, u, v, normal;
+	// created connection points, by grid index
+	private final Map<Integer,ConnectionPoint> points = new HashMap<Integer,ConnectionPoint>();
+
+
+
+	/**
+	 * A connection list split in lattices and single points
+	 */
+	static final class Split {
+
+		final List<ConnLattice> lattices = new ArrayList<ConnLattice>();
+		final List<ConnectionPoint> singles = new ArrayList<ConnectionPoint>();
+	}
+
+
+
+	private ConnLattice(ConnectionTypes type, int partId, int axisA, int axisB, int axisC,
+			float a0, float stepA, int na, float b0, float stepB, int nb, float c,
+			float dx, float dy, float dz, Matrix3D m) {
+
+		this.type = type;
+		this.partId = partId;
+		this.axisA = axisA;
+		this.axisB = axisB;
+		this.axisC = axisC;
+		this.a0 = a0;
+		this.stepA = stepA;
+		this.na = na;
+		this.b0 = b0;
+		this.stepB = stepB;
+		this.nb = nb;
+		this.c = c;
+		this.dx = dx;
+		this.dy = dy;
+		this.dz = dz;
+		matrix = m;
+		float[] o = localPoint(0, 0);
+		float[] ou = localPoint(1, 0);
+		float[] ov = localPoint(0, 1);
+		if (m != null) {
+			o = m.transformPoint(o[0], o[1], o[2]);
+			ou = m.transformPoint(ou[0], ou[1], ou[2]);
+			ov = m.transformPoint(ov[0], ov[1], ov[2]);
+		}
+		origin = new double[] {o[0], o[1], o[2]};
+		u = new double[] {ou[0]-o[0], ou[1]-o[1], ou[2]-o[2]};
+		v = new double[] {ov[0]-o[0], ov[1]-o[1], ov[2]-o[2]};
+		normal = new double[] {
+				u[1]*v[2]-u[2]*v[1],
+				u[2]*v[0]-u[0]*v[2],
+				u[0]*v[1]-u[1]*v[0]
+		};
+	}
+
+
+
+	/**
+	 * base point of grid element in part frame
+	 */
+	private float[] localPoint(int i, int j) {
+
+		float[] p = new float[3];
+		p[axisA] = a0 + i*stepA;
+		p[axisB] = b0 + j*stepB;
+		p[axisC] = c;
+		return p;
+	}
+
+
+
+	private static float coord(Point3D p, int axis) {
+
+		return axis == 0 ? p.x : (axis == 1 ? p.y : p.z);
+	}
+
+
+
+	/**
+	 * Checks if sorted values are uniformly spaced, with exactly same float computation
+	 * used to rebuild them
+	 * @return step or NaN if values aren't uniform
+	 */
+	private static float uniformStep(float[] vals) {
+
+		float step = vals[1] - vals[0];
+		for (int i=0;i<vals.length;i++) {
+			if (vals[0] + i*step != vals[i]) {
+				return Float.NaN;
+			}
+		}
+		return step;
+	}
+
+
+
+	private static float[] toArray(Collection<Float> c) {
+
+		float[] f = new float[c.size()];
+		int i = 0;
+		for (Float v : c) {
+			f[i++] = v;
+		}
+		return f;
+	}
+
+
+
+	/**
+	 * Builds a lattice from a group of points with same type, direction and plane
+	 * @return lattice or null if points aren't a full regular grid
+	 */
+	private static ConnLattice fromGroup(List<ConnectionPoint> g, int axisC) {
+
+		int axisA = axisC == 0 ? 1 : 0;
+		int axisB = axisC == 2 ? 1 : 2;
+		Set<Float> va = new TreeSet<Float>();
+		Set<Float> vb = new TreeSet<Float>();
+		for (ConnectionPoint cp : g) {
+			va.add(coord(cp.getP1(), axisA));
+			vb.add(coord(cp.getP1(), axisB));
+		}
+		if (va.size() < 2 || vb.size() < 2 || va.size()*vb.size() != g.size()) {
+			return null;
+		}
+		float[] a = toArray(va);
+		float[] b = toArray(vb);
+		float stepA = uniformStep(a);
+		float stepB = uniformStep(b);
+		if (Float.isNaN(stepA) || Float.isNaN(stepB)) {
+			return null;
+		}
+		ConnectionPoint first = g.get(0);
+		Point3D p1 = first.getP1();
+		Point3D p2 = first.getP2();
+		ConnLattice l = new ConnLattice(first.getType(), 0, axisA, axisB, axisC,
+				a[0], stepA, a.length, b[0], stepB, b.length, coord(p1, axisC),
+				p2.x-p1.x, p2.y-p1.y, p2.z-p1.z, null);
+		// every point must be rebuilt exactly, and grid must be full
+		Set<Integer> seen = new HashSet<Integer>();
+		for (ConnectionPoint cp : g) {
+			int i = Math.round((coord(cp.getP1(), axisA) - a[0]) / stepA);
+			int j = Math.round((coord(cp.getP1(), axisB) - b[0]) / stepB);
+			if (i < 0 || i >= l.na || j < 0 || j >= l.nb || !seen.add(i*l.nb+j)) {
+				return null;
+			}
+			float[] p = l.localPoint(i, j);
+			Point3D q1 = cp.getP1();
+			Point3D q2 = cp.getP2();
+			if (p[0] != q1.x || p[1] != q1.y || p[2] != q1.z ||
+					p[0]+l.dx != q2.x || p[1]+l.dy != q2.y || p[2]+l.dz != q2.z) {
+				return null;
+			}
+		}
+		return l;
+	}
+
+
+
+	/**
+	 * Splits a connection list in part frame in lattices and remaining single points.
+	 * Only grids of at least {@link #MINPOINTS} points of a non-rail connection type
+	 * on a plane perpendicular to an axis are converted.
+	 * @param cps connection points in part frame
+	 * @return lattices and single points
+	 */
+	static Split split(List<ConnectionPoint> cps) {
+
+		Split s = new Split();
+		if (cps.size() < MINPOINTS) {
+			s.singles.addAll(cps);
+			return s;
+		}
+		// groups by type, direction and plane
+		Map<String,List<ConnectionPoint>> groups = new LinkedHashMap<String,List<ConnectionPoint>>();
+		Map<String,Integer> groupAxis = new HashMap<String,Integer>();
+		for (ConnectionPoint cp : cps) {
+			if (cp.getType() == null || cp.getType().getFamily() == ConnectionFamily.RAIL) {
+				s.singles.add(cp);
+				continue;
+			}
+			Point3D p1 = cp.getP1();
+			Point3D p2 = cp.getP2();
+			float dx = p2.x-p1.x;
+			float dy = p2.y-p1.y;
+			float dz = p2.z-p1.z;
+			// grid plane is perpendicular to main axis of direction
+			int axis = Math.abs(dx) >= Math.abs(dy) ?
+					(Math.abs(dx) >= Math.abs(dz) ? 0 : 2) :
+					(Math.abs(dy) >= Math.abs(dz) ? 1 : 2);
+			String key = cp.getType().getId()+":"+dx+","+dy+","+dz+":"+axis+":"+coord(p1, axis);
+			List<ConnectionPoint> g = groups.get(key);
+			if (g == null) {
+				g = new ArrayList<ConnectionPoint>();
+				groups.put(key, g);
+				groupAxis.put(key, axis);
+			}
+			g.add(cp);
+		}
+		for (Map.Entry<String,List<ConnectionPoint>> e : groups.entrySet()) {
+			List<ConnectionPoint> g = e.getValue();
+			ConnLattice l = null;
+			if (g.size() >= MINPOINTS) {
+				l = fromGroup(g, groupAxis.get(e.getKey()));
+			}
+			if (l != null) {
+				s.lattices.add(l);
+			}
+			else {
+				s.singles.addAll(g);
+			}
+		}
+		return s;
+	}
+
+
+
+	/**
+	 * Places lattice in a part
+	 * @param partId id of part that owns connections
+	 * @param m part transformation
+	 * @return new lattice in world frame
+	 */
+	ConnLattice transform(int partId, Matrix3D m) {
+
+		return new ConnLattice(type, partId, axisA, axisB, axisC,
+				a0, stepA, na, b0, stepB, nb, c, dx, dy, dz, m);
+	}
+
+
+
+	/**
+	 * Moves a placed lattice, same as placing it with part transformation followed by m
+	 * @param m transformation to add
+	 * @return new lattice
+	 */
+	ConnLattice moveBy(Matrix3D m) {
+
+		return transform(partId, matrix == null ? m : matrix.transform(m));
+	}
+
+
+
+	public ConnectionTypes getType() {
+		return type;
+	}
+
+
+	public int getPartId() {
+		return partId;
+	}
+
+
+	/**
+	 * @return number of connection points in lattice
+	 */
+	public int size() {
+		return na*nb;
+	}
+
+
+
+	/**
+	 * Gets a connection point of lattice, creating it on first request
+	 * @param i index along first grid axis
+	 * @param j index along second grid axis
+	 * @return connection point, always same object for same index
+	 */
+	public ConnectionPoint getPoint(int i, int j) {
+
+		if (i < 0 || i >= na || j < 0 || j >= nb) {
+			throw new IndexOutOfBoundsException("[ConnLattice] Invalid index: "+i+","+j);
+		}
+		Integer k = i*nb+j;
+		ConnectionPoint cp = points.get(k);
+		if (cp == null) {
+			float[] p = localPoint(i, j);
+			cp = ConnectionPoint.newLocalPoint(type, new Point3D(p[0], p[1], p[2]),
+					new Point3D(p[0]+dx, p[1]+dy, p[2]+dz));
+			if (matrix != null) {
+				cp = cp.transform(partId, matrix);
+			}
+			points.put(k, cp);
+		}
+		return cp;
+	}
+
+
+
+	/**
+	 * Gets a connection point of lattice by index, in same order of {@link #getPoints()}
+	 * @param index point index, from 0 to {@link #size()}-1
+	 * @return connection point, created on first request
+	 */
+	public ConnectionPoint getPoint(int index) {
+
+		if (index < 0 || index >= size()) {
+			throw new IndexOutOfBoundsException("[ConnLattice] Invalid index: "+index);
+		}
+		return getPoint(index / nb, index % nb);
+	}
+
+
+
+	/**
+	 * @return all connection points of lattice
+	 */
+	public List<ConnectionPoint> getPoints() {
+
+		List<ConnectionPoint> l = new ArrayList<ConnectionPoint>(size());
+		for (int i=0;i<na;i++) {
+			for (int j=0;j<nb;j++) {
+				l.add(getPoint(i, j));
+			}
+		}
+		return l;
+	}
+
+
+
+	/**
+	 * Looks for an already created connection point by id
+	 * @return connection point or null
+	 */
+	public ConnectionPoint findCreatedPoint(int id) {
+
+		for (ConnectionPoint cp : points.values()) {
+			if (cp.getId() == id) {
+				return cp;
+			}
+		}
+		return null;
+	}
+
+
+
+	private static double dot(double[] a, double[] b) {
+
+		return a[0]*b[0]+a[1]*b[1]+a[2]*b[2];
+	}
+
+
+
+	/**
+	 * Selects lattice points that can be within a distance from line eye-target
+	 * <p>
+	 * Line crosses lattice plane in a point, a lattice point P at distance d from line
+	 * is at most d/sin(angle) from that crossing, so only grid elements in that range
+	 * are checked.
+	 * @param eye first point of line
+	 * @param target second point of line
+	 * @param distance max distance from line
+	 * @param out list where candidates are added, caller must check actual distance
+	 */
+	public void selectByRay(Point3D eye, Point3D target, float distance, List<ConnectionPoint> out) {
+
+		double[] e = {eye.x, eye.y, eye.z};
+		double[] d = {target.x-eye.x, target.y-eye.y, target.z-eye.z};
+		double dd = dot(d, d);
+		double nn = dot(normal, normal);
+		if (dd == 0 || nn == 0) {
+			return;
+		}
+		double nd = dot(normal, d);
+		double sin = Math.abs(nd) / Math.sqrt(nn*dd);
+		double r = distance + MARGIN;
+		int i0 = 0, i1 = na-1, j0 = 0, j1 = nb-1;
+		if (sin >= MINSIN) {
+			// crossing point relative to lattice origin
+			double[] oe = {origin[0]-e[0], origin[1]-e[1], origin[2]-e[2]};
+			double t = dot(normal, oe) / nd;
+			double[] w = {e[0]+t*d[0]-origin[0], e[1]+t*d[1]-origin[1], e[2]+t*d[2]-origin[2]};
+			// lattice coordinates of crossing point
+			double uu = dot(u, u), uv = dot(u, v), vv = dot(v, v);
+			double det = uu*vv - uv*uv;
+			double wu = dot(w, u), wv = dot(w, v);
+			double s = (vv*wu - uv*wv) / det;
+			double q = (uu*wv - uv*wu) / det;
+			double range = r / sin;
+			double rs = range * Math.sqrt(vv/det);
+			double rq = range * Math.sqrt(uu/det);
+			i0 = (int) Math.max(i0, Math.ceil(s - rs));
+			i1 = (int) Math.min(i1, Math.floor(s + rs));
+			j0 = (int) Math.max(j0, Math.ceil(q - rq));
+			j1 = (int) Math.min(j1, Math.floor(q + rq));
+		}
+		double r2 = r*r;
+		for (int i=i0;i<=i1;i++) {
+			for (int j=j0;j<=j1;j++) {
+				// distance from line, without creating connection point
+				double[] pe = {
+						origin[0]+i*u[0]+j*v[0]-e[0],
+						origin[1]+i*u[1]+j*v[1]-e[1],
+						origin[2]+i*u[2]+j*v[2]-e[2]
+				};
+				double pd = dot(pe, d);
+				if (dot(pe, pe) - pd*pd/dd <= r2) {
+					out.add(getPoint(i, j));
+				}
+			}
+		}
+	}
+
+
+
+	/**
+	 * Finds lattice point nearest to a line, creating only that point
+	 * <p>
+	 * For every grid row, squared distance from line is a quadratic function of column
+	 * index, so nearest column is found analytically.
+	 * @param l1 first point of line
+	 * @param l2 second point of line
+	 * @return nearest connection point, or null if line is degenerate
+	 */
+	public ConnectionPoint nearestPoint(Point3D l1, Point3D l2) {
+
+		double[] e = {l1.x, l1.y, l1.z};
+		double[] d = {l2.x-l1.x, l2.y-l1.y, l2.z-l1.z};
+		double dd = dot(d, d);
+		if (dd == 0) {
+			return null;
+		}
+		// v without its component along line
+		double vd = dot(v, d) / dd;
+		double[] vp = {v[0]-vd*d[0], v[1]-vd*d[1], v[2]-vd*d[2]};
+		double vv = dot(vp, vp);
+		int bi = 0, bj = 0;
+		double best = Double.MAX_VALUE;
+		for (int i=0;i<na;i++) {
+			// first point of row, without its component along line
+			double[] a = {origin[0]+i*u[0]-e[0], origin[1]+i*u[1]-e[1], origin[2]+i*u[2]-e[2]};
+			double ad = dot(a, d) / dd;
+			a[0] -= ad*d[0];
+			a[1] -= ad*d[1];
+			a[2] -= ad*d[2];
+			double av = dot(a, vp);
+			double jm = vv == 0 ? 0 : Math.max(0, Math.min(nb-1, -av/vv));
+			int j0 = (int) Math.floor(jm);
+			for (int j=j0;j<=j0+1 && j<nb;j++) {
+				double dist = dot(a, a) + 2*j*av + j*j*vv;
+				if (dist < best) {
+					best = dist;
+					bi = i;
+					bj = j;
+				}
+			}
+		}
+		return getPoint(bi, bj);
+	}
+
+
+
+	@Override
+	public String toString() {
+		return "ConnLattice [type=" + type + ", partId=" + partId + ", size=" + na + "x" + nb + "]";
+	}
+
+}
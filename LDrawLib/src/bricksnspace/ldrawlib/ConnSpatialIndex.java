@@ -0,0 +1,57 @@
+/*
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDrawLib
+
+	LDrawLib is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDrawLib is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDrawLib.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+
+
+package bricksnspace.ldrawlib;
+
+import java.util.List;
+
+import bricksnspace.j3dgeom.Point3D;
+
+
+/**
+ * Spatial index for connection points, used by {@link ConnectionHandler}
+ *
+ * @author Mario Pascucci
+ *
+ */
+public interface ConnSpatialIndex {
+
+	/**
+	 * Adds a connection point to index
+	 * @param p connection point to add
+	 */
+	public void insertPoint(ConnectionPoint p);
+
+	/**
+	 * Removes a connection point from index
+	 * @param p connection point to remove
+	 */
+	public void removePoint(ConnectionPoint p);
+
+	/**
+	 * Selects connection points of a type in index cells crossed by a ray
+	 * @param connType connection type id
+	 * @param eye ray origin
+	 * @param target a point on ray
+	 * @return candidate connection points, caller must check actual distance from ray
+	 */
+	public List<ConnectionPoint> selectByRay(int connType, Point3D eye, Point3D target);
+}
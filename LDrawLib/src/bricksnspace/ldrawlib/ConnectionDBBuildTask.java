@@ -0,0 +1,403 @@
+/*
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDrawLib
+
+	LDrawLib is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDrawLib is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDrawLib.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+
+package bricksnspace.ldrawlib;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import javax.swing.SwingWorker;
+import javax.xml.stream.XMLStreamException;
+
+
+
+/**
+ * Builds a connection archive with precomputed connections for all parts
+ * in enabled libraries
+ * <p>
+ * Entries of current connection archive (or connection folder and definition files)
+ * are copied to new archive, then connections for every part without a connection
+ * file are autodetected by a thread pool and added as cxml entries.
+ * New archive can replace {@link ConnectionPoint#CONNZIP}, so connections are never
+ * computed when a part is placed. Archive is written to a temporary file and renamed
+ * when complete, so output can be the archive currently in use: it is closed
+ * while it is replaced, then connections are initialized again from new archive.
+ *
+ * @author Mario Pascucci
+ *
+ */
+public class ConnectionDBBuildTask extends SwingWorker<Integer, Void> {
+
+	/** max parts computed ahead for every thread */
+	private static final int QUEUEPERTHREAD = 32;
+
+	private LDrawLib ldr;
+	private File output;
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+	// summary
+	private int scanned = 0;
+	private int copied = 0;
+	private int detected = 0;
+	private int empty = 0;
+	private int failed = 0;
+	private long elapsed = 0;
+
+
+
+	/**
+	 * Creates a connection archive builder
+	 * @param l LDraw library to scan for parts
+	 * @param output new connection archive
+	 */
+	public ConnectionDBBuildTask(LDrawLib l, File output) {
+
+		ldr = l;
+		this.output = output;
+	}
+
+
+
+	/**
+	 * Sets number of threads used to detect connections
+	 * @param threads number of threads, default is number of available processors
+	 */
+	public void setThreads(int threads) {
+
+		if (threads < 1)
+			throw new IllegalArgumentException("[ConnectionDBBuildTask] Thread count must be at least 1");
+		this.threads = threads;
+	}
+
+
+
+	/**
+	 * Collects parts from enabled libraries, one for every connection file name.
+	 * Printed parts share connections with main part, so main part is preferred.
+	 */
+	private Map<String,String> collectParts() {
+
+		Map<String,String> parts = new LinkedHashMap<String,String>();
+		for (int j=0;j<ldr.count();j++) {
+			if (!ldr.isEnabled(j) || (ldr.isOfficialOnly() && !ldr.isOfficial(j))) {
+				continue;
+			}
+			for (String path:ldr.getAllParts(j)) {
+				String lp = path.toLowerCase();
+				if (!lp.endsWith(".dat")) {
+					continue;
+				}
+				if (ldr.isLDrawStd(j) && (lp.indexOf("parts/") < 0 || lp.indexOf("parts/s/") >= 0)) {
+					continue;
+				}
+				String ldrid = new File(path).getName();
+				scanned++;
+				if (ConnectionTypes.getPrimitiveConns(ldrid) != null) {
+					// primitives connections are in autodetect definitions
+					continue;
+				}
+				String main = ConnectionPoint.getPartMainName(ldrid);
+				if (!parts.containsKey(main) || ldrid.equalsIgnoreCase(main+".dat")) {
+					parts.put(main, ldrid);
+				}
+			}
+		}
+		return parts;
+	}
+
+
+
+	private static void copy(InputStream is, OutputStream os) throws IOException {
+
+		byte[] buf = new byte[16384];
+		int n;
+		try {
+			while ((n = is.read(buf)) > 0) {
+				os.write(buf, 0, n);
+			}
+		}
+		finally {
+			is.close();
+		}
+	}
+
+
+
+	/**
+	 * Adds a file to archive if it exists
+	 * @return true if file was added
+	 */
+	private static boolean addFile(ZipOutputStream zos, String name, File f) throws IOException {
+
+		if (!f.isFile()) {
+			return false;
+		}
+		zos.putNextEntry(new ZipEntry(name));
+		copy(new FileInputStream(f), zos);
+		zos.closeEntry();
+		return true;
+	}
+
+
+
+	/**
+	 * Copies existing connection definitions to new archive
+	 * @return names of copied entries
+	 */
+	private Set<String> copyExisting(ZipOutputStream zos) throws IOException {
+
+		Set<String> names = new HashSet<String>();
+		ZipFile zf = ConnectionPoint.getConnZip();
+		if (zf != null) {
+			Enumeration<? extends ZipEntry> entries = zf.entries();
+			while (entries.hasMoreElements()) {
+				ZipEntry ze = entries.nextElement();
+				if (ze.isDirectory()) {
+					continue;
+				}
+				zos.putNextEntry(new ZipEntry(ze.getName()));
+				copy(zf.getInputStream(ze), zos);
+				zos.closeEntry();
+				names.add(ze.getName());
+			}
+		}
+		else {
+			// connections from folder, definitions in working folder
+			String[] defs = {ConnectionTypes.connFileName, ConnectionTypes.autodetectFileName,
+					ConnectionPoint.CONNAUTO, LDFlexPart.INITFILE};
+			for (String d:defs) {
+				if (addFile(zos, d, new File(d))) {
+					names.add(d);
+				}
+			}
+			File[] files = new File(ConnectionPoint.CONNFOLDER).listFiles();
+			if (files != null) {
+				for (File f:files) {
+					if (f.getName().endsWith(ConnectionPoint.CONNEXT)) {
+						String name = ConnectionPoint.ZIPFOLDER+f.getName();
+						if (addFile(zos, name, f)) {
+							names.add(name);
+						}
+					}
+				}
+			}
+		}
+		copied = names.size();
+		return names;
+	}
+
+
+
+	/**
+	 * @return true if output is connection archive currently open
+	 */
+	private boolean isInUse() throws IOException {
+
+		ZipFile zf = ConnectionPoint.getConnZip();
+		return zf != null && 
+				new File(zf.getName()).getCanonicalFile().equals(output.getCanonicalFile());
+	}
+
+
+
+	private List<ConnectionPoint> getResult(String ldrid, Future<List<ConnectionPoint>> f) throws InterruptedException {
+
+		try {
+			return f.get();
+		} catch (ExecutionException ex) {
+			Logger.getGlobal().log(Level.SEVERE, "[ConnectionDBBuildTask] Error detecting connections for part: "+ldrid, ex.getCause());
+			return null;
+		}
+	}
+
+
+
+	@Override
+	protected Integer doInBackground() throws Exception {
+
+		long start = System.currentTimeMillis();
+		setProgress(0);
+		Map<String,String> parts = collectParts();
+		// existing archive is read while new one is written
+		File tmp = new File(output.getPath()+".tmp");
+		ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(tmp));
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		boolean done = false;
+		try {
+			Set<String> existing = copyExisting(zos);
+			ConnArchive bin = ConnectionPoint.getConnBin();
+			List<String> toDetect = new ArrayList<String>();
+			for (String main:parts.keySet()) {
+				String name = ConnectionPoint.ZIPFOLDER+main+ConnectionPoint.CONNEXT;
+				if (existing.contains(name)) {
+					continue;
+				}
+				List<ConnectionPoint> cp = bin != null ? bin.getConnections(main) : null;
+				if (cp != null) {
+					// only in binary archive
+					zos.putNextEntry(new ZipEntry(name));
+					ConnectionPoint.writeToFile(zos, cp);
+					zos.closeEntry();
+					copied++;
+				}
+				else {
+					toDetect.add(main);
+				}
+			}
+			Deque<Future<List<ConnectionPoint>>> queue = new ArrayDeque<Future<List<ConnectionPoint>>>();
+			Deque<String> names = new ArrayDeque<String>();
+			Iterator<String> it = toDetect.iterator();
+			int i = 0;
+			while (it.hasNext() || !queue.isEmpty()) {
+				// keep a limited number of parts ahead of archive writer
+				while (it.hasNext() && queue.size() < threads*QUEUEPERTHREAD) {
+					String main = it.next();
+					final String ldrid = parts.get(main);
+					names.add(main);
+					queue.add(pool.submit(new Callable<List<ConnectionPoint>>() {
+						@Override
+						public List<ConnectionPoint> call() {
+							return ConnectionPoint.detectConnections(ldrid);
+						}
+					}));
+				}
+				String main = names.poll();
+				List<ConnectionPoint> cp = getResult(parts.get(main), queue.poll());
+				i++;
+				setProgress(i*100/toDetect.size());
+				if (cp == null) {
+					Logger.getGlobal().warning("[ConnectionDBBuildTask] Unable to detect connections for part: "+parts.get(main));
+					failed++;
+					continue;
+				}
+				if (cp.size() == 0) {
+					empty++;
+				}
+				zos.putNextEntry(new ZipEntry(ConnectionPoint.ZIPFOLDER+main+ConnectionPoint.CONNEXT));
+				ConnectionPoint.writeToFile(zos, cp);
+				zos.closeEntry();
+				detected++;
+			}
+			done = true;
+		}
+		catch (IOException ex) {
+			Logger.getGlobal().log(Level.SEVERE, "[ConnectionDBBuildTask] Error writing connection archive", ex);
+			throw ex;
+		}
+		catch (XMLStreamException ex) {
+			Logger.getGlobal().log(Level.SEVERE, "[ConnectionDBBuildTask] Error writing connection archive", ex);
+			throw ex;
+		}
+		catch (InterruptedException ex) {
+			Logger.getGlobal().log(Level.WARNING, "[ConnectionDBBuildTask] Build interrupted");
+			throw ex;
+		}
+		finally {
+			pool.shutdownNow();
+			zos.close();
+			if (!done) {
+				tmp.delete();
+			}
+			elapsed = System.currentTimeMillis() - start;
+		}
+		// replace old archive only when new one is complete
+		boolean inUse = isInUse();
+		if (inUse) {
+			ConnectionPoint.release();
+		}
+		output.delete();
+		boolean replaced = tmp.renameTo(output);
+		if (inUse) {
+			// old archive if it wasn't replaced
+			ConnectionPoint.init();
+		}
+		if (!replaced) {
+			throw new IOException("[ConnectionDBBuildTask] Unable to replace "+output.getPath()+
+					", new archive is in "+tmp.getPath());
+		}
+		Logger.getGlobal().info("[ConnectionDBBuildTask] "+getReport());
+		return detected;
+	}
+
+
+
+	/**
+	 * @return a summary of last build
+	 */
+	public String getReport() {
+
+		return "Parts scanned: "+scanned+
+				", entries copied: "+copied+
+				", parts detected: "+detected+
+				" ("+empty+" without connections)"+
+				", failed: "+failed+
+				", time: "+elapsed/1000+"s";
+	}
+
+
+	public int getScanned() {
+		return scanned;
+	}
+
+
+	public int getCopied() {
+		return copied;
+	}
+
+
+	public int getDetected() {
+		return detected;
+	}
+
+
+	public int getEmpty() {
+		return empty;
+	}
+
+
+	public int getFailed() {
+		return failed;
+	}
+
+}
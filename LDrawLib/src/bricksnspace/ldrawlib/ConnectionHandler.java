@@ -20,11 +20,15 @@
 
 package bricksnspace.ldrawlib;
 
+import java.util.AbstractCollection;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 
 import bricksnspace.j3dgeom.JSimpleGeom;
 import bricksnspace.j3dgeom.Matrix3D;
@@ -40,10 +44,23 @@ import bricksnspace.j3dgeom.Point3D;
  */
 public class ConnectionHandler {
 	
+	/** max distance of a rail from line eye-cursor */
+	private static final float RAILDIST = 10;
+	/** extra distance for rail segment search */
+	private static final float RAILMARGIN = 1;
+	
 	// connections in model, mapped by type
 	private Map<Integer,List<ConnectionPoint>> connectionsMap = 
 			new HashMap<Integer,List<ConnectionPoint>>();
 	
+	// regular grids of connections in model, mapped by type
+	private Map<Integer,List<ConnLattice>> latticeMap = 
+			new HashMap<Integer,List<ConnLattice>>();
+	
+	// rail segments in model with bounding volume hierarchy, mapped by type
+	private Map<Integer,RailBVH> railIndex = 
+			new HashMap<Integer,RailBVH>();
+	
 	// connections database indexed by connection global Id
 	private Map<Integer,ConnectionPoint> connections = new HashMap<Integer,ConnectionPoint>();
 	
@@ -54,16 +71,27 @@ public class ConnectionHandler {
 	private PartQueryable model;
 
 	// all connection with spatial index
-	private ConnGrid spatialIndex = null;   // DB
+	private ConnHashGrid spatialIndex = null;
+	// candidates of last ray queries, reused while cursor moves a little
+	private RayCandidateCache candidateCache = null;
+	private boolean useCandidateCache = true;
+	// time spent in getConnectionPoint
+	private LatencyStats latency = new LatencyStats(4096);
 	
 
 	
 	public ConnectionHandler(PartQueryable model) {
 		
 		for (ConnectionTypes ct:ConnectionTypes.listTypes()) {
-			connectionsMap.put(ct.getId(), new ArrayList<ConnectionPoint>());
+			// constant time removal, order isn't needed
+			connectionsMap.put(ct.getId(), new SwapRemoveList<ConnectionPoint>());
+			latticeMap.put(ct.getId(), new SwapRemoveList<ConnLattice>());
+			if (ct.getFamily() == ConnectionFamily.RAIL) {
+				railIndex.put(ct.getId(), new RailBVH());
+			}
 		}
-		spatialIndex = new ConnGrid();
+		spatialIndex = new ConnHashGrid();
+		candidateCache = new RayCandidateCache(spatialIndex);
 		this.model = model;
 	}
 
@@ -108,18 +136,159 @@ public class ConnectionHandler {
 				}
 			}
 		}
+		for (List<ConnLattice> l:latticeMap.values()) {
+			for (ConnLattice cl: l) {
+				System.out.println(cl);
+			}
+		}
 	}
 
 	
 	
 
+	/**
+	 * Read only view of connections of a type, with points in connection lattices.
+	 * Lattice points are created when they are accessed.
+	 */
+	private class TypeView extends AbstractList<ConnectionPoint> {
+		
+		private final int ct;
+		
+		TypeView(int ct) {
+			this.ct = ct;
+		}
+		
+		@Override
+		public ConnectionPoint get(int index) {
+			
+			List<ConnectionPoint> singles = connectionsMap.get(ct);
+			if (index < singles.size()) {
+				return singles.get(index);
+			}
+			int i = index - singles.size();
+			for (ConnLattice cl:latticeMap.get(ct)) {
+				if (i < cl.size()) {
+					return cl.getPoint(i);
+				}
+				i -= cl.size();
+			}
+			throw new IndexOutOfBoundsException("[ConnectionHandler] Invalid index: "+index);
+		}
+		
+		@Override
+		public int size() {
+			
+			int n = connectionsMap.get(ct).size();
+			for (ConnLattice cl:latticeMap.get(ct)) {
+				n += cl.size();
+			}
+			return n;
+		}
+	}
+	
+	
+	
+	/**
+	 * Read only view of all connections, with points in connection lattices.
+	 * Lattice points are created when they are accessed.
+	 */
+	private class AllView extends AbstractCollection<ConnectionPoint> {
+		
+		@Override
+		public Iterator<ConnectionPoint> iterator() {
+			
+			final Iterator<ConnectionPoint> singles = connections.values().iterator();
+			final List<ConnLattice> lattices = new ArrayList<ConnLattice>();
+			for (List<ConnLattice> l:latticeMap.values()) {
+				lattices.addAll(l);
+			}
+			return new Iterator<ConnectionPoint>() {
+				
+				private int lattice = 0;
+				private int point = 0;
+				
+				@Override
+				public boolean hasNext() {
+					if (singles.hasNext()) {
+						return true;
+					}
+					while (lattice < lattices.size() && point >= lattices.get(lattice).size()) {
+						lattice++;
+						point = 0;
+					}
+					return lattice < lattices.size();
+				}
+				
+				@Override
+				public ConnectionPoint next() {
+					if (!hasNext()) {
+						throw new NoSuchElementException();
+					}
+					if (singles.hasNext()) {
+						return singles.next();
+					}
+					return lattices.get(lattice).getPoint(point++);
+				}
+				
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException("[ConnectionHandler] Connection list is read only");
+				}
+			};
+		}
+		
+		@Override
+		public int size() {
+			
+			int n = connections.size();
+			for (List<ConnLattice> l:latticeMap.values()) {
+				for (ConnLattice cl:l) {
+					n += cl.size();
+				}
+			}
+			return n;
+		}
+	}
+	
+	
+	
+	/**
+	 * Connections of a type, including points in connection lattices. 
+	 * Accessing lattice points creates them, use {@link #getSinglesByType(int)} 
+	 * and {@link #getLatticesByType(int)} to avoid it.
+	 * @return read only view of connections, or null if type is unknown
+	 */
 	public List<ConnectionPoint> getConnectionsByType(int ct) {
 		
+		if (!connectionsMap.containsKey(ct)) {
+			return null;
+		}
+		return new TypeView(ct);
+	}
+	
+	
+	
+	/**
+	 * Connections of a type, points in connection lattices aren't included
+	 * @see #getLatticesByType(int)
+	 */
+	public List<ConnectionPoint> getSinglesByType(int ct) {
+		
 		return connectionsMap.get(ct);
 	}
 	
 	
 	
+	/**
+	 * Regular grids of connections of a type
+	 */
+	public List<ConnLattice> getLatticesByType(int ct) {
+		
+		return latticeMap.get(ct);
+	}
+	
+	
+	
 	/** 
 	 * Add connection points from a primitive
 	 * 
@@ -129,10 +298,14 @@ public class ConnectionHandler {
 
 		if (rp.getType() != LDrawCommand.REFERENCE)
 			return;
-		ConnectionPoint[] listCp = rp.getConnPoints();//ConnectionPoint.getConnections(rp);
+		ConnectionPoint[] listCp = rp.getConnSingles();//ConnectionPoint.getConnections(rp);
 		for (ConnectionPoint cp: listCp) {
 			addSingleConn(cp);
 		}
+		// lattices are queried as a whole, without adding every point
+		for (ConnLattice cl: rp.getConnLattices()) {
+			latticeMap.get(cl.getType().getId()).add(cl);
+		}
 	}
 	
 	
@@ -164,10 +337,38 @@ public class ConnectionHandler {
 	
 	public void delConnections(LDPrimitive rp) {
 		
-		for (ConnectionPoint cp : rp.getConnPoints()) {
+		if (rp.getType() != LDrawCommand.REFERENCE)
+			return;
+		for (ConnectionPoint cp : rp.getConnSingles()) {
 			connections.remove(cp.getId());
 			connectionsMap.get(cp.getType().getId()).remove(cp);
 			spatialIndex.removePoint(cp);
+			candidateCache.invalidate(cp.getType().getId());
+			RailBVH rail = railIndex.get(cp.getType().getId());
+			if (rail != null) {
+				rail.removePoint(cp);
+			}
+		}
+		for (ConnLattice cl: rp.getConnLattices()) {
+			latticeMap.get(cl.getType().getId()).remove(cl);
+		}
+	}
+	
+	
+	
+	/**
+	 * Replaces connections of many parts in a single step, i.e. after moving
+	 * a selection with {@link LDPrimitive#transformAll(Collection, Matrix3D)}
+	 * @param oldParts parts whose connections are removed
+	 * @param newParts parts whose connections are added
+	 */
+	public void replaceConnections(Collection<LDPrimitive> oldParts, Collection<LDPrimitive> newParts) {
+		
+		for (LDPrimitive rp : oldParts) {
+			delConnections(rp);
+		}
+		for (LDPrimitive rp : newParts) {
+			addConnections(rp);
 		}
 	}
 	
@@ -178,6 +379,11 @@ public class ConnectionHandler {
 		// add to global connection lists
 		connectionsMap.get(cp.getType().getId()).add(cp);
 		spatialIndex.insertPoint(cp);
+		candidateCache.invalidate(cp.getType().getId());
+		RailBVH rail = railIndex.get(cp.getType().getId());
+		if (rail != null) {
+			rail.insertPoint(cp);
+		}
 		// add to connId indexed database
 		connections.put(cp.getId(), cp);
 	}
@@ -189,19 +395,106 @@ public class ConnectionHandler {
 		connections.remove(cp.getId());
 		connectionsMap.get(cp.getType().getId()).remove(cp);
 		spatialIndex.removePoint(cp);
+		candidateCache.invalidate(cp.getType().getId());
+		RailBVH rail = railIndex.get(cp.getType().getId());
+		if (rail != null) {
+			rail.removePoint(cp);
+		}
 	}
 	
 	
 	
 	public ConnectionPoint getConnectionPointById(int id) {
 		
-		return connections.get(id);
+		ConnectionPoint cp = connections.get(id);
+		if (cp != null) {
+			return cp;
+		}
+		// lattice points can be selected only after they are created
+		for (List<ConnLattice> l:latticeMap.values()) {
+			for (ConnLattice cl: l) {
+				cp = cl.findCreatedPoint(id);
+				if (cp != null) {
+					return cp;
+				}
+			}
+		}
+		return null;
+	}
+	
+	
+	
+	/**
+	 * Enables reuse of candidate connections found for previous cursor position
+	 * while cursor moves a little. Enabled by default.
+	 */
+	public void setCandidateCache(boolean enable) {
+		
+		useCandidateCache = enable;
+		candidateCache.clear();
+	}
+	
+	
+	
+	public boolean isCandidateCache() {
+		return useCandidateCache;
+	}
+	
+	
+	
+	/**
+	 * @return latency of last calls to {@link #getConnectionPoint(LDPrimitive, Matrix3D, Point3D, Point3D)}
+	 */
+	public LatencyStats getLatencyStats() {
+		return latency;
+	}
+	
+	
+	
+	/**
+	 * @return number of ray queries answered with cached candidates
+	 */
+	public long getCacheHits() {
+		return candidateCache.getHits();
+	}
+	
+	
+	
+	/**
+	 * @return number of ray queries that needed a spatial index query
+	 */
+	public long getCacheMisses() {
+		return candidateCache.getMisses();
+	}
+	
+	
+	
+	public void resetStats() {
+		
+		latency.reset();
+		candidateCache.resetCounters();
 	}
 	
 	
 	
+	/**
+	 * All connections, including points in connection lattices. 
+	 * Accessing lattice points creates them, use {@link #getSingleConnections()} 
+	 * and {@link #getLatticesByType(int)} to avoid it.
+	 * @return read only view of connections
+	 */
 	public Collection<ConnectionPoint> getConnectionList() {
 		
+		return new AllView();
+	}
+	
+	
+	
+	/**
+	 * All connections, points in connection lattices aren't included
+	 */
+	public Collection<ConnectionPoint> getSingleConnections() {
+		
 		return connections.values();
 	}
 	
@@ -217,6 +510,19 @@ public class ConnectionHandler {
 	 */
 	public boolean getConnectionPoint(LDPrimitive part, Matrix3D pointerMatrix, Point3D cursor, Point3D eye) {
 		
+		long start = System.nanoTime();
+		try {
+			return findConnectionPoint(part, pointerMatrix, cursor, eye);
+		}
+		finally {
+			latency.add(System.nanoTime() - start);
+		}
+	}
+	
+	
+	
+	private boolean findConnectionPoint(LDPrimitive part, Matrix3D pointerMatrix, Point3D cursor, Point3D eye) {
+		
 		boolean needsAlign = false;
 		List<ConnectionPoint> candidates = null;
 		ConnectionPoint targetConn = null;
@@ -397,13 +703,21 @@ public class ConnectionHandler {
 		List<ConnectionPoint> cp = new ArrayList<ConnectionPoint>();
 		//float partDistance = 1e30f;
 
-		for (ConnectionPoint p:connectionsMap.get(ct)) {
+		Collection<ConnectionPoint> rails = connectionsMap.get(ct);
+		RailBVH rail = railIndex.get(ct);
+		if (rail != null) {
+			// only segments whose box is near line eye-cursor. Snap point on rail can be
+			// up to moving connection length away from rail ends, so box is enlarged by it
+			float clen = (float) Math.sqrt(connAtCursor.getP1().getDistSq(connAtCursor.getP2()));
+			rails = rail.selectByRay(eye, connAtCursor.getP1(), RAILDIST+RAILMARGIN+clen);
+		}
+		for (ConnectionPoint p:rails) {
 			//System.out.println(ct+" - "+ freeConnections.get(ct).size());
 			// if part is hidden, ignore connections
 			if (model.isHidden(p.getPartId()))
 				continue;
 			float dist = JSimpleGeom.line2line(eye,connAtCursor.getP1(), p.getP1(), p.getP2());
-			if (dist < 10) {
+			if (dist < RAILDIST) {
 				//float connDist = Math.min(connAtCursor.getP1().getDistSq(p.getP1()),connAtCursor.getP1().getDistSq(p.getP2()));
 				//if (connDist < partDistance) {
 					//System.out.println("+"+dist);
@@ -466,7 +780,18 @@ public class ConnectionHandler {
 			return null;
 		ConnectionPoint cp = null;
 		float distance = 1e30f;
-		for (ConnectionPoint pt:part.getConnPoints()) {
+		for (ConnectionPoint pt:part.getConnSingles()) {
+			float d = JSimpleGeom.point2line(pt.getP1(), l1, l2);
+			if (d < distance) {
+				cp = pt;
+				distance = d; 
+			}
+		}
+		// only nearest point of every lattice is created
+		for (ConnLattice cl:part.getConnLattices()) {
+			ConnectionPoint pt = cl.nearestPoint(l1, l2);
+			if (pt == null)
+				continue;
 			float d = JSimpleGeom.point2line(pt.getP1(), l1, l2);
 			if (d < distance) {
 				cp = pt;
@@ -492,13 +817,25 @@ public class ConnectionHandler {
 			return null;
 		ConnectionPoint cp = null;
 		float distance = 1e30f;
-		for (ConnectionPoint pt:part.getConnPoints()) {
+		for (ConnectionPoint pt:part.getConnSingles()) {
 			float d = JSimpleGeom.point2line(pt.getP1(), l1, l2);
 			if (pt.getType().getId() == ct && d < distance) {
 				cp = pt;
 				distance = d; 
 			}
 		}
+		for (ConnLattice cl:part.getConnLattices()) {
+			if (cl.getType().getId() != ct)
+				continue;
+			ConnectionPoint pt = cl.nearestPoint(l1, l2);
+			if (pt == null)
+				continue;
+			float d = JSimpleGeom.point2line(pt.getP1(), l1, l2);
+			if (d < distance) {
+				cp = pt;
+				distance = d; 
+			}
+		}
 		return cp;
 	}
 
@@ -517,7 +854,14 @@ public class ConnectionHandler {
 	private List<ConnectionPoint> getNearConn(int ct, Point3D target, Point3D eye, float distance) {
 		
 		ArrayList<ConnectionPoint> cp = new ArrayList<ConnectionPoint>();
-		List<ConnectionPoint> bb = spatialIndex.selectByRay(ct, eye, target);
+		float maxDist = (float) Math.sqrt(distance);
+		List<ConnectionPoint> bb = new ArrayList<ConnectionPoint>(useCandidateCache ?
+				candidateCache.selectByRay(ct, eye, target, maxDist) : spatialIndex.selectByRay(ct, eye, target));
+		for (ConnLattice cl:latticeMap.get(ct)) {
+			if (!model.isHidden(cl.getPartId())) {
+				cl.selectByRay(eye, target, maxDist, bb);
+			}
+		}
 		for (ConnectionPoint p:bb) {
 			//System.out.println(ct+" - "+ freeConnections.get(ct).size());
 			// if part is hidden, ignore connections
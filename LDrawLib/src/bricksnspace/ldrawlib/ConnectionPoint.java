@@ -28,14 +28,17 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.LineNumberReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
@@ -44,6 +47,7 @@ import java.util.zip.ZipFile;
 import javax.xml.namespace.QName;
 import javax.xml.stream.XMLEventReader;
 import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamWriter;
 import javax.xml.stream.events.XMLEvent;
@@ -72,16 +76,140 @@ public class ConnectionPoint {
 	public static final String ZIPFOLDER = "";
 	public static final String CONNEXT = ".cxml";
 	public static final String CONNAUTO = "autoconnect.csv"; 
+	public static final String CONNBIN = "ldrconn.bin";
 
+	// concurrent maps, connections can be computed by more threads (see ConnectionDBBuildTask)
 	private static Map<String,List<ConnectionPoint>> connectionsCache = 
-			new HashMap<String,List<ConnectionPoint>>();
+			new ConcurrentHashMap<String,List<ConnectionPoint>>();
+
+	/** connections split in lattices and single points, same keys of connectionsCache */
+	private static Map<String,ConnLattice.Split> splitCache = 
+			new ConcurrentHashMap<String,ConnLattice.Split>();
+
+	/** connections of sub-files, in sub-file local frame */
+	private static Map<String,ConnTemplate> templateCache = 
+			new ConcurrentHashMap<String,ConnTemplate>();
 
 	private static Set<String> autoConnSet = new TreeSet<String>();
 	
 	private static ZipFile connZip = null;
+	/** binary connection archive, preferred to cxml files of connection archive if up to date */
+	private static ConnArchive connBin = null;
 	
 
 	
+	/**
+	 * Connection points collected while walking a part
+	 * <p>
+	 * For every point keeps duplicate check flag, so a sub-file template
+	 * can be added to another part with same rules used for its points.
+	 * Duplicate check uses a hash of points by type and quantized base point,
+	 * built on first check.
+	 */
+	private static final class ConnTemplate {
+		
+		/** hash cell size, larger than duplicate tolerance so a duplicate is always in a near cell */
+		private static final double DUPCELL = 0.002;
+		
+		final List<ConnectionPoint> points = new ArrayList<ConnectionPoint>();
+		final BitSet check = new BitSet();
+		private Map<Long,List<ConnectionPoint>> dupIndex = null;
+		
+		
+		/**
+		 * Adds a connection point, if check is true and there is an
+		 * equal point of same type, point is discarded
+		 */
+		void add(ConnectionPoint cp, boolean dupCheck) {
+			
+			if (dupCheck) {
+				if (dupIndex == null) {
+					dupIndex = new HashMap<Long,List<ConnectionPoint>>();
+					for (ConnectionPoint p : points) {
+						index(p);
+					}
+				}
+				if (isDuplicated(cp)) {
+					return;
+				}
+				check.set(points.size());
+			}
+			points.add(cp);
+			if (dupIndex != null) {
+				index(cp);
+			}
+		}
+		
+		
+		private static long cell(float v) {
+			
+			return (long) Math.floor(v / DUPCELL);
+		}
+		
+		
+		private static Long key(ConnectionTypes t, long x, long y, long z) {
+			
+			long k = t == null ? -1 : t.getId();
+			k = k * 31 + x;
+			k = k * 1000003 + y;
+			k = k * 1000003 + z;
+			return Long.valueOf(k);
+		}
+		
+		
+		private void index(ConnectionPoint cp) {
+			
+			Long k = key(cp.c, cell(cp.p1.x), cell(cp.p1.y), cell(cp.p1.z));
+			List<ConnectionPoint> l = dupIndex.get(k);
+			if (l == null) {
+				l = new ArrayList<ConnectionPoint>(2);
+				dupIndex.put(k, l);
+			}
+			l.add(cp);
+		}
+		
+		
+		/**
+		 * Looks for duplicates in cells around point base, same tolerance as
+		 * {@link ConnectionPoint#isDuplicated(ConnectionPoint)}
+		 */
+		private boolean isDuplicated(ConnectionPoint cp) {
+			
+			long x = cell(cp.p1.x);
+			long y = cell(cp.p1.y);
+			long z = cell(cp.p1.z);
+			for (long i=x-1;i<=x+1;i++) {
+				for (long j=y-1;j<=y+1;j++) {
+					for (long k=z-1;k<=z+1;k++) {
+						List<ConnectionPoint> l = dupIndex.get(key(cp.c, i, j, k));
+						if (l == null) {
+							continue;
+						}
+						for (ConnectionPoint ch : l) {
+							if (cp.isDuplicated(ch)) {
+								return true;
+							}
+						}
+					}
+				}
+			}
+			return false;
+		}
+		
+		
+		/**
+		 * Adds all points of a sub-file template, transformed to this template frame
+		 */
+		void addAll(int partId, ConnTemplate t, Matrix3D m) {
+			
+			for (int i=0;i<t.points.size();i++) {
+				add(t.points.get(i).transform(partId, m), t.check.get(i));
+			}
+		}
+	}
+	
+	
+	
 	/*
 	 *  connection rules:
 	 *  
@@ -110,6 +238,47 @@ public class ConnectionPoint {
 		} catch (Exception e) {
 			// ignore if no flexpart file found
 		}
+		initBinary(new File(CONNZIP));
+	}
+	
+	
+	/**
+	 * Opens binary connection archive, if present and not older than connection archive
+	 * @param source connection archive binary file was converted from
+	 */
+	private static void initBinary(File source) {
+		
+		connBin = null;
+		File f = new File(CONNBIN);
+		if (f.isFile() && f.lastModified() < source.lastModified()) {
+			Logger.getGlobal().info("[ConnectionPoint] Binary connection archive is older than "+
+					source.getPath()+", ignored");
+		}
+		else if (f.isFile()) {
+			try {
+				connBin = new ConnArchive(f);
+			} catch (IOException e) {
+				Logger.getGlobal().log(Level.WARNING,"Unable to open binary connection archive, using cxml files",e);
+			}
+		}
+	}
+	
+	
+	/**
+	 * @return connection archive in use, or null if connections are read from folder
+	 */
+	static ZipFile getConnZip() {
+		
+		return connZip;
+	}
+	
+	
+	/**
+	 * @return binary connection archive in use, or null
+	 */
+	static ConnArchive getConnBin() {
+		
+		return connBin;
 	}
 	
 	
@@ -130,6 +299,8 @@ public class ConnectionPoint {
 		} catch (XMLStreamException e) {
 			Logger.getGlobal().log(Level.SEVERE,"Error init flex-part system",e);
 		}
+		// connection files are edited in folder, binary archive could be stale
+		connBin = null;
 	}
 	
 	
@@ -140,6 +311,7 @@ public class ConnectionPoint {
 	 */
 	public static void release() {
 
+		connBin = null;
 		if (connZip != null) {
 			try {
 				connZip.close();
@@ -320,7 +492,7 @@ public class ConnectionPoint {
 	
 	
 	
-	private static void extractConnections(int partId,List<ConnectionPoint> cp,Collection<LDPrimitive> pt, 
+	private static void extractConnections(int partId,ConnTemplate cp,Collection<LDPrimitive> pt, 
 			Matrix3D m, boolean invert) {
 
 		//System.out.println(pt);
@@ -347,7 +519,7 @@ public class ConnectionPoint {
 						cn.p1 = new Point3D(transform.transformPoint(cnp.p1.x, cnp.p1.y, cnp.p1.z));
 						cn.p2 = new Point3D(transform.transformPoint(cnp.p2.x, cnp.p2.y, cnp.p2.z));
 						cn.delta = new Point3D(-cn.p1.x,-cn.p1.y,-cn.p1.z);
-						cn.addConnection(cp, ConnectionTypes.needsDupCheck(part));
+						cp.add(cn, ConnectionTypes.needsDupCheck(part));
 					}
 					continue;
 				}
@@ -372,35 +544,15 @@ public class ConnectionPoint {
 				//System.out.println(p.getLdrawId()+" - "+filepart);  //DB
 				// if part connections isn't in cache
 				if (!connectionsCache.containsKey(filepart)) {
-					try {
-						// try first if a connection file exists
-						if (connZip != null) {
-							ZipEntry ze = connZip.getEntry(ZIPFOLDER+filepart+CONNEXT);
-							if (ze!= null) {
-								InputStream cf = connZip.getInputStream(ze);
-								connectionsCache.put(filepart,readFromFile(0, cf));
-							}
-						}
-						else {
-							File cf = new File(CONNFOLDER,filepart+CONNEXT);
-							if (cf.isFile() && cf.canRead()) {
-								InputStream cfis = new FileInputStream(cf);
-								connectionsCache.put(filepart,readFromFile(0, cfis));
-							}
-						}
-					} catch (XMLStreamException e) {
-						Logger.getGlobal().log(Level.SEVERE,"Error reading connection file: "+p.getLdrawId(),e);
-					} catch (IOException e) {
-						Logger.getGlobal().log(Level.SEVERE,"Error reading connection file: "+p.getLdrawId(),e);
-					}
+					readConnectionFile(filepart, p.getLdrawId());
 				}
 				if (connectionsCache.containsKey(filepart)) {
 					for (ConnectionPoint cpt: connectionsCache.get(filepart)) {
 						if (cpt.c.getName().equals("R_STUD")) {
-							cpt.transform(transform).addConnection(cp, true);
+							cp.add(cpt.transform(partId, transform), true);
 						}
 						else {
-							cpt.transform(transform).addConnection(cp, false);
+							cp.add(cpt.transform(partId, transform), false);
 						}
 					}
 					continue;
@@ -837,10 +989,9 @@ public class ConnectionPoint {
 //					cn.addConnection(cp, false);
 //					continue;
 //				}
-				LDrawPart ldpt = LDrawPart.getPart(p.getLdrawId());
-				if (ldpt != null) { 
-					extractConnections(partId,cp,ldpt.getPrimitives(), 
-							transform, p.isInvert()^invert);
+				ConnTemplate sub = getTemplate(p.getLdrawId());
+				if (sub != null) { 
+					cp.addAll(partId, sub, transform);
 				}
 				break;
 			default:
@@ -853,35 +1004,62 @@ public class ConnectionPoint {
 	
 	
 	
-	private void addConnection(List<ConnectionPoint> cp, boolean check) {
+	/**
+	 * Connection template for a sub-file, computed once and cached.
+	 * Template is in sub-file local frame, sub-files referenced by sub-file
+	 * are composed from their own templates.
+	 * @param ldrawId sub-file to get connections for
+	 * @return template or null if sub-file can't be found
+	 */
+	private static ConnTemplate getTemplate(String ldrawId) {
 		
-		//System.out.println("Called: "+check+"-"+c+"-"+p1);  // DB
-		if (check) {
-			// checks if duplicated
-			for (ConnectionPoint ch : cp) {
-				if (ch.c != c)		// different connection type 
-					continue;
-				//System.out.println(Math.abs(p1.y-ch.p1.y)+" - "+Math.abs(p1.y-ch.p1.y));
-				if (Math.abs(p1.x-ch.p1.x) < 0.001 &&
-						Math.abs(p1.y-ch.p1.y) < 0.001 &&
-						Math.abs(p1.z-ch.p1.z) < 0.001 &&
-						Math.abs(p2.x-ch.p2.x) < 0.001 &&
-						Math.abs(p2.y-ch.p2.y) < 0.001 &&
-						Math.abs(p2.z-ch.p2.z) < 0.001) {
-					// it is a duplicated connection point
-					//System.out.println("Duplicated! x1=" + p1.x+" y1="+p1.y+" z1="+p1.z+" id="+ch.id);
-					return;
-				}
-			}
+		String key = ldrawId.toLowerCase();
+		ConnTemplate t = templateCache.get(key);
+		if (t != null) {
+			return t;
 		}
-		cp.add(this);
+		LDrawPart ldpt = LDrawPart.getPart(ldrawId);
+		if (ldpt == null) {
+			return null;
+		}
+		t = new ConnTemplate();
+		extractConnections(0, t, ldpt.getPrimitives(), new Matrix3D(), false);
+		templateCache.put(key, t);
+		return t;
+	}
+	
+	
+	
+	/**
+	 * true if connection point ch has same type and same position of this
+	 */
+	private boolean isDuplicated(ConnectionPoint ch) {
+		
+		if (ch.c != c)		// different connection type 
+			return false;
+		//System.out.println(Math.abs(p1.y-ch.p1.y)+" - "+Math.abs(p1.y-ch.p1.y));
+		// it is a duplicated connection point
+		//System.out.println("Duplicated! x1=" + p1.x+" y1="+p1.y+" z1="+p1.z+" id="+ch.id);
+		return Math.abs(p1.x-ch.p1.x) < 0.001 &&
+				Math.abs(p1.y-ch.p1.y) < 0.001 &&
+				Math.abs(p1.z-ch.p1.z) < 0.001 &&
+				Math.abs(p2.x-ch.p2.x) < 0.001 &&
+				Math.abs(p2.y-ch.p2.y) < 0.001 &&
+				Math.abs(p2.z-ch.p2.z) < 0.001;
 	}
 	
 	
 	
 	public ConnectionPoint transform(Matrix3D m) {
 		
-		ConnectionPoint cp = new ConnectionPoint(getPartId());
+		return transform(getPartId(), m);
+	}
+	
+	
+	
+	ConnectionPoint transform(int partId, Matrix3D m) {
+		
+		ConnectionPoint cp = new ConnectionPoint(partId);
 		cp.c = c;
 		cp.p1 = p1.transform(m);
 		cp.p2 = p2.transform(m);
@@ -895,6 +1073,71 @@ public class ConnectionPoint {
 	
 	
 	
+	/** floats used by a connection point in a packed array */
+	static final int PACKSIZE = 9;
+	
+	
+	/**
+	 * Stores p1, p2 and delta in a packed array
+	 */
+	void pack(float[] buf, int pos) {
+		
+		buf[pos] = p1.x;
+		buf[pos+1] = p1.y;
+		buf[pos+2] = p1.z;
+		buf[pos+3] = p2.x;
+		buf[pos+4] = p2.y;
+		buf[pos+5] = p2.z;
+		buf[pos+6] = delta.x;
+		buf[pos+7] = delta.y;
+		buf[pos+8] = delta.z;
+	}
+	
+	
+	/**
+	 * Creates a connection point of same type and part from a packed array
+	 */
+	ConnectionPoint unpack(float[] buf, int pos) {
+		
+		ConnectionPoint cp = new ConnectionPoint(partId);
+		cp.c = c;
+		cp.p1 = new Point3D(buf[pos], buf[pos+1], buf[pos+2]);
+		cp.p2 = new Point3D(buf[pos+3], buf[pos+4], buf[pos+5]);
+		cp.delta = new Point3D(buf[pos+6], buf[pos+7], buf[pos+8]);
+		return cp;
+	}
+	
+	
+	/**
+	 * Transforms packed connection points in place: p1 and p2 with full transformation,
+	 * delta with rotation only, as in {@link #transform(Matrix3D)}
+	 * @param buf packed connection points
+	 * @param count number of connection points
+	 * @param m transformation
+	 */
+	static void transformPacked(float[] buf, int count, Matrix3D m) {
+		
+		float a = m.getA(), b = m.getB(), c = m.getC();
+		float d = m.getD(), e = m.getE(), f = m.getF();
+		float g = m.getG(), h = m.getH(), i = m.getI();
+		float x = m.getX(), y = m.getY(), z = m.getZ();
+		int end = count*PACKSIZE;
+		for (int p=0;p<end;p+=3) {
+			float px = buf[p], py = buf[p+1], pz = buf[p+2];
+			buf[p] = a*px + b*py + c*pz;
+			buf[p+1] = d*px + e*py + f*pz;
+			buf[p+2] = g*px + h*py + i*pz;
+			if ((p % PACKSIZE) != 6) {
+				// points, delta is a vector
+				buf[p] += x;
+				buf[p+1] += y;
+				buf[p+2] += z;
+			}
+		}
+	}
+	
+	
+	
 	public ConnectionPoint fastMove(Point3D pos) {
 		
 		ConnectionPoint cp = new ConnectionPoint(getPartId());
@@ -1004,12 +1247,100 @@ public class ConnectionPoint {
 	
 	private static List<ConnectionPoint> computeConnectionPoints(LDPrimitive pt) {
 		
-		ArrayList<ConnectionPoint> cp = new ArrayList<ConnectionPoint>();
+		ConnTemplate cp = new ConnTemplate();
 		//System.out.println(pt.getLdrawid()+" - "+pt.getPartType()+" - "+pt.getPrimitives().size());
 		extractConnections(pt.getId(),cp, pt.getPrimitives(), /*new Matrix3D()*/pt.getTransformation(), false);
 		//detectConnections(pt.getLdrawid(), cp, new Matrix3D());
 		//System.out.println(cp); // DB
-		return cp;
+		return cp.points;
+	}
+	
+	
+	
+	/**
+	 * Computes connection points for a part using autodetection from primitives,
+	 * without reading or updating connection cache for the part itself.
+	 * Can be called from more threads.
+	 * @param ldrawId part to detect connections for
+	 * @return connections in part local frame, or null if part can't be found or is empty
+	 */
+	static List<ConnectionPoint> detectConnections(String ldrawId) {
+		
+		LDrawPart ldp = LDrawPart.getPart(ldrawId);
+		if (ldp == null || ldp.getPrimitives().size() == 0) {
+			return null;
+		}
+		return computeConnectionPoints(LDPrimitive.getDummyPart(ldrawId));
+	}
+	
+	
+	
+	/**
+	 * Writes connections as a cxml document, readable with {@link #readFromFile(int, InputStream)}
+	 * <p>
+	 * Stream isn't closed.
+	 * @param os stream to write to
+	 * @param connections connection points to write
+	 * @throws XMLStreamException
+	 */
+	public static void writeToFile(OutputStream os, Collection<ConnectionPoint> connections) throws XMLStreamException {
+		
+		XMLStreamWriter xsw = XMLOutputFactory.newInstance().createXMLStreamWriter(os, "UTF-8");
+		xsw.writeStartDocument("UTF-8", "1.0");
+		xsw.writeCharacters("\n");
+		xsw.writeStartElement("connections");
+		xsw.writeCharacters("\n");
+		for (ConnectionPoint cp : connections) {
+			cp.XMLWrite(xsw);
+		}
+		xsw.writeEndElement();
+		xsw.writeEndDocument();
+		xsw.flush();
+		xsw.close();
+	}
+	
+	
+	
+	/**
+	 * Reads connections for a part from binary archive or from cxml file
+	 * and puts them in cache
+	 * @param filepart connection file name, without extension
+	 * @param ldrawId part id, for error messages
+	 * @return true if connections for part were found
+	 */
+	private static boolean readConnectionFile(String filepart, String ldrawId) {
+		
+		try {
+			// binary archive first, then connection file
+			if (connBin != null) {
+				List<ConnectionPoint> l = connBin.getConnections(filepart);
+				if (l != null) {
+					connectionsCache.put(filepart, l);
+					return true;
+				}
+			}
+			if (connZip != null) {
+				ZipEntry ze = connZip.getEntry(ZIPFOLDER+filepart+CONNEXT);
+				if (ze!= null) {
+					InputStream cf = connZip.getInputStream(ze);
+					connectionsCache.put(filepart,readFromFile(0, cf));
+					return true;
+				}
+			}
+			else {
+				File cf = new File(CONNFOLDER,filepart+CONNEXT);
+				if (cf.isFile() && cf.canRead()) {
+					InputStream cfis = new FileInputStream(cf);
+					connectionsCache.put(filepart,readFromFile(0, cfis));
+					return true;
+				}
+			}
+		} catch (XMLStreamException e) {
+			Logger.getGlobal().log(Level.SEVERE,"Error reading connection file: "+ldrawId,e);
+		} catch (IOException e) {
+			Logger.getGlobal().log(Level.WARNING,"Error reading connection file: "+ldrawId,e);
+		}
+		return false;
 	}
 	
 	
@@ -1039,6 +1370,9 @@ public class ConnectionPoint {
 //				filepart = ldrid.toLowerCase();
 //			}
 //		}
+		if (connBin != null && connBin.contains(filepart)) {
+			return true;
+		}
 		if (connZip != null) {
 			ZipEntry ze = connZip.getEntry(ZIPFOLDER+filepart+CONNEXT);
 			return ze!= null;
@@ -1081,13 +1415,12 @@ public class ConnectionPoint {
 	
 	
 	/**
-	 * Computes connection points for a primitive as a part
-	 * @param p
+	 * Loads connections for a part in cache, from connection files or by autodetection
+	 * @param p part reference
+	 * @return connection cache key for part
 	 */
-	public static ConnectionPoint[] getConnections(LDPrimitive p) {
+	private static String loadConnections(LDPrimitive p) {
 		
-		if (p.getType() != LDrawCommand.REFERENCE)
-			return new ConnectionPoint[0];
 		String filepart;
 		if (ConnectionTypes.getPrimitiveConns(p.getLdrawId()) != null) {
 			// it is a primitive with ".dat" extension. To avoid false detect we put a 
@@ -1115,30 +1448,7 @@ public class ConnectionPoint {
 		//System.out.println(p.getLdrawId()+" - "+filepart);  //DB
 		// if part connections isn't in cache
 		if (!connectionsCache.containsKey(filepart)) {
-			boolean found = false;
-			try {
-				// try first if a connection file exists
-				if (connZip != null) {
-					ZipEntry ze = connZip.getEntry(ZIPFOLDER+filepart+CONNEXT);
-					if (ze!= null) {
-						InputStream cf = connZip.getInputStream(ze);
-						connectionsCache.put(filepart,readFromFile(0, cf));
-						found = true;
-					}
-				}
-				else {
-					File cf = new File(CONNFOLDER,filepart+CONNEXT);
-					if (cf.isFile() && cf.canRead()) {
-						InputStream cfis = new FileInputStream(cf);
-						connectionsCache.put(filepart,readFromFile(0, cfis));
-						found = true;
-					}
-				}
-			} catch (XMLStreamException e) {
-				Logger.getGlobal().log(Level.SEVERE,"Error reading connection file: "+p.getLdrawId(),e);
-			} catch (IOException e) {
-				Logger.getGlobal().log(Level.WARNING,"Error reading connection file: "+p.getLdrawId(),e);
-			}
+			boolean found = readConnectionFile(filepart, p.getLdrawId());
 			// if no file were found
 			if (!found) {
 				// try detect connections from primitives
@@ -1153,6 +1463,20 @@ public class ConnectionPoint {
 				}
 			}
 		}
+		return filepart;
+	}
+	
+	
+	
+	/**
+	 * Computes connection points for a primitive as a part
+	 * @param p
+	 */
+	public static ConnectionPoint[] getConnections(LDPrimitive p) {
+		
+		if (p.getType() != LDrawCommand.REFERENCE)
+			return new ConnectionPoint[0];
+		String filepart = loadConnections(p);
 		// System.out.println("Req: "+filepart);    // DB
 		List<ConnectionPoint> lcp = connectionsCache.get(filepart);
 		ConnectionPoint[] listCp;
@@ -1177,11 +1501,45 @@ public class ConnectionPoint {
 	
 	
 	
+	/**
+	 * Computes connections for a primitive as a part, with regular grids of
+	 * connection points as lattices
+	 * @param p part reference
+	 * @param singles list where single connection points are added
+	 * @param lattices list where lattices are added
+	 */
+	static void getConnectionGroups(LDPrimitive p, List<ConnectionPoint> singles, List<ConnLattice> lattices) {
+		
+		if (p.getType() != LDrawCommand.REFERENCE)
+			return;
+		String filepart = loadConnections(p);
+		ConnLattice.Split split = splitCache.get(filepart);
+		if (split == null) {
+			List<ConnectionPoint> lcp = connectionsCache.get(filepart);
+			if (lcp == null) {
+				return;
+			}
+			split = ConnLattice.split(lcp);
+			splitCache.put(filepart, split);
+		}
+		for (ConnectionPoint cp: split.singles) {
+			singles.add(cp.getClone(p.getId()).transform(p.getTransformation()));
+		}
+		for (ConnLattice l: split.lattices) {
+			lattices.add(l.transform(p.getId(), p.getTransformation()));
+		}
+	}
+	
+	
+	
 	static void removeFromCache(String ldrawId) {
 		
 		if (connectionsCache.containsKey(ldrawId)) {
 			connectionsCache.remove(ldrawId);
 		}
+		splitCache.remove(ldrawId);
+		// templates of parts that use this sub-file are stale too
+		templateCache.clear();
 	}
 	
 	
@@ -1190,6 +1548,26 @@ public class ConnectionPoint {
 	public static void clearCache() {
 		
 		connectionsCache.clear();
+		templateCache.clear();
+		splitCache.clear();
+	}
+	
+	
+	
+	/**
+	 * Creates a connection point in part local frame
+	 * @param t connection type
+	 * @param p1 base point
+	 * @param p2 direction point
+	 */
+	static ConnectionPoint newLocalPoint(ConnectionTypes t, Point3D p1, Point3D p2) {
+		
+		ConnectionPoint cp = new ConnectionPoint(0);
+		cp.c = t;
+		cp.p1 = p1;
+		cp.p2 = p2;
+		cp.delta = new Point3D(-p1.x,-p1.y,-p1.z);
+		return cp;
 	}
 	
 	
@@ -21,11 +21,21 @@
 package bricksnspace.ldrawlib;
 
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileReader;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.LineNumberReader;
-import java.util.logging.Logger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import javax.swing.SwingWorker;
 
@@ -45,6 +55,7 @@ public class ImportLDrawProjectTask extends SwingWorker<Integer, Void> {
 //	private String internalLog = "";		// internal log for errors and warnings
 	private boolean warnings = false;
 	private boolean isMpd;
+	private final LDrawDiagnostics diagnostics = new LDrawDiagnostics();
 
 	
 	public ImportLDrawProjectTask(File dat) {
@@ -69,6 +80,38 @@ public class ImportLDrawProjectTask extends SwingWorker<Integer, Void> {
 	}
 
 
+	/**
+	 * @return problems found in imported file and sub-files
+	 */
+	public LDrawDiagnostics getDiagnostics() {
+		return diagnostics;
+	}
+
+
+	/**
+	 * Reports a problem found while importing
+	 */
+	private void problem(String file, int lineNo, LDrawParseError code, String line, String message) {
+		
+		warnings = true;
+		diagnostics.report(file, lineNo, code, line, message);
+	}
+
+
+	/**
+	 * Reports problems found by a lenient scanner, if any
+	 */
+	private void scanProblem(String file, int lineNo, LDrawLineScanner sc, String line) {
+		
+		if (sc.getError() != null) {
+			problem(file, lineNo, sc.getError(), line, null);
+		}
+		else if (sc.getWarning() != null) {
+			problem(file, lineNo, sc.getWarning(), line, null);
+		}
+	}
+
+
 //	public String getInternalLog() {
 //		return internalLog;
 //	}
@@ -86,324 +129,315 @@ public class ImportLDrawProjectTask extends SwingWorker<Integer, Void> {
 	
 
 	
+	/**
+	 * Input stream that counts bytes read, used for progress
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+
+		private long count = 0;
+		
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+		
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) count++;
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) count += n;
+			return n;
+		}
+		
+		@Override
+		public long skip(long n) throws IOException {
+			long s = super.skip(n);
+			count += s;
+			return s;
+		}
+		
+		long getCount() {
+			return count;
+		}
+	}
+	
+	
+	
+	/**
+	 * A reference to a part or submodel not yet defined when read
+	 */
+	private static class PendingRef {
+		
+		final LDrawPart model;
+		final LDPrimitive ref;
+		final int lineNo;
+		
+		PendingRef(LDrawPart model, LDPrimitive ref, int lineNo) {
+			this.model = model;
+			this.ref = ref;
+			this.lineNo = lineNo;
+		}
+	}
+	
+	
+	
+	/**
+	 * A warning found while parsing, logged in line order when all blocks are parsed
+	 */
+	private static class Warning {
+		
+		final int lineNo;
+		final LDrawParseError code;
+		final String line;
+		final String message;
+		
+		Warning(int lineNo, LDrawParseError code, String line, String message) {
+			this.lineNo = lineNo;
+			this.code = code;
+			this.line = line;
+			this.message = message;
+		}
+	}
+	
+	
+	
+	/**
+	 * A FILE..NOFILE block of an MPD, parsed independently from other blocks
+	 */
+	private static class MpdBlock {
+		
+		final LDrawPart model;
+		final int firstLine;		// line number of first line after FILE
+		List<String> lines = new ArrayList<String>();
+		int lineCount = 0;
+		int count = 0;
+		final List<PendingRef> refs = new ArrayList<PendingRef>();
+		final List<Warning> log = new ArrayList<Warning>();
+		
+		MpdBlock(LDrawPart model, int firstLine) {
+			this.model = model;
+			this.firstLine = firstLine;
+		}
+	}
+	
+	
+	
+	/**
+	 * Parses a range of blocks, splitting it in halves until a single block is left
+	 */
+	private class BlockTask extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		private final List<MpdBlock> blocks;
+		private final int from;
+		private final int to;
+		
+		BlockTask(List<MpdBlock> blocks, int from, int to) {
+			this.blocks = blocks;
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		protected void compute() {
+			if (to - from == 1) {
+				parseBlock(blocks.get(from));
+				blockDone(blocks.get(from));
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new BlockTask(blocks, from, mid), new BlockTask(blocks, mid, to));
+		}
+	}
+	
+	
+	
+	/** chars checked while reading to find if file is an MPD, longer files need another pass */
+	private static final int MPDPEEKLIMIT = 65536;
+	
+	/** smaller MPD files are parsed in a single thread */
+	private static final int PARALLELMINLINES = 5000;
+	
+	private static boolean parallelMpd = true;
+	
+	// lines parsed, for progress
+	private int parsedLines;
+	private int totalLines;
+	
+	
+	
+	/**
+	 * Enables parsing of MPD blocks in parallel, on by default. 
+	 * Result is the same, parallel parsing is faster for files with many sub-models.
+	 */
+	public static void setParallelMpd(boolean parallel) {
+		
+		parallelMpd = parallel;
+	}
+	
+	
+	
+	public static boolean isParallelMpd() {
+		
+		return parallelMpd;
+	}
+	
+	
+	
+	/**
+	 * Checks if file is in MPD format, looking for a FILE command in first
+	 * {@link #MPDPEEKLIMIT} chars. If file is longer and FILE isn't found,
+	 * rest of file is checked in another pass. Reader position is left unchanged.
+	 * @param lnr reader at start of file
+	 * @return true if file is MPD
+	 * @throws IOException
+	 */
+	private boolean checkMpd(LineNumberReader lnr) throws IOException {
+		
+		char[] buf = new char[MPDPEEKLIMIT];
+		int n = 0, r;
+		
+		// never read more than mark limit, so reset is always valid
+		lnr.mark(MPDPEEKLIMIT);
+		while (n < buf.length && (r = lnr.read(buf, n, buf.length-n)) > 0) {
+			n += r;
+		}
+		lnr.reset();
+		lnr.setLineNumber(0);
+		boolean full = n == buf.length;
+		int start = 0;
+		for (int i=0;i<=n;i++) {
+			if (i < n && buf[i] != '\n' && buf[i] != '\r') {
+				continue;
+			}
+			if (i == n && full) {
+				// last line is truncated, checked in full scan
+				break;
+			}
+			// FILE can follow a description or other header lines
+			if (LDrawParser.parseCommand(new String(buf, start, i-start)) == LDrawCommand.MPDFILE) {
+				return true;
+			}
+			start = i+1;
+		}
+		return full && checkMpdFile();
+	}
+	
+	
+	
+	/**
+	 * Looks for a FILE command in whole file, reading it again from start
+	 * @return true if file is MPD
+	 * @throws IOException
+	 */
+	private boolean checkMpdFile() throws IOException {
+		
+		LineNumberReader lnr = new LineNumberReader(new InputStreamReader(
+				skipBom(new FileInputStream(ldr))));
+		String line;
+		try {
+			while ((line = lnr.readLine()) != null) {
+				if (LDrawParser.parseCommand(line) == LDrawCommand.MPDFILE) {
+					return true;
+				}
+			}
+		}
+		finally {
+			lnr.close();
+		}
+		return false;
+	}
+	
+	
+	
+	/**
+	 * Skips UTF-8 byte order mark, written by some editors at start of file
+	 * @param in stream at start of file
+	 * @return stream positioned after byte order mark, if any
+	 * @throws IOException
+	 */
+	private static InputStream skipBom(InputStream in) throws IOException {
+		
+		InputStream b = new BufferedInputStream(in);
+		b.mark(3);
+		if (b.read() != 0xef || b.read() != 0xbb || b.read() != 0xbf) {
+			b.reset();
+		}
+		return b;
+	}
+	
+	
+	
+	/**
+	 * Sets progress from bytes read
+	 * @param max progress when whole file is read
+	 */
+	private void updateProgress(CountingInputStream in, long total, int max) {
+		
+		setProgress((int) Math.min(max, in.getCount()*max/total));
+	}
+	
+	
+	
 	@Override
 	protected Integer doInBackground() throws IOException {
 		
 		int count=0;
-		String modelDir,part;
-		LDrawPart currModel = null;
+		String modelDir;
 		LDPrimitive p = null;
 		//LDrawPartType partType;
 		
-		LineNumberReader lnr = new LineNumberReader(new FileReader(ldr));
+		// file is read only once, progress is based on bytes read
+		long total = Math.max(1, ldr.length());
+		CountingInputStream cis = new CountingInputStream(new FileInputStream(ldr));
+		LineNumberReader lnr = new LineNumberReader(new InputStreamReader(skipBom(cis)));
 		String line;
-		int lineNo = 0;
-		while ((line = lnr.readLine()) != null) {
-			lineNo++;
-		}
-		lnr.close();
-		// we cheats about complete
-		lineNo += 10;
 		setProgress(0);
-		isMpd = false;
+		diagnostics.clear();
 		modelDir = ldr.getParent();
-		lnr = new LineNumberReader(new FileReader(ldr));
-		while ((line = lnr.readLine()) != null) {
-			LDrawCommand type = LDrawParser.parseCommand(line);
-			if (type == LDrawCommand.MPDFILE) {
-				isMpd = true;
-				break;
-			}
-		}
-		lnr.close();
-		lnr = new LineNumberReader(new FileReader(ldr));
-		boolean isFirstModel = true;
-		boolean isMainModel = false;
-		boolean isSubModel = false;
+		isMpd = checkMpd(lnr);
 		if (isMpd) {
-			// gets all sub-model and custom part in MPD
-			// and save as LDrawCustomPart
-			boolean firstLine = false;
-			boolean isSkip = false;
-			//partType = LDrawPartType.UNKNOWN;
-			while ((line = lnr.readLine()) != null) {
-				LDrawCommand type = LDrawParser.parseCommand(line);
-				if (isSkip && type != LDrawCommand.MPDFILE && type != LDrawCommand.MPDNOFILE) {
-					continue;
-				}
-				if (!isMainModel && !isSubModel &&
-						type != LDrawCommand.MPDFILE && type != LDrawCommand.MPDNOFILE) {
-					warnings = true;
-					Logger.getGlobal().warning("[" +ldr.getName() + "] line# "+ lnr.getLineNumber() +  "> " + 
-                   			"Invalid MPD file format: primitive or command outside FILE..NOFILE block:\n"+line );
-					continue;
-				}
-				try {
-					switch (type) {
-					case MPDFILE:
-						// if a new FILE command is found without NOFILE first...
-						if (isMainModel) {
-							mainModel = currModel;
-						}
-						isMainModel = false;
-						isSubModel = false;
-						isSkip = false;
-						part = LDrawParser.parseMpdFile(line);
-	                    if (isFirstModel) {
-	                    	isFirstModel = false;
-	                    	isMainModel = true;
-	                    }
-	                    else {
-	                    	isSubModel = true;
-	                    }
-	                    if (LDrawPart.existsCustomPart(part)) {
-	                        //------------------- duplicate submodel name
-	    					warnings = true;
-	    					Logger.getGlobal().warning("[" +ldr.getName() + "] line# "+ lnr.getLineNumber() +  "> " +  
-	                    			"Duplicate name '" + part + "' in MPD");
-	                    }
-	                    // avoid overwriting of internal use parts
-	                    if (!LDrawPart.existsInternalUsePart(part)) {
-	                    	//System.out.println("create: "+part);   // DB
-	                    	currModel = LDrawPart.newCustomPart(part);
-	                    	if (isFirstModel) {
-	                    		currModel.setPartType(LDrawPartType.MODEL);
-	                    	}
-	                    	else {
-	                    		currModel.setPartType(LDrawPartType.SUBMODEL);
-	                    	}
-	                    }
-	                    else {
-	                    	isSubModel = false;
-	                    	isMainModel = false;
-	                    	isSkip = true;
-	                    }
-	                    firstLine = true;
-	                    break;
-					case MPDNOFILE:
-						if (!isSubModel && !isMainModel && ! isSkip) {
-							warnings = true;
-							Logger.getGlobal().warning("[" +ldr.getName() + "] line# "+ lnr.getLineNumber() +  "> " +  
-	                    			"Displaced 'NOFILE' in MPD");   
-						}
-						if (!isSkip && isMainModel) {
-							mainModel = currModel;
-						} 
-						isMainModel = false;
-						isSubModel = false;
-						isSkip = false;
-						break;
-					case FILETYPE:
-						currModel.setPartType(LDrawParser.parsePartType(line));
-						currModel.setPartTypeString(line);
-						break;
-					case AUTHOR:
-						currModel.setAuthor(LDrawParser.parseAuthor(line));
-						break;
-					case NAME:
-						currModel.setPartName(LDrawParser.parsePartName(line));
-						break;
-					case TRIANGLE:
-					case LINE:
-					case AUXLINE:
-					case QUAD:
-					case COMMENT:
-					case EMPTY:
-						break;
-					case META_UNKNOWN:
-						if (firstLine) {
-							currModel.setDescription(LDrawParser.parseDescription(line));
-							firstLine = false;
-						}
-						break;
-					default:
-						break;
-					}
-				}
-				catch (IllegalArgumentException exc) {
-					warnings = true;
-					Logger.getGlobal().warning("[" +ldr.getName() + "] line# "+ lnr.getLineNumber() +  "> " + 
-							exc.getLocalizedMessage());
-				}
+			// sub-models and custom parts in MPD are saved as LDrawCustomPart
+			// file is split in FILE blocks in a single scan, blocks are parsed in parallel
+			List<Warning> log = new ArrayList<Warning>();
+			List<MpdBlock> blocks = splitMpd(lnr, cis, total, log);
+			parseBlocks(blocks);
+			for (MpdBlock b : blocks) {
+				log.addAll(b.log);
+				count += b.count;
 			}
-			lnr.close();
-			// id an MPD file has no "NOFILE" and only one model
-			if (isMainModel) {
-				mainModel = currModel;
-			} 
-			lnr = new LineNumberReader(new FileReader(ldr));
-			// now read model file
-			isSubModel = false;
-			isFirstModel = true;
-			isMainModel = false;
-			boolean isClockWise = false;
-			boolean invNext = false;
-			isSkip = false;
-			firstLine = false;
-			//partType = LDrawPartType.UNKNOWN;
-			while ((line = lnr.readLine()) != null) {
-				setProgress(lnr.getLineNumber()*100/lineNo);
-				LDrawCommand type = LDrawParser.parseCommand(line);
-				if (isSkip && type != LDrawCommand.MPDFILE && type != LDrawCommand.MPDNOFILE) {
-					continue;
-				}
-				if (!isMainModel && !isSubModel &&
-						type != LDrawCommand.MPDFILE && type != LDrawCommand.MPDNOFILE) {
-					warnings = true;
-					Logger.getGlobal().warning("[" +ldr.getName() + "] line# "+ lnr.getLineNumber() +  "> " + 
-							"Invalid MPD file format: primitive or command outside FILE..NOFILE block:\n"+line );
-					continue;
+			// same order as sequential parsing, sort is stable
+			Collections.sort(log, new Comparator<Warning>() {
+				@Override
+				public int compare(Warning a, Warning b) {
+					return a.lineNo < b.lineNo ? -1 : (a.lineNo == b.lineNo ? 0 : 1);
 				}
-				//System.out.println(type + "-"+line);
-				try {
-					switch (type) {
-					case MPDFILE:
-						// in case FILE command is found without NOFILE first
-	                    if (isSubModel) {
-	                        //--------- we are in submodel, close and prepare next submodel
-	                        isSubModel = false;
-	                        isSkip = false;
-	                        if (isMainModel) {
-	                        	// end loading main model
-	                        	isMainModel = false;
-	                        }
-	                    }
-						isClockWise = false;
-						invNext = false;
-						part = LDrawParser.parseMpdFile(line);
-						//System.out.println(part);
-	                    isSubModel = true;
-	                    if (isFirstModel) {
-	                    	isFirstModel = false;
-	                    	isMainModel = true;
-	                    }
-                    	if (!LDrawPart.existsInternalUsePart(part)) {
-                    		currModel = LDrawPart.getCustomPart(part);
-                    	}
-                    	else {
-                    		isMainModel = false;
-                    		isSubModel = false;
-                    		isSkip = true;
-                    	}
-	                    firstLine = true;
-	                    break;
-					case MPDNOFILE:
-						isSkip = false;
-	                    if (isSubModel) {
-	                        //--------- we are in submodel, close and prepare next submodel
-	                        isSubModel = false;
-	                        if (isMainModel) {
-	                        	// end loading main model
-	                        	isMainModel = false;
-	                        }
-	                    }
-	                    break;  // no parts alone admitted in MPD files, so we are always in submodel
-					case KEYWORDS:
-						p = LDPrimitive.newKeywords(LDrawParser.parseKeywords(line));
-                   		currModel.addPart(p);
-                    	break;						
-					case CATEGORY:
-						p = LDPrimitive.newCategory(LDrawParser.parseCategory(line));
-                   		currModel.addPart(p);
-                    	break;						
-					case COMMENT:
-						p = LDPrimitive.newComment(line);
-                    	currModel.addPart(p);
-                    	break;
-					case LICENSE:
-						currModel.setLicense(line);
-						break;
-					case HISTORY:
-						p = LDPrimitive.newHistory(line);
-                    	currModel.addPart(p);
-                    	break;						
-					case EMPTY:
-						p = LDPrimitive.newEmpty();
-                   		currModel.addPart(p);
-                    	break;
-					case COLOUR:
-						currModel.addPart(
-									LDPrimitive.newColour(LDrawParser.parseColour(line),line));
-						break;
-					case META_UNKNOWN:
-						if (firstLine) {
-							firstLine = false;
-							break;
-						}
-						p = LDPrimitive.newMetaUnk(LDrawParser.parseMetaUnk(line));
-                    	currModel.addPart(p);
-                    	break;						
-					case STEP:
-						if (! currModel.isStepReady()) currModel.initStep();
-                    	currModel.nextStep();
-                    	break;
-					case BFC_CCW:
-						p = LDPrimitive.newBfcCcw();
-                    	currModel.addPart(p);
-						isClockWise = false;
-						break;
-					case BFC_CW:
-						p = LDPrimitive.newBfcCw();
-                   		currModel.addPart(p);
-						isClockWise = true;
-						break;
-					case BFC_INVERTNEXT:
-						p = LDPrimitive.newBfcInvertnext();
-                   		currModel.addPart(p);
-						invNext = true;
-						break;
-					case REFERENCE:
-						p = LDrawParser.parseLineType1(line,invNext);
-						invNext = false;
-	                    if (LDrawPart.existsPart(p.getLdrawId())) {
-    						//System.out.println("MainModel - " +p);
-                    		// add to main model
-                    		currModel.addPart(p);
-	                    	count++;
-	                    }
-	                    else {
-	    					warnings = true;
-	    					Logger.getGlobal().warning("[" +ldr.getName() + "] line# "+ lnr.getLineNumber() +  "> " +  
-	    							"Unknown submodel or part: "+p.getLdrawId());
-	                    }
-						break;
-					case TRIANGLE: 
-						p = LDrawParser.parseLineType3(line,isClockWise);
-                   		// add to model
-                   		currModel.addPart(p);
-                    	count++;
-                    	break;
-					case AUXLINE:
-						p = LDrawParser.parseLineType5(line);
-                   		// add to model
-                   		currModel.addPart(p);
-                    	count++;
-						break;
-					case LINE:
-						p = LDrawParser.parseLineType2(line);
-                   		// add to model
-                   		currModel.addPart(p);
-                    	count++;
-						break;
-					case QUAD:
-						p = LDrawParser.parseLineType4(line,isClockWise);
-                   		// add to model
-                   		currModel.addPart(p);
-                    	count++;
-						break;
-					default:
-						break;
+			});
+			for (Warning w : log) {
+				problem(ldr.getName(), w.lineNo, w.code, w.line, w.message);
+			}
+			// now all sub-models are known, remove references to missing parts
+			for (MpdBlock b : blocks) {
+				for (PendingRef r : b.refs) {
+					if (!LDrawPart.existsPart(r.ref.getLdrawId())) {
+						problem(ldr.getName(), r.lineNo, LDrawParseError.UNKNOWN_PART, null, 
+								"Unknown submodel or part: "+r.ref.getLdrawId());
+						r.model.delPart(r.ref);
+						count--;
 					}
 				}
-				catch (IllegalArgumentException exc) {
-					warnings = true;
-					Logger.getGlobal().warning("[" +ldr.getName() + "] line# "+ lnr.getLineNumber() +  "> " + exc.getLocalizedMessage());
-				}
 			}
 			// recalc connections... yes.
-			for (LDPrimitive prim: mainModel.getPrimitives()) {
-				if (LDrawPart.existsCustomPart(prim.getLdrawId())) {
-					prim.recalcConnPoints();
+			if (mainModel != null) {
+				for (LDPrimitive prim: mainModel.getPrimitives()) {
+					if (LDrawPart.existsCustomPart(prim.getLdrawId())) {
+						prim.recalcConnPoints();
+					}
 				}
 			}
 		}
@@ -415,8 +449,10 @@ public class ImportLDrawProjectTask extends SwingWorker<Integer, Void> {
 			boolean firstLine = true;
 			while ((line = lnr.readLine()) != null) {
 				//System.out.println(line);
-				setProgress(lnr.getLineNumber()*100/lineNo);
+				updateProgress(cis, total, 100);
 				LDrawCommand type = LDrawParser.parseCommand(line);
+				// geometry lines are parsed without exceptions
+				LDrawLineScanner sc = null;
 				try {
 					switch (type) {
 					case STEP:
@@ -442,15 +478,16 @@ public class ImportLDrawProjectTask extends SwingWorker<Integer, Void> {
 						invNext = true;
 						break;
 					case REFERENCE:
-						p = LDrawParser.parseLineType1(line,invNext);
+						sc = new LDrawLineScanner(line, true);
+						p = LDrawParser.scanLineType1(sc, invNext);
+						if (p == null) break;
 	                    if (!LDrawPart.isLdrPart(p.getLdrawId())) {
 	                    	// not a LDraw part, checks if it is a submodel
 	                		File ld = new File(modelDir,p.getLdrawId());
 	                		if (!ld.exists()) {
 	                			// old part or error in file
-	        					warnings = true;
-	        					Logger.getGlobal().warning("[" +ldr.getName() + "] line# "+ lnr.getLineNumber() +  "> " + 
-	        							"Unknown part: "+p.getLdrawId());   
+	                			problem(ldr.getName(), lnr.getLineNumber(), LDrawParseError.UNKNOWN_PART, line, 
+	                					"Unknown part: "+p.getLdrawId());
 	                		}
 	                		else {
 	                			count++;
@@ -475,24 +512,32 @@ public class ImportLDrawProjectTask extends SwingWorker<Integer, Void> {
 								LDPrimitive.newColour(LDrawParser.parseColour(line),line));
 						break;						
 					case AUXLINE:
-						p = LDrawParser.parseLineType5(line);
+						sc = new LDrawLineScanner(line, true);
+						p = LDrawParser.scanLineType5(sc);
+						if (p == null) break;
 	               		// add to main model
 	               		mainModel.addPart(p);;
 	                   	count++;
 						break;
 					case LINE:
-						p = LDrawParser.parseLineType2(line);
+						sc = new LDrawLineScanner(line, true);
+						p = LDrawParser.scanLineType2(sc);
+						if (p == null) break;
 	              		// add to main model
 	               		mainModel.addPart(p);;
 	                   	count++;
 						break;
 					case TRIANGLE: 
-						p = LDrawParser.parseLineType3(line,isClockWise);
+						sc = new LDrawLineScanner(line, true);
+						p = LDrawParser.scanLineType3(sc, isClockWise);
+						if (p == null) break;
                    		mainModel.addPart(p);
                     	count++;
                     	break;
 					case QUAD:
-						p = LDrawParser.parseLineType4(line,isClockWise);
+						sc = new LDrawLineScanner(line, true);
+						p = LDrawParser.scanLineType4(sc, isClockWise);
+						if (p == null) break;
                    		mainModel.addPart(p);
                     	count++;
 						break;
@@ -536,10 +581,12 @@ public class ImportLDrawProjectTask extends SwingWorker<Integer, Void> {
 					}
 				}
 				catch (IllegalArgumentException exc) {
-					warnings = true;
-					Logger.getGlobal().warning("[" +ldr.getName() + "] line# "+ lnr.getLineNumber() +  "> " + 
+					problem(ldr.getName(), lnr.getLineNumber(), LDrawParseError.INVALID_META, line, 
 							exc.getLocalizedMessage());
 				}
+				if (sc != null) {
+					scanProblem(ldr.getName(), lnr.getLineNumber(), sc, line);
+				}
 			}
 		}
 		try {
@@ -547,12 +594,287 @@ public class ImportLDrawProjectTask extends SwingWorker<Integer, Void> {
 		} catch (IOException ex) {
 			;
 		}
+		diagnostics.logSummary();
 		//System.out.println(mainModel.getPartList());
 		return count;
 	}
 
 	
 
+	/**
+	 * Splits an MPD file in FILE..NOFILE blocks, in a single scan.
+	 * Sub-models are created and registered here, in file order, so references
+	 * and duplicate names are resolved as in sequential parsing.
+	 * @param lnr reader at start of file
+	 * @param log receives format errors found in scan
+	 * @return blocks in file order, without blocks for internal use parts
+	 * @throws IOException
+	 */
+	private List<MpdBlock> splitMpd(LineNumberReader lnr, CountingInputStream cis, long total,
+			List<Warning> log) throws IOException {
+		
+		List<MpdBlock> blocks = new ArrayList<MpdBlock>();
+		MpdBlock curr = null;
+		boolean isFirstModel = true;
+		boolean isSkip = false;
+		String line,part;
+		
+		while ((line = lnr.readLine()) != null) {
+			// scan is first half of work
+			updateProgress(cis, total, 50);
+			LDrawCommand type = LDrawParser.parseCommand(line);
+			switch (type) {
+			case MPDFILE:
+				// if a new FILE command is found without NOFILE first...
+				curr = null;
+				isSkip = false;
+				try {
+					part = LDrawParser.parseMpdFile(line);
+				}
+				catch (IllegalArgumentException exc) {
+					log.add(new Warning(lnr.getLineNumber(), LDrawParseError.INVALID_FILE, line, 
+							exc.getLocalizedMessage()));
+					break;
+				}
+				boolean isMainModel = isFirstModel;
+				isFirstModel = false;
+                if (LDrawPart.existsCustomPart(part)) {
+                    //------------------- duplicate submodel name
+                	log.add(new Warning(lnr.getLineNumber(), LDrawParseError.DUPLICATE_NAME, line, 
+                			"Duplicate name '" + part + "' in MPD"));
+                }
+                // avoid overwriting of internal use parts
+                if (LDrawPart.existsInternalUsePart(part)) {
+                	isSkip = true;
+                	break;
+                }
+                LDrawPart model = LDrawPart.newCustomPart(part);
+                if (isMainModel) {
+                	model.setPartType(LDrawPartType.MODEL);
+                	mainModel = model;
+                }
+                else {
+                	model.setPartType(LDrawPartType.SUBMODEL);
+                }
+                curr = new MpdBlock(model, lnr.getLineNumber()+1);
+                blocks.add(curr);
+				break;
+			case MPDNOFILE:
+				if (curr == null && !isSkip) {
+					log.add(new Warning(lnr.getLineNumber(), LDrawParseError.MISPLACED_COMMAND, line, 
+							"Displaced 'NOFILE' in MPD"));
+				}
+				curr = null;
+				isSkip = false;
+				break;
+			default:
+				if (curr != null) {
+					curr.lines.add(line);
+				}
+				else if (!isSkip) {
+					log.add(new Warning(lnr.getLineNumber(), LDrawParseError.MISPLACED_COMMAND, line, 
+							"Invalid MPD file format: primitive or command outside FILE..NOFILE block"));
+				}
+				break;
+			}
+		}
+		return blocks;
+	}
+	
+	
+	
+	/**
+	 * Parses all blocks, on a fork-join pool if file is big enough
+	 */
+	private void parseBlocks(List<MpdBlock> blocks) {
+		
+		parsedLines = 0;
+		totalLines = 0;
+		for (MpdBlock b : blocks) {
+			totalLines += b.lines.size();
+		}
+		if (!parallelMpd || blocks.size() < 2 || totalLines < PARALLELMINLINES) {
+			for (MpdBlock b : blocks) {
+				parseBlock(b);
+				blockDone(b);
+			}
+			return;
+		}
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+			pool.invoke(new BlockTask(blocks, 0, blocks.size()));
+		}
+		finally {
+			pool.shutdown();
+		}
+		// ids were taken in thread order, assigned again in file order
+		for (MpdBlock b : blocks) {
+			b.model.renumberPrimitives();
+		}
+	}
+	
+	
+	
+	/**
+	 * Updates progress for second half of work, can be called from any thread
+	 */
+	private synchronized void blockDone(MpdBlock b) {
+		
+		parsedLines += b.lineCount;
+		setProgress(50 + (int) ((long) parsedLines*50/Math.max(1, totalLines)));
+	}
+	
+	
+	
+	/**
+	 * Parses a FILE block in its model. Doesn't use other blocks or shared state,
+	 * warnings and references are collected in block.
+	 */
+	private static void parseBlock(MpdBlock b) {
+		
+		LDrawPart currModel = b.model;
+		LDPrimitive p;
+		b.lineCount = b.lines.size();
+		boolean isClockWise = false;
+		boolean invNext = false;
+		boolean firstLine = true;
+		for (int i=0;i<b.lines.size();i++) {
+			String line = b.lines.get(i);
+			int lineNo = b.firstLine + i;
+			LDrawCommand type = LDrawParser.parseCommand(line);
+			// geometry lines are parsed without exceptions
+			LDrawLineScanner sc = null;
+			try {
+				switch (type) {
+				case FILETYPE:
+					currModel.setPartType(LDrawParser.parsePartType(line));
+					currModel.setPartTypeString(line);
+					break;
+				case AUTHOR:
+					currModel.setAuthor(LDrawParser.parseAuthor(line));
+					break;
+				case NAME:
+					currModel.setPartName(LDrawParser.parsePartName(line));
+					break;
+				case KEYWORDS:
+					p = LDPrimitive.newKeywords(LDrawParser.parseKeywords(line));
+               		currModel.addPart(p);
+                	break;						
+				case CATEGORY:
+					p = LDPrimitive.newCategory(LDrawParser.parseCategory(line));
+               		currModel.addPart(p);
+                	break;						
+				case COMMENT:
+					p = LDPrimitive.newComment(line);
+                	currModel.addPart(p);
+                	break;
+				case LICENSE:
+					currModel.setLicense(line);
+					break;
+				case HISTORY:
+					p = LDPrimitive.newHistory(line);
+                	currModel.addPart(p);
+                	break;						
+				case EMPTY:
+					p = LDPrimitive.newEmpty();
+               		currModel.addPart(p);
+                	break;
+				case COLOUR:
+					currModel.addPart(
+								LDPrimitive.newColour(LDrawParser.parseColour(line),line));
+					break;
+				case META_UNKNOWN:
+					if (firstLine) {
+						currModel.setDescription(LDrawParser.parseDescription(line));
+						firstLine = false;
+						break;
+					}
+					p = LDPrimitive.newMetaUnk(LDrawParser.parseMetaUnk(line));
+                	currModel.addPart(p);
+                	break;						
+				case STEP:
+					if (! currModel.isStepReady()) currModel.initStep();
+                	currModel.nextStep();
+                	break;
+				case BFC_CCW:
+					p = LDPrimitive.newBfcCcw();
+                	currModel.addPart(p);
+					isClockWise = false;
+					break;
+				case BFC_CW:
+					p = LDPrimitive.newBfcCw();
+               		currModel.addPart(p);
+					isClockWise = true;
+					break;
+				case BFC_INVERTNEXT:
+					p = LDPrimitive.newBfcInvertnext();
+               		currModel.addPart(p);
+					invNext = true;
+					break;
+				case REFERENCE:
+					sc = new LDrawLineScanner(line, true);
+					p = LDrawParser.scanLineType1(sc, invNext);
+					if (p == null) break;
+					invNext = false;
+            		currModel.addPart(p);
+            		b.count++;
+                	// can be a submodel defined later in file, checked when all blocks are parsed
+                	b.refs.add(new PendingRef(currModel, p, lineNo));
+					break;
+				case TRIANGLE: 
+					sc = new LDrawLineScanner(line, true);
+					p = LDrawParser.scanLineType3(sc, isClockWise);
+					if (p == null) break;
+               		// add to model
+               		currModel.addPart(p);
+                	b.count++;
+                	break;
+				case AUXLINE:
+					sc = new LDrawLineScanner(line, true);
+					p = LDrawParser.scanLineType5(sc);
+					if (p == null) break;
+               		// add to model
+               		currModel.addPart(p);
+                	b.count++;
+					break;
+				case LINE:
+					sc = new LDrawLineScanner(line, true);
+					p = LDrawParser.scanLineType2(sc);
+					if (p == null) break;
+               		// add to model
+               		currModel.addPart(p);
+                	b.count++;
+					break;
+				case QUAD:
+					sc = new LDrawLineScanner(line, true);
+					p = LDrawParser.scanLineType4(sc, isClockWise);
+					if (p == null) break;
+               		// add to model
+               		currModel.addPart(p);
+                	b.count++;
+					break;
+				default:
+					break;
+				}
+			}
+			catch (IllegalArgumentException exc) {
+				b.log.add(new Warning(lineNo, LDrawParseError.INVALID_META, line, exc.getLocalizedMessage()));
+			}
+			if (sc == null)
+				continue;
+			if (sc.getError() != null) {
+				b.log.add(new Warning(lineNo, sc.getError(), line, null));
+			}
+			else if (sc.getWarning() != null) {
+				b.log.add(new Warning(lineNo, sc.getWarning(), line, null));
+			}
+		}
+		// lines aren't needed anymore
+		b.lines = null;
+	}
+	
+	
+	
 	private void expandSubFile(LDrawPart model, String modelDir, boolean invert) throws IOException {
 
 		String line;
@@ -567,6 +889,8 @@ public class ImportLDrawProjectTask extends SwingWorker<Integer, Void> {
 		LineNumberReader lnr = new LineNumberReader(new FileReader(ld));
 		while ((line = lnr.readLine()) != null) {
 			LDrawCommand type = LDrawParser.parseCommand(line);
+			// geometry lines are parsed without exceptions
+			LDrawLineScanner sc = null;
 			try {
 				switch (type) {
 				case STEP:
@@ -586,15 +910,16 @@ public class ImportLDrawProjectTask extends SwingWorker<Integer, Void> {
 					invNext = true;
 					break;
 				case REFERENCE:
-					p = LDrawParser.parseLineType1(line,invNext);
+					sc = new LDrawLineScanner(line, true);
+					p = LDrawParser.scanLineType1(sc, invNext);
+					if (p == null) break;
 	                if (!LDrawPart.existsPart(p.getLdrawId())) {
 	                	// not a known part, checks if it is a submodel
 	            		File subFile = new File(modelDir,p.getLdrawId());
 	            		if (!subFile.exists() || !subFile.canRead()) {
 	            			// old part or error in file
-	    					warnings = true;
-	    					Logger.getGlobal().warning("[" +ldr.getName() + "] line# "+ lnr.getLineNumber() +  "> " + 
-	    							"Unknown part: "+p.getLdrawId());   
+	            			problem(model.getLdrawId(), lnr.getLineNumber(), LDrawParseError.UNKNOWN_PART, line, 
+	            					"Unknown part: "+p.getLdrawId());
 	            		}
 	            		else {
 	            			//System.out.println("SubModel: " + part);
@@ -611,21 +936,29 @@ public class ImportLDrawProjectTask extends SwingWorker<Integer, Void> {
 	                invNext = false;
 	                break;
 				case AUXLINE:
-					p = LDrawParser.parseLineType5(line);
+					sc = new LDrawLineScanner(line, true);
+					p = LDrawParser.scanLineType5(sc);
+					if (p == null) break;
 	           		// add to main model
 					model.addPart(p);
 	 				break;
 				case LINE:
-					p = LDrawParser.parseLineType2(line);
+					sc = new LDrawLineScanner(line, true);
+					p = LDrawParser.scanLineType2(sc);
+					if (p == null) break;
 	          		// add to main model
 					model.addPart(p);
 	 				break;
 				case TRIANGLE: 
-					p = LDrawParser.parseLineType3(line,isClockWise);
+					sc = new LDrawLineScanner(line, true);
+					p = LDrawParser.scanLineType3(sc, isClockWise);
+					if (p == null) break;
                		model.addPart(p);
                 	break;
 				case QUAD:
-					p = LDrawParser.parseLineType4(line,isClockWise);
+					sc = new LDrawLineScanner(line, true);
+					p = LDrawParser.scanLineType4(sc, isClockWise);
+					if (p == null) break;
               		model.addPart(p);
 					break;
 				case META_UNKNOWN:
@@ -676,10 +1009,12 @@ public class ImportLDrawProjectTask extends SwingWorker<Integer, Void> {
 				}
 			}
 			catch (IllegalArgumentException exc) {
-				warnings = true;
-				Logger.getGlobal().warning("[" +ldr.getName() + "] line# "+ lnr.getLineNumber() +  "> " + 
+				problem(model.getLdrawId(), lnr.getLineNumber(), LDrawParseError.INVALID_META, line, 
 						exc.getLocalizedMessage());
 			}
+			if (sc != null) {
+				scanProblem(model.getLdrawId(), lnr.getLineNumber(), sc, line);
+			}
 		}
 	    lnr.close();        
 	}
@@ -19,12 +19,20 @@
 
 package bricksnspace.ldrawlib;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.LineNumberReader;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.util.Collection;
 import java.util.Enumeration;
 import java.util.HashMap;
@@ -80,7 +88,20 @@ public class LDLibrary {
 	private int type = ZIPFILE;
 	private File libPath = null;
 	private ZipFile libZip = null;
+	/** memory mapped access to zipfile, null if not used */
+	private MappedZip mappedZip = null;
+	/** true if zipped libraries are read with memory mapping */
+	private static boolean useMappedZip = false;
 	private Map<String,String> partList = new HashMap<String,String>();
+	private boolean hasPrimitives = false, hasParts = false, hasSubParts = false;
+	
+	// library index snapshot
+	private static final int INDEXMAGIC = 0x4C444958;		// "LDIX"
+	private static final int INDEXVERSION = 1;
+	private static final String INDEXPREFIX = "ldlib-";
+	private static final String INDEXEXT = ".idx";
+	/** folder for library index snapshots, null if disabled */
+	private static File indexFolder = null;
 	
 	
 	
@@ -88,6 +109,9 @@ public class LDLibrary {
 	 * returns a new LDraw library source from string
 	 * checks if library follows LDraw library structure 
 	 * and if library is really official
+	 * <p>
+	 * If an index folder is defined (see {@link #setIndexFolder(File)}) part list is
+	 * loaded from a saved index snapshot, and library is rescanned only if changed
 	 * @param path pathname to library folder or zipfile
 	 * @param official true if library is official LDraw library
 	 * @throws IOException if library is marked official but it isn't
@@ -95,125 +119,35 @@ public class LDLibrary {
 	 */
 	public LDLibrary(String path, boolean official) throws ZipException, IOException {
 		
-		boolean hasPrimitives = false, hasParts = false, hasSubParts = false;
-		
 		libPath = new File(path);
 		if (libPath.isDirectory() && libPath.canRead()) {
 			// it is a folder/directory
 			type = FOLDER;
-			// scan base folder
-			for (File f : libPath.listFiles()) {
-				if (f.isFile() && f.canRead()) {
-					String key = f.getName().toLowerCase();
-					if (partList.get(key) != null) {
-						continue;
-					}
-					partList.put(key, f.getAbsolutePath());
-				}
-			}
-			// scan p folder
-			File p = new File(libPath.getPath(),PRIMITIVESPATH);
-			if (p.isDirectory() && p.canRead()) { 
-				for (File f : p.listFiles()) {
-					if (f.isFile() && f.canRead()) {
-						String key = PRIMITIVESPATH + f.getName().toLowerCase();
-						if (partList.get(key) != null) {
-							continue;
-						}
-						partList.put(key, f.getAbsolutePath());
-						hasPrimitives = true;
-					}
-				}
-			}
-			// scan p/48 folder
-			p = new File(libPath.getPath(),HIRESPRIMITIVESPATH);
-			if (p.isDirectory() && p.canRead()) { 
-				for (File f : p.listFiles()) {
-					if (f.isFile() && f.canRead()) {
-						String key = HIRESPRIMITIVESPATH + f.getName().toLowerCase();
-						if (partList.get(key) != null) {
-							continue;
-						}
-						partList.put(key, f.getAbsolutePath());
-					}
-				}
-			}
-			// scan p/8 folder
-			p = new File(libPath.getPath(),LORESPRIMITIVESPATH);
-			if (p.isDirectory() && p.canRead()) { 
-				for (File f : p.listFiles()) {
-					if (f.isFile() && f.canRead()) {
-						String key = LORESPRIMITIVESPATH + f.getName().toLowerCase();
-						if (partList.get(key) != null) {
-							continue;
-						}
-						partList.put(key, f.getAbsolutePath());
-					}
-				}
-			}
-			// scan parts folder
-			p = new File(libPath.getPath(),PARTPATH);
-			if (p.isDirectory() && p.canRead()) { 
-				for (File f : p.listFiles()) {
-					if (f.isFile() && f.canRead()) {
-						String key = PARTPATH + f.getName().toLowerCase();
-						if (partList.get(key) != null) {
-							continue;
-						}
-						partList.put(key, f.getAbsolutePath());
-						hasParts = true;
-					}
-				}
-			}
-			// scan parts/s/ folder
-			p = new File(libPath.getPath(),PARTPATH + SUBPARTPATH);
-			if (p.isDirectory() && p.canRead()) { 
-				for (File f : p.listFiles()) {
-					if (f.isFile() && f.canRead()) {
-						String key = PARTPATH + SUBPARTPATH + f.getName().toLowerCase();
-						if (partList.get(key) != null) {
-							continue;
-						}
-						partList.put(key, f.getAbsolutePath());
-						hasSubParts = true;
-					}
-				}
+			// stamp is taken before scan, so changes during scan make index stale
+			long[] stamp = getStamp();
+			if (!loadIndex(stamp)) {
+				scanFolder();
+				saveIndex(stamp);
 			}
 		}
 		else if (libPath.isFile() && libPath.canRead()) {
 			// it is a file/zipfile
 			type = ZIPFILE;
+			long[] stamp = getStamp();
 			libZip = new ZipFile(libPath);
-			Enumeration<? extends ZipEntry> en = libZip.entries();
-			while (en.hasMoreElements()) {
-				ZipEntry ze = en.nextElement();
-				//System.out.println(ze.toString());
-				if (!ze.isDirectory()) {
-					// if a duplicate exists, first win
-					String key = ze.getName().toLowerCase();
-					// strip "ldraw/" from start of key to uniforms values. 
-					if (key.startsWith(ZIPPATH))
-						key = key.substring(ZIPPATH.length());
-					if (partList.get(key) != null) {
-						continue;
-					}
-					partList.put(key, ze.getName());
-					if (key.startsWith(PARTPATH+SUBPARTPATH)) {
-						hasSubParts = true;
-						continue;
-					}
-					if (key.startsWith(PARTPATH)) {
-						hasParts = true;
-						continue;
-					}
-					if (key.startsWith(PRIMITIVESPATH)) {
-						hasPrimitives = true;
-						continue;
-					}
-					//System.out.println(key+" - "+ze.getName());
+			if (!loadIndex(stamp)) {
+				scanZip();
+				saveIndex(stamp);
+			}
+			if (useMappedZip) {
+				try {
+					mappedZip = new MappedZip(libPath);
+				}
+				catch (IOException e) {
+					Logger.getGlobal().log(Level.WARNING,"[LDLibrary] Unable to map library "+path+
+							", using zip streams.\n"+e.getLocalizedMessage());
 				}
 			}
-
 		}
 		else 
 			throw new IOException("'"+path+"' isnt't a file or a directory, or cannot read it.");
@@ -231,6 +165,286 @@ public class LDLibrary {
 	
 	
 	
+	/**
+	 * Scans a single library folder and adds files to part list
+	 * @param folder subfolder to scan, relative to library path, or "" for library root
+	 * @return true if at least a file was added
+	 */
+	private boolean scanSubFolder(String folder) {
+		
+		boolean found = false;
+		File p = new File(libPath.getPath(),folder);
+		if (p.isDirectory() && p.canRead()) { 
+			for (File f : p.listFiles()) {
+				if (f.isFile() && f.canRead()) {
+					String key = folder + f.getName().toLowerCase();
+					if (partList.get(key) != null) {
+						continue;
+					}
+					partList.put(key, f.getAbsolutePath());
+					found = true;
+				}
+			}
+		}
+		return found;
+	}
+	
+	
+	
+	/**
+	 * Scans library folder and subfolders (p/ p/48/ p/8/ parts/ parts/s/)
+	 */
+	private void scanFolder() {
+		
+		// scan base folder
+		scanSubFolder("");
+		hasPrimitives = scanSubFolder(PRIMITIVESPATH);
+		scanSubFolder(HIRESPRIMITIVESPATH);
+		scanSubFolder(LORESPRIMITIVESPATH);
+		hasParts = scanSubFolder(PARTPATH);
+		hasSubParts = scanSubFolder(PARTPATH + SUBPARTPATH);
+	}
+	
+	
+	
+	/**
+	 * Scans all entries in library zipfile
+	 */
+	private void scanZip() {
+		
+		Enumeration<? extends ZipEntry> en = libZip.entries();
+		while (en.hasMoreElements()) {
+			ZipEntry ze = en.nextElement();
+			//System.out.println(ze.toString());
+			if (!ze.isDirectory()) {
+				// if a duplicate exists, first win
+				String key = ze.getName().toLowerCase();
+				// strip "ldraw/" from start of key to uniforms values. 
+				if (key.startsWith(ZIPPATH))
+					key = key.substring(ZIPPATH.length());
+				if (partList.get(key) != null) {
+					continue;
+				}
+				partList.put(key, ze.getName());
+				if (key.startsWith(PARTPATH+SUBPARTPATH)) {
+					hasSubParts = true;
+					continue;
+				}
+				if (key.startsWith(PARTPATH)) {
+					hasParts = true;
+					continue;
+				}
+				if (key.startsWith(PRIMITIVESPATH)) {
+					hasPrimitives = true;
+					continue;
+				}
+				//System.out.println(key+" - "+ze.getName());
+			}
+		}
+	}
+	
+	
+	
+	/////////////////////
+	//
+	// Library index snapshot
+	//
+	/////////////////////
+	
+	
+	/**
+	 * Defines folder where library index snapshots are stored. 
+	 * Index snapshot avoids a full library scan when library doesn't changed.
+	 * @param folder folder for index files, or null to disable index snapshot
+	 */
+	public static void setIndexFolder(File folder) {
+		
+		indexFolder = folder;
+	}
+	
+	
+	
+	/**
+	 * @return folder for library index snapshots, or null if index snapshot is disabled
+	 */
+	public static File getIndexFolder() {
+		
+		return indexFolder;
+	}
+	
+	
+	
+	/**
+	 * Returns index file for this library, named after library absolute path
+	 * @return index file 
+	 */
+	private File getIndexFile() {
+		
+		String p = libPath.getAbsolutePath();
+		return new File(indexFolder, INDEXPREFIX + Integer.toHexString(p.hashCode()) + 
+				"-" + Integer.toHexString(p.length()) + INDEXEXT);
+	}
+	
+	
+	
+	/**
+	 * Computes library "fingerprint" used to check if index snapshot is current.<br/>
+	 * For zipfile: file size and last modified time<br/>
+	 * For folder: last modified time of every scanned folder, that changes if a file is added, 
+	 * removed or renamed
+	 * @return array of values
+	 */
+	private long[] getStamp() {
+		
+		if (type == ZIPFILE) {
+			return new long[] { libPath.length(), libPath.lastModified() };
+		}
+		String[] folders = new String[] { "", PRIMITIVESPATH, HIRESPRIMITIVESPATH, 
+				LORESPRIMITIVESPATH, PARTPATH, PARTPATH + SUBPARTPATH };
+		long[] stamp = new long[folders.length];
+		for (int i=0;i<folders.length;i++) {
+			stamp[i] = new File(libPath.getPath(),folders[i]).lastModified();
+		}
+		return stamp;
+	}
+	
+	
+	
+	/**
+	 * Loads part list from index snapshot, if exists and it is current
+	 * @param stamp current library stamp, from {@link #getStamp()}
+	 * @return true if part list was loaded from index
+	 */
+	private boolean loadIndex(long[] stamp) {
+		
+		if (indexFolder == null)
+			return false;
+		File idx = getIndexFile();
+		if (!idx.isFile() || !idx.canRead()) 
+			return false;
+		DataInputStream dis = null;
+		try {
+			dis = new DataInputStream(new BufferedInputStream(new FileInputStream(idx),65536));
+			if (dis.readInt() != INDEXMAGIC || dis.readInt() != INDEXVERSION)
+				return false;
+			if (!dis.readUTF().equals(libPath.getAbsolutePath()) || dis.readInt() != type)
+				return false;
+			if (dis.readInt() != stamp.length)
+				return false;
+			for (long s : stamp) {
+				if (dis.readLong() != s) 
+					return false;
+			}
+			boolean prim = dis.readBoolean();
+			boolean parts = dis.readBoolean();
+			boolean sub = dis.readBoolean();
+			int n = dis.readInt();
+			Map<String,String> list = new HashMap<String,String>(n*4/3+1);
+			for (int i=0;i<n;i++) {
+				String key = dis.readUTF();
+				list.put(key, dis.readUTF());
+			}
+			partList = list;
+			hasPrimitives = prim;
+			hasParts = parts;
+			hasSubParts = sub;
+			return true;
+		}
+		catch (IOException e) {
+			Logger.getGlobal().log(Level.WARNING,"[LDLibrary] Unable to read library index "+idx.getPath()+
+					", rescanning library.\n"+e.getLocalizedMessage());
+			return false;
+		}
+		finally {
+			if (dis != null) {
+				try {
+					dis.close();
+				} catch (IOException e) {
+					// ignored
+				}
+			}
+		}
+	}
+	
+	
+	
+	/**
+	 * Saves part list as index snapshot, if index folder is defined
+	 * Errors are logged and ignored: index is only an optimization.
+	 * @param stamp library stamp taken before part list was scanned
+	 */
+	private void saveIndex(long[] stamp) {
+		
+		if (indexFolder == null)
+			return;
+		if (!indexFolder.isDirectory() && !indexFolder.mkdirs()) {
+			Logger.getGlobal().log(Level.WARNING,"[LDLibrary] Unable to create index folder "+indexFolder.getPath());
+			return;
+		}
+		File idx = getIndexFile();
+		File tmp = new File(idx.getPath()+".tmp");
+		DataOutputStream dos = null;
+		try {
+			dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp),65536));
+			dos.writeInt(INDEXMAGIC);
+			dos.writeInt(INDEXVERSION);
+			dos.writeUTF(libPath.getAbsolutePath());
+			dos.writeInt(type);
+			dos.writeInt(stamp.length);
+			for (long s : stamp) {
+				dos.writeLong(s);
+			}
+			dos.writeBoolean(hasPrimitives);
+			dos.writeBoolean(hasParts);
+			dos.writeBoolean(hasSubParts);
+			dos.writeInt(partList.size());
+			for (Map.Entry<String,String> e : partList.entrySet()) {
+				dos.writeUTF(e.getKey());
+				dos.writeUTF(e.getValue());
+			}
+			dos.close();
+			dos = null;
+			// replace old index only when new one is complete
+			idx.delete();
+			if (!tmp.renameTo(idx)) {
+				tmp.delete();
+			}
+		}
+		catch (IOException e) {
+			Logger.getGlobal().log(Level.WARNING,"[LDLibrary] Unable to write library index "+idx.getPath()+
+					"\n"+e.getLocalizedMessage());
+			if (dos != null) {
+				try {
+					dos.close();
+				} catch (IOException ex) {
+					// ignored
+				}
+			}
+			tmp.delete();
+		}
+	}
+	
+	
+	
+	/**
+	 * Enables memory mapped access to zipped libraries, for libraries opened after this call.
+	 * Part files are read from mapped archive in a single step, without zip streams.
+	 * @param mapped true to use memory mapping
+	 */
+	public static void setMappedZip(boolean mapped) {
+		
+		useMappedZip = mapped;
+	}
+	
+	
+	
+	public static boolean isMappedZip() {
+		
+		return useMappedZip;
+	}
+	
+	
+	
 	/**
 	 * Library path as string 
 	 * @return library path
@@ -439,6 +653,9 @@ public class LDLibrary {
         		return null;
         	}
         }
+        if (mappedZip != null && partList.get(pathname) != null) {
+        	return openEntry(partList.get(pathname));
+        }
         ZipEntry ze = libZip.getEntry(partList.get(pathname));
         if (ze != null)
 			try {
@@ -462,6 +679,38 @@ public class LDLibrary {
 	 */
 	public LineNumberReader getPart(String ldrawid) {
 
+		String ze = findPart(ldrawid);
+        if (ze != null)
+        	return openEntry(ze);
+		else {
+			//System.err.println("[LDLibrary] Unable to get part "+ldrid);
+        	return null;
+		}
+	}
+
+	
+	
+	/**
+	 * Gets contents of part identified by "ldrid" as a byte buffer
+	 * 
+	 * @param ldrid LDraw part ID as full pathname with ".dat" suffix 
+	 * @return part file contents or null if part is not found
+	 * @see #readEntry(String)
+	 */
+	public ByteBuffer getPartBuffer(String ldrawid) {
+		
+		String ze = findPart(ldrawid);
+		return ze != null ? readEntry(ze) : null;
+	}
+	
+	
+	
+	/**
+	 * Finds entry for a part, using resolution settings
+	 * @return entry in part list, or null if part isn't in library
+	 */
+	private String findPart(String ldrawid) {
+
 		String[] part;
 		String ze = null;
 		
@@ -505,21 +754,145 @@ public class LDLibrary {
                 ze = partList.get(ldrid); 	
             }
         }
-        if (ze != null)
-			try {
-				if (type == FOLDER) {
-					return new LineNumberReader(new FileReader(ze));
+        return ze;
+	}
+
+	
+	
+	/**
+	 * Opens an entry from part list
+	 * @param ze entry as stored in part list (a file path or a zip entry name)
+	 * @return a LineNumberReader or null if entry can't be read
+	 */
+	LineNumberReader openEntry(String ze) {
+		
+		try {
+			if (type == FOLDER) {
+				return new LineNumberReader(new FileReader(ze));
+			}
+			else if (mappedZip != null) {
+				ByteBuffer b = mappedZip.getEntry(ze);
+				return b != null ? new ByteBufferLineReader(b, true) : null;
+			}
+			else {
+				return new LineNumberReader(new InputStreamReader(libZip.getInputStream(libZip.getEntry(ze))));
+			}
+		} catch (IOException e) {
+			Logger.getGlobal().log(Level.SEVERE,"[LDLibrary] Unable to get part "+ze+" "+e.getLocalizedMessage(),e);
+			return null;
+		}
+	}
+	
+	
+	
+	/**
+	 * Reads an entry from part list in a byte buffer.
+	 * Entries in mapped zipfiles are taken from mapping, files in folders and
+	 * entries in zip streams are read in a single array. Buffer can be given back with 
+	 * {@link MappedZip#release(ByteBuffer)} when it isn't needed anymore.
+	 * @param ze entry as stored in part list (a file path or a zip entry name)
+	 * @return entry contents or null if entry can't be read
+	 */
+	ByteBuffer readEntry(String ze) {
+		
+		try {
+			if (type == FOLDER) {
+				// part files are small, mapping costs more than reading
+				return ByteBuffer.wrap(Files.readAllBytes(new File(ze).toPath()));
+			}
+			else if (mappedZip != null) {
+				return mappedZip.getEntry(ze);
+			}
+			else {
+				ZipEntry e = libZip.getEntry(ze);
+				if (e == null) {
+					return null;
 				}
-				else {
-					return new LineNumberReader(new InputStreamReader(libZip.getInputStream(libZip.getEntry(ze))));
+				DataInputStream is = new DataInputStream(libZip.getInputStream(e));
+				try {
+					byte[] b = new byte[(int) e.getSize()];
+					is.readFully(b);
+					return ByteBuffer.wrap(b);
+				}
+				finally {
+					is.close();
 				}
-			} catch (IOException e) {
-				Logger.getGlobal().log(Level.SEVERE,"[LDLibrary] Unable to get part "+ldrid+" "+e.getLocalizedMessage(),e);
-				return null;
 			}
-		else {
-			//System.err.println("[LDLibrary] Unable to get part "+ldrid);
-        	return null;
+		} catch (IOException e) {
+			Logger.getGlobal().log(Level.SEVERE,"[LDLibrary] Unable to get part "+ze+" "+e.getLocalizedMessage(),e);
+			return null;
+		}
+	}
+	
+	
+	
+	/**
+	 * Adds all parts, sub-parts and primitives in this library to a resolution table
+	 * using the same search order of {@link #checkPart(String)} and {@link #getPart(String)}
+	 * @param idx resolution table to fill
+	 * @param priority library priority (its index in library list)
+	 */
+	void fillIndex(LDPartIndex idx, int priority) {
+		
+		for (Map.Entry<String,String> e : partList.entrySet()) {
+			String key = e.getKey();
+			String id;
+			if (key.startsWith(PARTPATH+SUBPARTPATH)) {
+				// sub-part, referenced as "s/..."
+				id = key.substring(PARTPATH.length());
+				idx.offer(id, new LDPartIndex.Entry(this, e.getValue(), 
+						official?LDrawPartType.SUBPART:LDrawPartType.UNOFF_SUB, priority, 0));
+			}
+			else if (key.startsWith(HIRESPRIMITIVESPATH)) {
+				// hi-res primitive, referenced as "48/..." 
+				id = key.substring(PRIMITIVESPATH.length());
+				LDPartIndex.Entry en = new LDPartIndex.Entry(this, e.getValue(), 
+						official?LDrawPartType.PRIMITIVE48:LDrawPartType.UNOFF48, priority, 0);
+				idx.offer(id, en);
+				// or as forced hi-res replacement for standard primitive
+				id = key.substring(HIRESPRIMITIVESPATH.length());
+				if (id.indexOf('/') < 0) {
+					idx.offerHiRes(id, en);
+				}
+			}
+			else if (key.startsWith(LORESPRIMITIVESPATH)) {
+				// lo-res primitive, referenced as "8/..."
+				id = key.substring(PRIMITIVESPATH.length());
+				LDPartIndex.Entry en = new LDPartIndex.Entry(this, e.getValue(), 
+						official?LDrawPartType.PRIMITIVE8:LDrawPartType.UNOFF8, priority, 0);
+				idx.offer(id, en);
+				// or as forced lo-res replacement for standard primitive
+				id = key.substring(LORESPRIMITIVESPATH.length());
+				if (id.indexOf('/') < 0) {
+					idx.offerLoRes(id, en);
+				}
+			}
+			else if (key.startsWith(PRIMITIVESPATH)) {
+				id = key.substring(PRIMITIVESPATH.length());
+				if (id.indexOf('/') < 0) {
+					idx.offer(id, new LDPartIndex.Entry(this, e.getValue(), 
+							official?LDrawPartType.PRIMITIVE:LDrawPartType.UNOFF_PRIM, priority, 1));
+				}
+			}
+			else if (key.startsWith(PARTPATH)) {
+				id = key.substring(PARTPATH.length());
+				if (id.indexOf('/') < 0) {
+					idx.offer(id, new LDPartIndex.Entry(this, e.getValue(), 
+							official?LDrawPartType.OFFICIAL:LDrawPartType.UNOFFICIAL, priority, 2));
+				}
+			}
+			else if (key.startsWith(MODELSPATH)) {
+				id = key.substring(MODELSPATH.length());
+				if (id.indexOf('/') < 0) {
+					idx.offer(id, new LDPartIndex.Entry(this, e.getValue(), 
+							LDrawPartType.MODEL, priority, 3));
+				}
+			}
+			else if (key.indexOf('/') < 0) {
+				// file in library root folder
+				idx.offer(key, new LDPartIndex.Entry(this, e.getValue(), 
+						LDrawPartType.UNOFFICIAL, priority, 4));
+			}
 		}
 	}
 
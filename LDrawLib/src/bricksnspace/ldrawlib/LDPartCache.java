@@ -0,0 +1,321 @@
+/*
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDrawLib
+
+	LDrawLib is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDrawLib is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDrawLib.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+
+package bricksnspace.ldrawlib;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Bounded cache for library parts
+ * <p>
+ * Parts are evicted in least recently used order when number of parts or total
+ * weight (sum of primitives count for all parts) exceeds limits.
+ * Cache is thread safe: when two threads request same part not in cache,
+ * part is loaded only once and second thread waits for it.
+ *
+ * @author Mario Pascucci
+ *
+ */
+public class LDPartCache {
+
+	/** default max number of parts in cache */
+	public static final int DEFAULT_MAXPARTS = 5000;
+	/** default max total weight (primitives) in cache */
+	public static final long DEFAULT_MAXWEIGHT = 1000000;
+
+	/**
+	 * A cached part with its weight at insertion time
+	 */
+	private static final class Entry {
+
+		final LDrawPart part;
+		final int weight;
+
+		Entry(LDrawPart p) {
+			part = p;
+			weight = Math.max(1, p.getPrimitives().size());
+		}
+	}
+
+
+	/**
+	 * A part load in progress
+	 */
+	private static final class Load {
+
+		final FutureTask<LDrawPart> task;
+		final Thread owner;
+
+		Load(Callable<LDrawPart> loader) {
+			task = new FutureTask<LDrawPart>(loader);
+			owner = Thread.currentThread();
+		}
+	}
+
+
+	// access ordered, eldest entry is least recently used
+	private final LinkedHashMap<String,Entry> cache = new LinkedHashMap<String,Entry>(256, 0.75f, true);
+	private final Map<String,Load> loading = new HashMap<String,Load>();
+	private int maxParts = DEFAULT_MAXPARTS;
+	private long maxWeight = DEFAULT_MAXWEIGHT;
+	private long weight = 0;
+
+	// statistics
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private long loads = 0;
+	private long loadTime = 0;
+
+
+
+	LDPartCache() {
+
+	}
+
+
+
+	/**
+	 * Gets a part from cache, loading it if not in cache
+	 * @param id part id
+	 * @param loader loads part if it isn't in cache, can return null for unknown parts
+	 * @return part or null if loader can't find it
+	 */
+	LDrawPart get(String id, Callable<LDrawPart> loader) {
+
+		Load l;
+		boolean owner = false;
+		synchronized (this) {
+			Entry e = cache.get(id);
+			if (e != null) {
+				hits++;
+				return e.part;
+			}
+			misses++;
+			l = loading.get(id);
+			if (l == null) {
+				l = new Load(loader);
+				loading.put(id, l);
+				owner = true;
+			}
+			else if (l.owner == Thread.currentThread()) {
+				Logger.getGlobal().warning("[LDPartCache] Recursive reference to part: "+id);
+				return null;
+			}
+		}
+		if (owner) {
+			long t = System.nanoTime();
+			l.task.run();
+			t = System.nanoTime() - t;
+			synchronized (this) {
+				loading.remove(id);
+				loads++;
+				loadTime += t;
+				LDrawPart p = getResult(id, l);
+				if (p != null) {
+					put(id, p);
+				}
+				return p;
+			}
+		}
+		return getResult(id, l);
+	}
+
+
+
+	private LDrawPart getResult(String id, Load l) {
+
+		try {
+			return l.task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			Logger.getGlobal().log(Level.SEVERE, "[LDPartCache] Unable to load part: "+id, e.getCause());
+			return null;
+		}
+	}
+
+
+
+	/**
+	 * Adds a part to cache, evicting least recently used parts if needed
+	 * Caller must hold lock on cache
+	 */
+	private void put(String id, LDrawPart p) {
+
+		Entry e = new Entry(p);
+		Entry old = cache.put(id, e);
+		if (old != null) {
+			weight -= old.weight;
+		}
+		weight += e.weight;
+		evict();
+	}
+
+
+
+	/**
+	 * Removes least recently used parts until cache is within limits.
+	 * Most recently used part is never removed.
+	 * Caller must hold lock on cache
+	 */
+	private void evict() {
+
+		Iterator<Entry> it = cache.values().iterator();
+		while ((cache.size() > maxParts || weight > maxWeight) && cache.size() > 1) {
+			Entry e = it.next();
+			it.remove();
+			weight -= e.weight;
+			evictions++;
+		}
+	}
+
+
+
+	/**
+	 * Sets cache limits, evicting parts if needed
+	 * @param parts max number of parts in cache
+	 * @param maxWeight max total number of primitives in cached parts
+	 */
+	public synchronized void setLimits(int parts, long maxWeight) {
+
+		if (parts < 1 || maxWeight < 1) {
+			throw new IllegalArgumentException("[LDPartCache] Cache limits must be positive");
+		}
+		maxParts = parts;
+		this.maxWeight = maxWeight;
+		evict();
+	}
+
+
+
+	/**
+	 * Removes all parts from cache. Statistics are not reset.
+	 */
+	public synchronized void clear() {
+
+		cache.clear();
+		weight = 0;
+	}
+
+
+
+	/**
+	 * Resets statistics counters
+	 */
+	public synchronized void resetStats() {
+
+		hits = 0;
+		misses = 0;
+		evictions = 0;
+		loads = 0;
+		loadTime = 0;
+	}
+
+
+
+	/**
+	 * @return a copy of parts in cache
+	 */
+	synchronized Collection<LDrawPart> values() {
+
+		List<LDrawPart> l = new ArrayList<LDrawPart>(cache.size());
+		for (Entry e : cache.values()) {
+			l.add(e.part);
+		}
+		return l;
+	}
+
+
+
+	public synchronized int size() {
+		return cache.size();
+	}
+
+
+	public synchronized long getWeight() {
+		return weight;
+	}
+
+
+	public synchronized int getMaxParts() {
+		return maxParts;
+	}
+
+
+	public synchronized long getMaxWeight() {
+		return maxWeight;
+	}
+
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+
+	/**
+	 * @return number of part loads from library, including failed ones
+	 */
+	public synchronized long getLoads() {
+		return loads;
+	}
+
+
+	/**
+	 * @return total time spent loading parts, in nanoseconds
+	 */
+	public synchronized long getLoadTime() {
+		return loadTime;
+	}
+
+
+	@Override
+	public synchronized String toString() {
+		return "LDPartCache [parts=" + cache.size() + "/" + maxParts +
+				", weight=" + weight + "/" + maxWeight +
+				", hits=" + hits + ", misses=" + misses +
+				", evictions=" + evictions + ", loads=" + loads +
+				", loadTime=" + loadTime/1000000 + "ms]";
+	}
+
+}
@@ -0,0 +1,258 @@
+/*
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDrawLib
+
+	LDrawLib is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDrawLib is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDrawLib.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+
+package bricksnspace.ldrawlib;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Merged part resolution table for a set of libraries
+ * <p>
+ * Maps every LDraw part id (lowercase, with "/" as separator, as used in type 1 lines)
+ * to the library entry that wins for that id, honoring library priority and
+ * folder search order inside a library, so a part lookup is a single map access.
+ * <p>
+ * Primitive resolution (lo-res/hi-res) is handled with two override tables, that contains
+ * only entries where a p/8/ or p/48/ primitive replaces standard resolution.
+ *
+ * @author Mario Pascucci
+ *
+ */
+class LDPartIndex {
+
+	/**
+	 * A resolved part: library, entry in library and part type
+	 */
+	static final class Entry {
+
+		final LDLibrary lib;
+		final String entry;
+		final LDrawPartType type;
+		/** library priority, lower wins */
+		final int priority;
+		/** search order inside library, lower wins */
+		final int rank;
+
+
+		Entry(LDLibrary lib, String entry, LDrawPartType type, int priority, int rank) {
+
+			this.lib = lib;
+			this.entry = entry;
+			this.type = type;
+			this.priority = priority;
+			this.rank = rank;
+		}
+	}
+
+
+	private Map<String,Entry> parts = new HashMap<String,Entry>();
+	private Map<String,Entry> loRes = new HashMap<String,Entry>();
+	private Map<String,Entry> hiRes = new HashMap<String,Entry>();
+
+
+
+	LDPartIndex() {
+
+	}
+
+
+
+	/**
+	 * Creates a copy of a resolution table, to update it without 
+	 * disturbing lookups on original table
+	 * @param idx table to copy
+	 */
+	LDPartIndex(LDPartIndex idx) {
+
+		parts = new HashMap<String,Entry>(idx.parts);
+		loRes = new HashMap<String,Entry>(idx.loRes);
+		hiRes = new HashMap<String,Entry>(idx.hiRes);
+	}
+
+
+
+	/**
+	 * Builds a new table from enabled libraries in list
+	 * @param libs libraries ordered by priority
+	 * @param officialOnly if true uses only official (first) library
+	 * @return new resolution table
+	 */
+	static LDPartIndex build(List<LDLibrary> libs, boolean officialOnly) {
+
+		LDPartIndex idx = new LDPartIndex();
+		for (int i=0;i<libs.size();i++) {
+			if (officialOnly && i != LDrawLib.OFFICIALINDEX)
+				break;
+			LDLibrary l = libs.get(i);
+			if (!l.isEnabled())
+				continue;
+			l.fillIndex(idx, i);
+		}
+		idx.prune();
+		return idx;
+	}
+
+
+
+	/**
+	 * Adds a library with lowest priority to table.
+	 * Existing entries are never replaced, library fills only missing ids.
+	 * @param l library to add
+	 * @param priority library priority (its index in library list)
+	 */
+	void append(LDLibrary l, int priority) {
+
+		l.fillIndex(this, priority);
+		prune();
+	}
+
+
+
+	/**
+	 * Offer an entry for a part id, keeping it only if it wins over current entry
+	 * @param id normalized part id
+	 * @param e entry to offer
+	 */
+	void offer(String id, Entry e) {
+
+		Entry old = parts.get(id);
+		if (old == null || e.priority < old.priority ||
+				(e.priority == old.priority && e.rank < old.rank)) {
+			parts.put(id, e);
+		}
+	}
+
+
+
+	/**
+	 * Offer a low resolution primitive (p/8/) for a part id
+	 * @param id normalized part id (without "8/")
+	 * @param e entry to offer
+	 */
+	void offerLoRes(String id, Entry e) {
+
+		Entry old = loRes.get(id);
+		if (old == null || e.priority < old.priority) {
+			loRes.put(id, e);
+		}
+	}
+
+
+
+	/**
+	 * Offer a high resolution primitive (p/48/) for a part id
+	 * @param id normalized part id (without "48/")
+	 * @param e entry to offer
+	 */
+	void offerHiRes(String id, Entry e) {
+
+		Entry old = hiRes.get(id);
+		if (old == null || e.priority < old.priority) {
+			hiRes.put(id, e);
+		}
+	}
+
+
+
+	/**
+	 * Removes resolution overrides that are hidden by a library with higher priority
+	 */
+	private void prune() {
+
+		prune(loRes);
+		prune(hiRes);
+	}
+
+
+
+	private void prune(Map<String,Entry> res) {
+
+		Iterator<Map.Entry<String,Entry>> it = res.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String,Entry> e = it.next();
+			Entry std = parts.get(e.getKey());
+			if (std != null && std.priority < e.getValue().priority) {
+				it.remove();
+			}
+		}
+	}
+
+
+
+	/**
+	 * Normalize a part id as used in LDraw files
+	 * @param ldrawId part id
+	 * @return lowercase id with "/" as path separator
+	 */
+	static String normalize(String ldrawId) {
+
+		return ldrawId.toLowerCase().replace('\\', '/');
+	}
+
+
+
+	/**
+	 * Gets resolution for a part using standard resolution primitives
+	 * @param ldrawId normalized part id
+	 * @return resolved entry or null if part doesn't exists
+	 */
+	Entry get(String ldrawId) {
+
+		return parts.get(ldrawId);
+	}
+
+
+
+	/**
+	 * Gets resolution for a part using current resolution for primitives
+	 * @param ldrawId normalized part id
+	 * @return resolved entry or null if part doesn't exists
+	 */
+	Entry getForResolution(String ldrawId) {
+
+		Entry e = null;
+		int res = LDLibrary.getRESOLUTION();
+		if (res == LDLibrary.LORES) {
+			e = loRes.get(ldrawId);
+		}
+		else if (res == LDLibrary.HIRES) {
+			e = hiRes.get(ldrawId);
+		}
+		if (e == null) {
+			e = parts.get(ldrawId);
+		}
+		return e;
+	}
+
+
+
+	/**
+	 * @return number of part ids in table
+	 */
+	int size() {
+
+		return parts.size();
+	}
+
+}
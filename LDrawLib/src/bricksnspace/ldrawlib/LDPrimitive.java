@@ -22,8 +22,8 @@ package bricksnspace.ldrawlib;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
-import java.util.Locale;
 
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamWriter;
@@ -57,7 +57,9 @@ public class LDPrimitive {
 	public static final Matrix3D IDENTITY = new Matrix3D(); 
 	private Matrix3D matrix = IDENTITY;			// transformation matrix
 	private boolean invert;
-	private ConnectionPoint[] connPoints; 
+	private ConnectionPoint[] connPoints;		// for part reference, null until computed
+	private ConnectionPoint[] connSingles;		// connection points not in a lattice, null until computed
+	private ConnLattice[] connLattices;			// regular grids of connection points, null until computed
 	
 	// global id
 	private static int globalId = 0;
@@ -80,6 +82,10 @@ public class LDPrimitive {
 		if (p.connPoints != null) {
 			connPoints = p.connPoints.clone();
 		}
+		if (p.connLattices != null) {
+			connSingles = p.connSingles.clone();
+			connLattices = p.connLattices.clone();
+		}
 	}
 	
 	
@@ -154,6 +160,18 @@ public class LDPrimitive {
 	}
 	
 	
+	/**
+	 * Gives new global ids to primitives, in list order
+	 * @param l primitives to renumber
+	 */
+	static synchronized void renumber(List<LDPrimitive> l) {
+		
+		for (LDPrimitive p : l) {
+			p.id = ++globalId;
+		}
+	}
+	
+	
 	/**
 	 * returns true if primitive is a geometric or reference "line" in DAT file
 	 * @return true if "drawable"
@@ -338,8 +356,7 @@ public class LDPrimitive {
 		LDPrimitive l = new LDPrimitive(LDrawCommand.REFERENCE,color,id);
 		l.invert = false;
 		l.matrix = m.getCopy();
-		// part has connection points, must be computed
-		l.connPoints = ConnectionPoint.getConnections(l);
+		// connection points are computed on first request
 		return l;
 	}
 	
@@ -358,7 +375,7 @@ public class LDPrimitive {
 				d,e,f,
 				g,h,i,
 				x,y,z);
-		l.connPoints = ConnectionPoint.getConnections(l);
+		// connection points are computed on first request
 		return l;
 	}
 	
@@ -450,7 +467,7 @@ public class LDPrimitive {
 	
 	/**
 	 * Add a transformation to this primitive
-	 * Also compute transformation for connection points, if any 
+	 * Connection points, if any, are recomputed on next request
 	 * @param m transformation matrix
 	 */
 	public LDPrimitive transform(Matrix3D m) {
@@ -460,16 +477,18 @@ public class LDPrimitive {
 		LDPrimitive p = new LDPrimitive(this);
 		p.matrix = matrix.transform(m);
 		if (type == LDrawCommand.REFERENCE && connPoints != null && connPoints.length > 0) {
-			// part has connection points, must be recomputed
-			p.recalcConnPoints();
+			// part has connection points, will be recomputed on next request
+			p.connPoints = null;
 		}
+		p.connSingles = null;
+		p.connLattices = null;
 		return p;
 	}
 	
 	
 	/**
 	 * Set transformation for this primitive, replacing previous transformation
-	 * Also compute transformation for connection points, if any 
+	 * Connection points, if any, are recomputed on next request
 	 * @param m new transformation matrix
 	 */
 	public LDPrimitive setTransform(Matrix3D m) {
@@ -479,16 +498,18 @@ public class LDPrimitive {
 		LDPrimitive p = new LDPrimitive(this);
 		p.matrix = m.getCopy();
 		if (type == LDrawCommand.REFERENCE && connPoints != null && connPoints.length > 0) {
-			// part has connection points, must be recomputed
-			p.recalcConnPoints();
+			// part has connection points, will be recomputed on next request
+			p.connPoints = null;
 		}
+		p.connSingles = null;
+		p.connLattices = null;
 		return p;
 	}
 	
 	
 	/**
 	 * Set a quick transformation for moving this primitive
-	 * Also compute transformation for connection points, if any 
+	 * Connection points, if any, are recomputed on next request
 	 * @param pt point where to move
 	 */
 	public LDPrimitive moveTo(Point3D pt) {
@@ -498,16 +519,18 @@ public class LDPrimitive {
 		LDPrimitive p = new LDPrimitive(this);
 		p.matrix = matrix.moveTo(pt);
 		if (type == LDrawCommand.REFERENCE && connPoints != null && connPoints.length > 0) {
-			// part has connection points, must be recomputed
-			p.recalcConnPoints();
+			// part has connection points, will be recomputed on next request
+			p.connPoints = null;
 		}
+		p.connSingles = null;
+		p.connLattices = null;
 		return p;
 	}
 	
 	
 	/**
 	 * Set a quick transformation for moving this primitive
-	 * Also compute transformation for connection points, if any 
+	 * Connection points, if any, are recomputed on next request
 	 * @param x coordinates where to move
 	 * @param y
 	 * @param z
@@ -519,25 +542,155 @@ public class LDPrimitive {
 		LDPrimitive p = new LDPrimitive(this);
 		p.matrix = matrix.moveTo(x,y,z);
 		if (type == LDrawCommand.REFERENCE && connPoints != null && connPoints.length > 0) {
-			// part has connection points, must be recomputed
-			p.recalcConnPoints();
+			// part has connection points, will be recomputed on next request
+			p.connPoints = null;
 		}
+		p.connSingles = null;
+		p.connLattices = null;
 		return p;
 	}
 	
 	
 
+	/**
+	 * Applies same transformation to many parts, like moving a selection
+	 * <p>
+	 * Connection points already computed for parts are moved with transformation
+	 * in a single pass, without computing them again from part connections.
+	 * @param parts part references to transform
+	 * @param m transformation matrix, added to part transformation
+	 * @return transformed parts, in same order
+	 */
+	public static List<LDPrimitive> transformAll(Collection<LDPrimitive> parts, Matrix3D m) {
+		
+		List<LDPrimitive> moved = new ArrayList<LDPrimitive>(parts.size());
+		int count = 0;
+		for (LDPrimitive p : parts) {
+			if (p.type != LDrawCommand.REFERENCE)
+				throw new IllegalArgumentException("Cannot set a transformation for line type != 1");
+			LDPrimitive np = new LDPrimitive(p);
+			np.matrix = p.matrix.transform(m);
+			np.connPoints = null;
+			if (p.connSingles != null) {
+				count += p.connSingles.length;
+			}
+			moved.add(np);
+		}
+		// all connection points in a single packed array
+		float[] buf = new float[count*ConnectionPoint.PACKSIZE];
+		int pos = 0;
+		for (LDPrimitive np : moved) {
+			if (np.connSingles != null) {
+				for (ConnectionPoint cp : np.connSingles) {
+					cp.pack(buf, pos);
+					pos += ConnectionPoint.PACKSIZE;
+				}
+			}
+		}
+		ConnectionPoint.transformPacked(buf, count, m);
+		pos = 0;
+		for (LDPrimitive np : moved) {
+			if (np.connSingles == null) {
+				continue;
+			}
+			for (int i=0;i<np.connSingles.length;i++) {
+				np.connSingles[i] = np.connSingles[i].unpack(buf, pos);
+				pos += ConnectionPoint.PACKSIZE;
+			}
+			for (int i=0;i<np.connLattices.length;i++) {
+				np.connLattices[i] = np.connLattices[i].moveBy(m);
+			}
+			if (np.connLattices.length == 0) {
+				np.connPoints = np.connSingles;
+			}
+		}
+		return moved;
+	}
+	
+	
+	
+	/**
+	 * Returns connection points for a part reference, computing them on first request
+	 * @return connection points, or null if primitive isn't a part reference
+	 */
 	public ConnectionPoint[] getConnPoints() {
+		
+		if (connPoints == null && type == LDrawCommand.REFERENCE) {
+			computeConnGroups();
+			if (connLattices.length == 0) {
+				connPoints = connSingles;
+			}
+			else {
+				// same objects of lattices, so points are the same seen by connection handler
+				List<ConnectionPoint> l = new ArrayList<ConnectionPoint>(Arrays.asList(connSingles));
+				for (ConnLattice cl : connLattices) {
+					l.addAll(cl.getPoints());
+				}
+				connPoints = l.toArray(new ConnectionPoint[l.size()]);
+			}
+		}
 		return connPoints;
 	}
+	
+	
+	
+	private void computeConnGroups() {
+		
+		if (connLattices != null) {
+			return;
+		}
+		List<ConnectionPoint> singles = new ArrayList<ConnectionPoint>();
+		List<ConnLattice> lattices = new ArrayList<ConnLattice>();
+		ConnectionPoint.getConnectionGroups(this, singles, lattices);
+		connSingles = singles.toArray(new ConnectionPoint[singles.size()]);
+		connLattices = lattices.toArray(new ConnLattice[lattices.size()]);
+	}
+	
+	
+	
+	/**
+	 * Returns connection points not in a regular grid, computing them on first request
+	 * @return connection points, or null if primitive isn't a part reference
+	 */
+	public ConnectionPoint[] getConnSingles() {
+		
+		if (type != LDrawCommand.REFERENCE) {
+			return null;
+		}
+		computeConnGroups();
+		return connSingles;
+	}
+	
+	
+	
+	/**
+	 * Returns regular grids of connection points, computing them on first request
+	 * @return connection lattices, or null if primitive isn't a part reference
+	 */
+	public ConnLattice[] getConnLattices() {
+		
+		if (type != LDrawCommand.REFERENCE) {
+			return null;
+		}
+		computeConnGroups();
+		return connLattices;
+	}
 
 
 
 	/**
-	 * recalculates connection points
+	 * recalculates connection points, as lattices and single points. 
+	 * Complete point list is built again only if requested
 	 */
 	public void recalcConnPoints() {
-		this.connPoints = ConnectionPoint.getConnections(this);
+		if (type != LDrawCommand.REFERENCE) {
+			connPoints = new ConnectionPoint[0];
+			return;
+		}
+		connPoints = null;
+		connSingles = null;
+		connLattices = null;
+		computeConnGroups();
 	}
 
 
@@ -616,102 +769,113 @@ public class LDPrimitive {
 	 */
 	private String fancyFloat(float n) {
 		
-		String s = String.format(Locale.US, " %.5f", n);
-		if (s.equals(" -0.00000")) return " 0";
-		if (s.endsWith(".00000")) return s.substring(0, s.length()-6);
-		if (s.endsWith("0000")) return s.substring(0, s.length()-4);
-		if (s.endsWith("000")) return s.substring(0, s.length()-3);
-		if (s.endsWith("00")) return s.substring(0, s.length()-2);
-		if (s.endsWith("0")) return s.substring(0, s.length()-1);
-		return s;
+		StringBuilder sb = new StringBuilder(16);
+		LDrawLineWriter.appendFloat(sb, n);
+		return sb.toString();
+	}
+	
+	
+	
+	private static void appendFloats(StringBuilder sb, float[] v, int count) {
+		
+		for (int i=0;i<count;i++) {
+			LDrawLineWriter.appendFloat(sb, v[i]);
+		}
 	}
 	
 	
 	////////////////////////////////////////////////
 	// file write helpers
 	
-	public String getAsLdrLine() {
+	/**
+	 * Appends primitive as an LDraw line, with line terminator
+	 * Nothing is appended for primitives that doesn't have an LDraw line.
+	 * @param sb destination
+	 */
+	void appendLdrLine(StringBuilder sb) {
 		
-		String c;
-		if (colorIndex >= 0x2000000) {
-			c = String.format("0x%X", colorIndex);
-		}
-		else {
-			c = Integer.toString(colorIndex);
-		}
 		//System.out.println(type+" - "+partId);  // DB
 		switch (type) {
 		case REFERENCE:
-			// from http://stackoverflow.com/a/14126736
-			// for "nice" number output
-			return "1 "+ c + 
-				fancyFloat(matrix.getX()) + fancyFloat(matrix.getY()) + fancyFloat(matrix.getZ()) + 
-				fancyFloat(matrix.getA()) + fancyFloat(matrix.getB()) + fancyFloat(matrix.getC()) +
-				fancyFloat(matrix.getD()) + fancyFloat(matrix.getE()) + fancyFloat(matrix.getF()) +
-				fancyFloat(matrix.getG()) + fancyFloat(matrix.getH()) + fancyFloat(matrix.getI()) +
-				" " + partId + "\n";
+			sb.append("1 ");
+			LDrawLineWriter.appendColor(sb, colorIndex);
+			LDrawLineWriter.appendFloat(sb, matrix.getX());
+			LDrawLineWriter.appendFloat(sb, matrix.getY());
+			LDrawLineWriter.appendFloat(sb, matrix.getZ());
+			LDrawLineWriter.appendFloat(sb, matrix.getA());
+			LDrawLineWriter.appendFloat(sb, matrix.getB());
+			LDrawLineWriter.appendFloat(sb, matrix.getC());
+			LDrawLineWriter.appendFloat(sb, matrix.getD());
+			LDrawLineWriter.appendFloat(sb, matrix.getE());
+			LDrawLineWriter.appendFloat(sb, matrix.getF());
+			LDrawLineWriter.appendFloat(sb, matrix.getG());
+			LDrawLineWriter.appendFloat(sb, matrix.getH());
+			LDrawLineWriter.appendFloat(sb, matrix.getI());
+			sb.append(' ').append(partId).append('\n');
+			break;
 		case AUXLINE:
-			return "5 "+ c +
-					fancyFloat(vertex[0]) + fancyFloat(vertex[1]) + fancyFloat(vertex[2]) +
-					fancyFloat(vertex[3]) + fancyFloat(vertex[4]) + fancyFloat(vertex[5]) +
-					fancyFloat(vertex[6]) + fancyFloat(vertex[7]) + fancyFloat(vertex[8]) +
-					fancyFloat(vertex[9]) + fancyFloat(vertex[10]) + fancyFloat(vertex[11]) +
-					"\n";
+			sb.append("5 ");
+			LDrawLineWriter.appendColor(sb, colorIndex);
+			appendFloats(sb, vertex, 12);
+			sb.append('\n');
+			break;
 		case BFC_CCW:
-			return "0 BFC CERTIFY CCW\n";
+			sb.append("0 BFC CERTIFY CCW\n");
+			break;
 		case BFC_CW:
-			return "0 BFC CERTIFY CW\n";
+			sb.append("0 BFC CERTIFY CW\n");
+			break;
 		case BFC_INVERTNEXT:
-			return "0 BFC INVERTNEXT\n";
+			sb.append("0 BFC INVERTNEXT\n");
+			break;
 		case CATEGORY:
-			return "0 !CATEGORY "+partId+"\n";
-		case COLOUR:
+			sb.append("0 !CATEGORY ").append(partId).append('\n');
 			break;
 		case COMMENT:
-			return partId + "\n";
+			sb.append(partId).append('\n');
+			break;
 		case EMPTY:
-			return "\n";
-		case FILETYPE:
+			sb.append('\n');
 			break;
 		case KEYWORDS:
-			return "0 !KEYWORDS "+partId+"\n";
-		case LINE:
-			return "2 "+ c +
-					fancyFloat(vertex[0]) + fancyFloat(vertex[1]) + fancyFloat(vertex[2]) +
-					fancyFloat(vertex[3]) + fancyFloat(vertex[4]) + fancyFloat(vertex[5]) +
-					"\n";
-		case META_UNKNOWN:
-			return "0 " + partId + "\n";
-		case MPDFILE:
+			sb.append("0 !KEYWORDS ").append(partId).append('\n');
 			break;
-		case MPDNOFILE:
+		case LINE:
+			sb.append("2 ");
+			LDrawLineWriter.appendColor(sb, colorIndex);
+			appendFloats(sb, vertex, 6);
+			sb.append('\n');
 			break;
-		case NAME:
+		case META_UNKNOWN:
+			sb.append("0 ").append(partId).append('\n');
 			break;
 		case QUAD:
-			return "4 "+ c +
-					fancyFloat(vertex[0]) + fancyFloat(vertex[1]) + fancyFloat(vertex[2]) +
-					fancyFloat(vertex[3]) + fancyFloat(vertex[4]) + fancyFloat(vertex[5]) +
-					fancyFloat(vertex[6]) + fancyFloat(vertex[7]) + fancyFloat(vertex[8]) +
-					fancyFloat(vertex[9]) + fancyFloat(vertex[10]) + fancyFloat(vertex[11]) +
-					"\n";
-		case SAVE:
+			sb.append("4 ");
+			LDrawLineWriter.appendColor(sb, colorIndex);
+			appendFloats(sb, vertex, 12);
+			sb.append('\n');
 			break;
 		case STEP:
-			return "0 STEP\n";
+			sb.append("0 STEP\n");
+			break;
 		case TRIANGLE:
-			return "3 "+ c +
-					fancyFloat(vertex[0]) + fancyFloat(vertex[1]) + fancyFloat(vertex[2]) +
-					fancyFloat(vertex[3]) + fancyFloat(vertex[4]) + fancyFloat(vertex[5]) +
-					fancyFloat(vertex[6]) + fancyFloat(vertex[7]) + fancyFloat(vertex[8]) +
-					"\n";
-		case UNKNOWN:
+			sb.append("3 ");
+			LDrawLineWriter.appendColor(sb, colorIndex);
+			appendFloats(sb, vertex, 9);
+			sb.append('\n');
 			break;
 		default:
 			break;
-			
 		}
-		return "";
+	}
+	
+	
+	
+	public String getAsLdrLine() {
+		
+		StringBuilder sb = new StringBuilder(128);
+		appendLdrLine(sb);
+		return sb.toString();
 	}
 	
     
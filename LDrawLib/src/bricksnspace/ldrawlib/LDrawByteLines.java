@@ -0,0 +1,181 @@
+/*
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDrawLib
+
+	LDrawLib is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDrawLib is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDrawLib.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+
+package bricksnspace.ldrawlib;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+
+
+/**
+ * Splits an LDraw file in a byte buffer into lines, without a Reader
+ * <p>
+ * ASCII lines are returned as a view on buffer bytes, so geometry lines are
+ * scanned by {@link LDrawLineScanner} without creating a String. View is reused,
+ * it is valid only until next call to {@link #nextLine()}: use toString() to keep it.
+ * Lines with non-ASCII bytes (i.e. author names) are decoded as UTF-8.
+ *
+ * @author Mario Pascucci
+ *
+ */
+final class LDrawByteLines {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Line of ASCII bytes seen as chars
+	 */
+	private static final class AsciiLine implements CharSequence {
+
+		private byte[] data;
+		private int start;
+		private int length;
+
+
+		@Override
+		public int length() {
+			return length;
+		}
+
+
+		@Override
+		public char charAt(int index) {
+
+			if (index < 0 || index >= length) {
+				throw new IndexOutOfBoundsException("Index: "+index+", length: "+length);
+			}
+			return (char) data[start+index];
+		}
+
+
+		@Override
+		public CharSequence subSequence(int s, int e) {
+
+			if (s < 0 || e > length || s > e) {
+				throw new IndexOutOfBoundsException("Range: "+s+"-"+e+", length: "+length);
+			}
+			char[] c = new char[e-s];
+			for (int i=0;i<c.length;i++) {
+				c[i] = (char) data[start+s+i];
+			}
+			return new String(c);
+		}
+
+
+		@Override
+		public String toString() {
+			return subSequence(0, length).toString();
+		}
+	}
+
+	private final ByteBuffer buffer;
+	private final byte[] data;
+	private final int end;
+	private int pos;
+	private int line = 0;
+	private final AsciiLine view = new AsciiLine();
+
+
+
+	/**
+	 * @param b file contents, from position to limit
+	 */
+	LDrawByteLines(ByteBuffer b) {
+
+		if (b.hasArray()) {
+			buffer = b;
+			data = b.array();
+			pos = b.arrayOffset() + b.position();
+			end = b.arrayOffset() + b.limit();
+		}
+		else {
+			// single byte reads from direct buffers are slow, copy in a single step
+			buffer = null;
+			data = new byte[b.remaining()];
+			b.duplicate().get(data);
+			pos = 0;
+			end = data.length;
+		}
+		view.data = data;
+	}
+
+
+
+	/**
+	 * Reads next line, "\n", "\r\n" and "\r" are line terminators
+	 * @return next line or null if there are no more lines
+	 */
+	CharSequence nextLine() {
+
+		if (pos >= end) {
+			return null;
+		}
+		int start = pos;
+		int i = pos;
+		boolean ascii = true;
+		while (i < end) {
+			byte b = data[i];
+			if (b == '\n' || b == '\r') {
+				break;
+			}
+			if (b < 0) {
+				ascii = false;
+			}
+			i++;
+		}
+		pos = i;
+		if (pos < end) {
+			if (data[pos] == '\r' && pos+1 < end && data[pos+1] == '\n') {
+				pos++;
+			}
+			pos++;
+		}
+		line++;
+		if (!ascii) {
+			return new String(data, start, i-start, UTF8);
+		}
+		view.start = start;
+		view.length = i-start;
+		return view;
+	}
+
+
+
+	/**
+	 * @return number of last line returned, first line is 1
+	 */
+	int getLineNumber() {
+		return line;
+	}
+
+
+
+	/**
+	 * Gives back buffer to {@link MappedZip} pool
+	 */
+	void close() {
+
+		if (buffer != null) {
+			MappedZip.release(buffer);
+		}
+	}
+
+}
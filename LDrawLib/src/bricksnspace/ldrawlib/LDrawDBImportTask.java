@@ -23,7 +23,17 @@ package bricksnspace.ldrawlib;
 import java.io.File;
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -42,6 +52,9 @@ public class LDrawDBImportTask extends SwingWorker<Integer, Void> {
 	LDrawLibDB ldrdb = null;
 	//boolean useAllParts;
 	int index;
+	/** max parts read ahead for every thread */
+	private static final int QUEUEPERTHREAD = 32;
+	private int threads = Runtime.getRuntime().availableProcessors();
 	
 	
 	/**
@@ -57,6 +70,41 @@ public class LDrawDBImportTask extends SwingWorker<Integer, Void> {
 //		this.useAllParts = useAllParts;
 		this.index = index;
 	}
+	
+	
+	
+	/**
+	 * Sets number of threads used to read part metadata
+	 * @param threads number of threads, default is number of available processors
+	 */
+	public void setThreads(int threads) {
+		
+		if (threads < 1)
+			throw new IllegalArgumentException("[LDrawDBImportTask] Thread count must be at least 1");
+		this.threads = threads;
+	}
+	
+	
+	
+	/**
+	 * Waits for part metadata read by a worker thread
+	 * @param part part path in library
+	 * @param f pending read
+	 * @return part metadata or null if part isn't found
+	 * @throws IOException if part can't be read
+	 * @throws InterruptedException
+	 */
+	private LDrawPart getMeta(String part, Future<LDrawPart> f) throws IOException, InterruptedException {
+		
+		try {
+			return f.get();
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof IOException) {
+				throw (IOException) ex.getCause();
+			}
+			throw new IOException("[LDrawDBImportTask] Error reading part: "+part, ex.getCause());
+		}
+	}
 
 	
 	@Override
@@ -97,45 +145,54 @@ public class LDrawDBImportTask extends SwingWorker<Integer, Void> {
 //		if (!ldr.isEnabled(index)) {
 //			Logger.getGlobal().log(Level.WARNING, "[LDrawDB] Importing disabled library?");
 //		}
+		List<String> toImport = new ArrayList<String>();
+		Collection<String> allParts = ldr.getAllParts(index);
+		if (ldr.isLDrawStd(index)) {
+			// import only parts in parts/ path, but not in parts/s/
+			for (String part:allParts) {
+				if (part.toLowerCase().indexOf("parts/") >= 0 &&
+						part.toLowerCase().indexOf("parts/s/") == -1) {
+					toImport.add(part);
+				}
+			}
+		}
+		else {
+			// import all .dat files
+			for (String part:allParts) {
+				if (part.toLowerCase().endsWith(".dat")) {
+					toImport.add(part);
+				}
+			}
+		}
 		ldrdb.prepareUpdate(index);
+		// part headers are parsed by a thread pool, this thread only writes to database
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
 		try {
-			Collection<String> allParts = ldr.getAllParts(index);
-			if (ldr.isLDrawStd(index)) {
-				// import only parts in parts/ path, but not in parts/s/
-				for (String part:allParts) {
-					i++;
-					setProgress(i*100/allParts.size());
-					if (part.toLowerCase().indexOf("parts/") >= 0) {
-						// it is a part
-						if (part.toLowerCase().indexOf("parts/s/") == -1) {
-							// it isn't a subpart
-							File partpath = new File(part);
-							LDrawPart p = LDrawPart.getLDrawPartMeta(partpath.getName());
-							ldrdb.insert(p,index,ldr.isOfficial(index),ldr.isEnabled(index));
-							parts++;
+			Deque<Future<LDrawPart>> queue = new ArrayDeque<Future<LDrawPart>>();
+			Deque<String> names = new ArrayDeque<String>();
+			Iterator<String> it = toImport.iterator();
+			while (it.hasNext() || !queue.isEmpty()) {
+				// keep a limited number of parts ahead of database writer
+				while (it.hasNext() && queue.size() < threads*QUEUEPERTHREAD) {
+					final String part = it.next();
+					names.add(part);
+					queue.add(pool.submit(new Callable<LDrawPart>() {
+						@Override
+						public LDrawPart call() throws IOException {
+							return LDrawPart.getLDrawPartMeta(new File(part).getName());
 						}
-					}
+					}));
 				}
-			}
-			else {
-				// import all .dat files
-				for (String part:allParts) {
-					i++;
-					setProgress(i*100/allParts.size());
-					if (part.toLowerCase().endsWith(".dat")) {
-						// it is a part
-						File partpath = new File(part);
-						LDrawPart p = LDrawPart.getLDrawPartMeta(partpath.getName());
-						if (p == null) {
-							Logger.getGlobal().log(Level.SEVERE,"[LDrawDBImportTask] Unable to find part: "+part);
-							continue;
-						}
-						ldrdb.insert(p,index,ldr.isOfficial(index),ldr.isEnabled(index));
-						parts++;
-					}
+				String part = names.poll();
+				LDrawPart p = getMeta(part, queue.poll());
+				i++;
+				setProgress(i*100/toImport.size());
+				if (p == null) {
+					Logger.getGlobal().log(Level.SEVERE,"[LDrawDBImportTask] Unable to find part: "+part);
+					continue;
 				}
-				
-				
+				ldrdb.insert(p,index,ldr.isOfficial(index),ldr.isEnabled(index));
+				parts++;
 			}
 		}
 		catch (IOException ioex) {
@@ -148,6 +205,14 @@ public class LDrawDBImportTask extends SwingWorker<Integer, Void> {
 			ldrdb.abortUpdate();
 			throw sqlex;
 		}
+		catch (InterruptedException iex) {
+			Logger.getGlobal().log(Level.WARNING, "[LDrawDBImportTask] Import interrupted");
+			ldrdb.abortUpdate();
+			throw iex;
+		}
+		finally {
+			pool.shutdownNow();
+		}
 		ldrdb.endUpdate();
 		return parts;
 	}
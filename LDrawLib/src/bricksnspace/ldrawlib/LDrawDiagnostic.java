@@ -0,0 +1,112 @@
+/*
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDrawLib
+
+	LDrawLib is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDrawLib is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDrawLib.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+
+package bricksnspace.ldrawlib;
+
+
+
+/**
+ * A problem found while parsing a line of an LDraw file
+ * 
+ * @see LDrawDiagnostics
+ * @author Mario Pascucci
+ *
+ */
+public final class LDrawDiagnostic {
+
+	private final String file;
+	private final int lineNo;
+	private final LDrawParseError code;
+	private final String line;
+	private final String message;
+	
+	
+	
+	/**
+	 * @param file file or part name
+	 * @param lineNo line number, first line is 1, 0 if problem isn't in a single line
+	 * @param code error code
+	 * @param line raw line, can be null
+	 * @param message error description, can be null
+	 */
+	public LDrawDiagnostic(String file, int lineNo, LDrawParseError code, String line, String message) {
+		
+		if (code == null) {
+			throw new IllegalArgumentException("[LDrawDiagnostic] Error code can't be null");
+		}
+		this.file = file;
+		this.lineNo = lineNo;
+		this.code = code;
+		this.line = line;
+		this.message = message;
+	}
+
+
+
+	public String getFile() {
+		return file;
+	}
+
+
+
+	public int getLineNumber() {
+		return lineNo;
+	}
+
+
+
+	public LDrawParseError getCode() {
+		return code;
+	}
+
+
+
+	/**
+	 * @return line as read from file, or null
+	 */
+	public String getLine() {
+		return line;
+	}
+
+
+
+	public String getMessage() {
+		return message;
+	}
+
+
+
+	/**
+	 * Same format used in log
+	 */
+	@Override
+	public String toString() {
+		
+		String s = "[" + file + "] line# " + lineNo + "> " + code;
+		if (message != null) {
+			s += ": " + message;
+		}
+		if (line != null) {
+			s += "\n" + line;
+		}
+		return s;
+	}
+
+}
@@ -0,0 +1,188 @@
+/*
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDrawLib
+
+	LDrawLib is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDrawLib is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDrawLib.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+
+package bricksnspace.ldrawlib;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+
+
+/**
+ * Collects problems found while parsing, instead of logging every line
+ * <p>
+ * Diagnostics are kept in a list, up to a limit, and counted by error code.
+ * Only first diagnostics for every code are logged, others are counted
+ * and reported with {@link #logSummary()}. Can be used by more threads.
+ * 
+ * @author Mario Pascucci
+ *
+ */
+public class LDrawDiagnostics {
+
+	/** default max diagnostics kept */
+	public static final int MAXSTORED = 10000;
+	/** default diagnostics logged for every error code */
+	public static final int LOGLIMIT = 20;
+	
+	private final int maxStored;
+	private final int logLimit;
+	private final List<LDrawDiagnostic> diagnostics = new ArrayList<LDrawDiagnostic>();
+	private final Map<LDrawParseError,Integer> counts = 
+			new EnumMap<LDrawParseError,Integer>(LDrawParseError.class);
+	private final Map<LDrawParseError,Integer> suppressed = 
+			new EnumMap<LDrawParseError,Integer>(LDrawParseError.class);
+	private int count = 0;
+	
+	
+	
+	public LDrawDiagnostics() {
+		
+		this(MAXSTORED, LOGLIMIT);
+	}
+	
+	
+	
+	/**
+	 * @param maxStored max diagnostics kept in list, others are only counted
+	 * @param logLimit diagnostics logged for every error code, 0 for no logging
+	 */
+	public LDrawDiagnostics(int maxStored, int logLimit) {
+		
+		if (maxStored < 0 || logLimit < 0) {
+			throw new IllegalArgumentException("[LDrawDiagnostics] Limits can't be negative");
+		}
+		this.maxStored = maxStored;
+		this.logLimit = logLimit;
+	}
+	
+	
+	
+	/**
+	 * Reports a problem
+	 * @param file file or part name
+	 * @param lineNo line number, 0 if problem isn't in a single line
+	 * @param code error code
+	 * @param line raw line, can be null
+	 * @param message error description, can be null
+	 */
+	public void report(String file, int lineNo, LDrawParseError code, CharSequence line, String message) {
+		
+		add(new LDrawDiagnostic(file, lineNo, code, line == null ? null : line.toString(), message));
+	}
+	
+	
+	
+	/**
+	 * Adds a diagnostic, logging it if log limit for its code isn't reached
+	 * @param d diagnostic to add
+	 */
+	public void add(LDrawDiagnostic d) {
+		
+		boolean log;
+		synchronized (this) {
+			count++;
+			if (diagnostics.size() < maxStored) {
+				diagnostics.add(d);
+			}
+			Integer n = counts.get(d.getCode());
+			n = n == null ? 1 : n+1;
+			counts.put(d.getCode(), n);
+			log = n <= logLimit;
+			if (!log) {
+				Integer s = suppressed.get(d.getCode());
+				suppressed.put(d.getCode(), s == null ? 1 : s+1);
+			}
+		}
+		if (log) {
+			Logger.getGlobal().warning(d.toString());
+		}
+	}
+	
+	
+	
+	/**
+	 * Logs number of diagnostics not logged since last summary, if any
+	 */
+	public void logSummary() {
+		
+		String s = "";
+		synchronized (this) {
+			for (Map.Entry<LDrawParseError,Integer> e : suppressed.entrySet()) {
+				s += " " + e.getKey() + "=" + e.getValue();
+			}
+			suppressed.clear();
+		}
+		if (s.length() > 0) {
+			Logger.getGlobal().warning("[LDrawDiagnostics] More problems not logged:" + s);
+		}
+	}
+	
+	
+	
+	/**
+	 * @return a copy of diagnostics list, in report order
+	 */
+	public synchronized List<LDrawDiagnostic> getDiagnostics() {
+		
+		return new ArrayList<LDrawDiagnostic>(diagnostics);
+	}
+	
+	
+	
+	/**
+	 * @return number of diagnostics reported, including ones not kept in list
+	 */
+	public synchronized int getCount() {
+		return count;
+	}
+	
+	
+	
+	/**
+	 * @return number of diagnostics reported for an error code
+	 */
+	public synchronized int getCount(LDrawParseError code) {
+		
+		Integer n = counts.get(code);
+		return n == null ? 0 : n;
+	}
+	
+	
+	
+	public synchronized void clear() {
+		
+		diagnostics.clear();
+		counts.clear();
+		suppressed.clear();
+		count = 0;
+	}
+	
+	
+	
+	@Override
+	public synchronized String toString() {
+		return "LDrawDiagnostics [count=" + count + ", " + counts + "]";
+	}
+
+}
@@ -0,0 +1,272 @@
+/*
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDrawLib
+
+	LDrawLib is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDrawLib is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDrawLib.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+
+package bricksnspace.ldrawlib;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.LineNumberReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+
+
+/**
+ * Push parser for LDraw files, calls a {@link LDrawVisitor} for every line
+ * <p>
+ * No {@link LDPrimitive} or {@link LDrawPart} is created: coordinates are read
+ * into buffers reused for every line, so files of any size are parsed
+ * in constant memory. BFC winding and INVERTNEXT are tracked as in {@link LDrawPart},
+ * and are reset at every FILE in a MPD. Lines that can't be parsed are sent
+ * to {@link LDrawVisitor#onError(String, String)}, geometry lines are checked
+ * without exceptions.
+ * <p>
+ * A parser isn't thread safe, but it can be reused for other files.
+ *
+ * @author Mario Pascucci
+ *
+ */
+public class LDrawEventParser {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final LDrawVisitor visitor;
+	private final float[] v6 = new float[6];
+	private final float[] v9 = new float[9];
+	private final float[] v12 = new float[12];
+	private boolean invNext;
+	private boolean isClockWise;
+	private int lineNo;
+
+
+
+	/**
+	 * @param visitor receives parsed lines
+	 */
+	public LDrawEventParser(LDrawVisitor visitor) {
+
+		if (visitor == null) {
+			throw new IllegalArgumentException("[LDrawEventParser] Visitor can't be null");
+		}
+		this.visitor = visitor;
+	}
+
+
+
+	/**
+	 * @return number of line being parsed, first line is 1. Can be used in callbacks.
+	 */
+	public int getLineNumber() {
+		return lineNo;
+	}
+
+
+
+	private void reset() {
+
+		invNext = false;
+		isClockWise = false;
+		lineNo = 0;
+	}
+
+
+
+	/**
+	 * Parses a file reading lines from a reader. Reader isn't closed.
+	 * @param r file to parse
+	 * @throws IOException if reader fails
+	 */
+	public void parse(Reader r) throws IOException {
+
+		LineNumberReader lnr = r instanceof LineNumberReader ?
+				(LineNumberReader) r : new LineNumberReader(r);
+		String l;
+		reset();
+		while ((l = lnr.readLine()) != null) {
+			lineNo++;
+			parseLine(l);
+		}
+	}
+
+
+
+	/**
+	 * Parses a file on disk, reading a line at a time. File is decoded as UTF-8,
+	 * as in {@link #parse(ByteBuffer)}
+	 * @param f file to parse
+	 * @throws IOException if file can't be read
+	 */
+	public void parse(File f) throws IOException {
+
+		Reader r = new InputStreamReader(new FileInputStream(f), UTF8);
+		try {
+			parse(r);
+		}
+		finally {
+			r.close();
+		}
+	}
+
+
+
+	/**
+	 * Parses a whole file in a byte buffer, as returned by {@link LDrawLib#getPartBuffer(String)}.
+	 * ASCII geometry lines are scanned directly from bytes, without creating a String.
+	 * Buffer position isn't changed and buffer isn't released.
+	 * @param b file contents, from position to limit
+	 */
+	public void parse(ByteBuffer b) {
+
+		LDrawByteLines lines = new LDrawByteLines(b);
+		CharSequence l;
+		reset();
+		while ((l = lines.nextLine()) != null) {
+			lineNo = lines.getLineNumber();
+			parseLine(l);
+		}
+	}
+
+
+
+	/**
+	 * Reads n numbers into buffer
+	 */
+	private static void numbers(LDrawLineScanner sc, float[] v, int n) {
+
+		for (int i=0;i<n;i++) {
+			v[i] = sc.number();
+		}
+	}
+
+
+
+	/**
+	 * Sends error found by a lenient scanner, if any
+	 * @return true if line has an error
+	 */
+	private boolean scanError(LDrawLineScanner sc, CharSequence l) {
+
+		if (sc.getError() == null)
+			return false;
+		visitor.onError(l.toString(), "Parse error: "+sc.getError());
+		return true;
+	}
+
+
+
+	private void parseLine(CharSequence l) {
+
+		try {
+			LDrawCommand cmd = LDrawParser.parseCommand(l);
+			LDrawLineScanner sc;
+			int color;
+			switch (cmd) {
+			case REFERENCE:
+				sc = new LDrawLineScanner(l, true);
+				sc.lineType('1');
+				color = sc.colour();
+				numbers(sc, v12, 12);
+				String name = sc.rest();
+				if (scanError(sc, l))
+					break;
+				boolean inv = invNext;
+				invNext = false;
+				visitor.onReference(color, v12, name, inv);
+				break;
+			case LINE:
+				sc = new LDrawLineScanner(l, true);
+				sc.lineType('2');
+				color = sc.colour();
+				numbers(sc, v6, 6);
+				sc.lineEnd();
+				if (scanError(sc, l))
+					break;
+				visitor.onLine(color, v6);
+				break;
+			case TRIANGLE:
+				sc = new LDrawLineScanner(l, true);
+				sc.lineType('3');
+				color = sc.colour();
+				numbers(sc, v9, 9);
+				sc.lineEnd();
+				if (scanError(sc, l))
+					break;
+				visitor.onTriangle(color, v9, isClockWise);
+				break;
+			case QUAD:
+				sc = new LDrawLineScanner(l, true);
+				sc.lineType('4');
+				color = sc.colour();
+				numbers(sc, v12, 12);
+				sc.lineEnd();
+				if (scanError(sc, l))
+					break;
+				visitor.onQuad(color, v12, isClockWise);
+				break;
+			case AUXLINE:
+				sc = new LDrawLineScanner(l, true);
+				sc.lineType('5');
+				color = sc.colour();
+				numbers(sc, v12, 12);
+				sc.lineEnd();
+				if (scanError(sc, l))
+					break;
+				visitor.onAuxLine(color, v12);
+				break;
+			case STEP:
+				visitor.onStep();
+				break;
+			case MPDFILE:
+				String file = LDrawParser.parseMpdFile(l.toString());
+				invNext = false;
+				isClockWise = false;
+				visitor.onFile(file);
+				break;
+			case MPDNOFILE:
+				visitor.onNoFile();
+				break;
+			case EMPTY:
+				break;
+			case BFC_CW:
+				isClockWise = true;
+				visitor.onMeta(cmd, l.toString());
+				break;
+			case BFC_CCW:
+				isClockWise = false;
+				visitor.onMeta(cmd, l.toString());
+				break;
+			case BFC_INVERTNEXT:
+				invNext = true;
+				visitor.onMeta(cmd, l.toString());
+				break;
+			default:
+				visitor.onMeta(cmd, l.toString());
+				break;
+			}
+		}
+		catch (IllegalArgumentException ex) {
+			visitor.onError(l.toString(), ex.getLocalizedMessage());
+		}
+	}
+
+}
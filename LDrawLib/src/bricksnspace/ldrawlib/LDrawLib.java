@@ -24,9 +24,11 @@ package bricksnspace.ldrawlib;
 
 
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.LineNumberReader;
+import java.nio.ByteBuffer;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -58,6 +60,8 @@ import bricksnspace.dbconnector.DBConnector;
 public class LDrawLib { 
 
 	private List<LDLibrary> ldLibs;
+	/** merged part resolution table for enabled libraries */
+	private volatile LDPartIndex partIndex = new LDPartIndex();
 	public static final int OFFICIALINDEX = 0;
 	
 	private boolean officialOnly = false;
@@ -90,6 +94,7 @@ public class LDrawLib {
 		if (!l.isLDrawStd())
 			throw new IOException("[LDrawLib] Library isn't an official library.\nPath:"+official);
 		ldLibs.add(l);
+		rebuildIndex();
 		LDrawColor.readFromLibrary(this);
 		LDrawPart.setLdrlib(this);
 	}
@@ -109,6 +114,7 @@ public class LDrawLib {
 		if (!l.isLDrawStd())
 			return false;
 		ldLibs.set(OFFICIALINDEX, l);
+		rebuildIndex();
 		LDrawColor.readFromLibrary(this);
 		return true;
 	}
@@ -118,6 +124,16 @@ public class LDrawLib {
 	
 	
 	
+	/**
+	 * Rebuilds merged part resolution table from library list
+	 */
+	private void rebuildIndex() {
+		
+		partIndex = LDPartIndex.build(ldLibs, officialOnly);
+	}
+	
+	
+	
 	/**
 	 * @return the ldrDB or null if database isn't used
 	 */
@@ -191,6 +207,12 @@ public class LDrawLib {
 		if (!enabled) 
 			l.disable();
 		ldLibs.add(l);
+		if (enabled && (!officialOnly || ldLibs.size()-1 == OFFICIALINDEX)) {
+			// new library has lowest priority, add only parts not already in table
+			LDPartIndex idx = new LDPartIndex(partIndex);
+			idx.append(l, ldLibs.size()-1);
+			partIndex = idx;
+		}
 		return ldLibs.indexOf(l);
 //		officialIndex = getOfficialIndex();
 	}
@@ -218,6 +240,7 @@ public class LDrawLib {
 				}
 				ldrDB.endUpdate();
 				ldLibs.remove(index);
+				rebuildIndex();
 			}
 			catch (SQLException sqlex) {
 				Logger.getGlobal().log(Level.SEVERE,"[LDrawLib] Error in removing library index:"+index, sqlex);
@@ -324,6 +347,7 @@ public class LDrawLib {
 	public void enable(int index) {
 		
 		ldLibs.get(index).enable();
+		rebuildIndex();
 		if (useDatabase) {
 			try {
 				ldrDB.enableLib(index);
@@ -347,6 +371,7 @@ public class LDrawLib {
 			return;			
 		}
 		ldLibs.get(index).disable();
+		rebuildIndex();
 		if (useDatabase) {
 			try {
 				ldrDB.disableLib(index);
@@ -374,6 +399,7 @@ public class LDrawLib {
 		a = ldLibs.get(index);
 		b = ldLibs.set(index-1, a);
 		ldLibs.set(index, b);
+		rebuildIndex();
 		if (useDatabase) {
 			try {
 				ldrDB.changePriority(index,index-1);
@@ -406,6 +432,7 @@ public class LDrawLib {
 		a = ldLibs.get(index+1);
 		b = ldLibs.set(index, a);
 		ldLibs.set(index+1, b);
+		rebuildIndex();
 		if (useDatabase) {
 			try {
 				ldrDB.changePriority(index,index+1);
@@ -459,6 +486,19 @@ public class LDrawLib {
 	
 	
 	
+	/**
+	 * Enables library index snapshots, to avoid a full library scan 
+	 * on startup if library isn't changed.
+	 * Must be called before library creation. 
+	 * @param folder folder where index files are stored, null to disable 
+	 */
+	public static void useIndexFolder(File folder) {
+		
+		LDLibrary.setIndexFolder(folder);
+	}
+	
+	
+	
 	/**
 	 * Checks if LDrawLib looking for parts only in official library
 	 * 
@@ -475,7 +515,10 @@ public class LDrawLib {
 	 * @param officialOnly if true uses only official parts
 	 */
 	public void setOfficialOnly(boolean officialOnly) {
+		if (this.officialOnly == officialOnly)
+			return;
 		this.officialOnly = officialOnly;
+		rebuildIndex();
 	}
 
 
@@ -487,19 +530,11 @@ public class LDrawLib {
 	 */
 	public LDrawPartType checkPart(String ldrawId) {
 		
-		// if only official lib is enabled
-		if (officialOnly) {
-			return ldLibs.get(OFFICIALINDEX).checkPart(ldrawId);
-		}
-		for (int i=0;i<ldLibs.size();i++) {
-			// if lib is disabled, ignore
-			if (!ldLibs.get(i).isEnabled())
-				continue;
-			LDrawPartType t = ldLibs.get(i).checkPart(ldrawId);
-			if (t != LDrawPartType.NONE)
-				return t;
-		}
-		return LDrawPartType.NONE;
+		// merged table contains only enabled libraries, or only official if officialOnly 
+		LDPartIndex.Entry e = partIndex.get(LDPartIndex.normalize(ldrawId));
+		if (e == null)
+			return LDrawPartType.NONE;
+		return e.type;
 	}
 	
 
@@ -565,23 +600,41 @@ public class LDrawLib {
 	 */
 	public LineNumberReader getPart(String ldrawid) {
 
-		// if only official lib is enabled
-		if (officialOnly) {
-			LineNumberReader l = ldLibs.get(OFFICIALINDEX).getPart(ldrawid);
-			if (l == null)
+		// merged table contains only enabled libraries, or only official if officialOnly 
+		LDPartIndex.Entry e = partIndex.getForResolution(LDPartIndex.normalize(ldrawid));
+		LineNumberReader l = null;
+		if (e != null) {
+			l = e.lib.openEntry(e.entry);
+		}
+		if (l == null) {
+			if (officialOnly)
 				Logger.getGlobal().log(Level.WARNING,"[LDLibrary] Unable to get part "+ldrawid+" from official library");
-			return l;
+			else 
+				Logger.getGlobal().log(Level.WARNING,"[LDLibrary] Unable to get part "+ldrawid);
 		}
-		for (int i=0;i<ldLibs.size();i++) {
-			// if lib is disabled, ignore
-			if (!ldLibs.get(i).isEnabled())
-				continue;
-			LineNumberReader l = ldLibs.get(i).getPart(ldrawid);
-			if (l != null)
-				return l;
+		return l;
+	}
+	
+	
+	
+	/** 
+	 * Gets contents of part identified by "ldrid" as a byte buffer
+	 * 
+	 * @param ldrid LDraw part ID as full pathname with ".dat" suffix 
+	 * @return part file contents or null if part is not found
+	 * @see LDLibrary#setMappedZip(boolean)
+	 */
+	public ByteBuffer getPartBuffer(String ldrawid) {
+
+		LDPartIndex.Entry e = partIndex.getForResolution(LDPartIndex.normalize(ldrawid));
+		ByteBuffer b = null;
+		if (e != null) {
+			b = e.lib.readEntry(e.entry);
+		}
+		if (b == null) {
+			Logger.getGlobal().log(Level.WARNING,"[LDLibrary] Unable to get part "+ldrawid);
 		}
-		Logger.getGlobal().log(Level.WARNING,"[LDLibrary] Unable to get part "+ldrawid);
-    	return null;
+		return b;
 	}
 	
 	
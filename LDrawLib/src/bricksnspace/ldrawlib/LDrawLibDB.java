@@ -52,6 +52,10 @@ public class LDrawLibDB {
 	boolean inited = false;
 	boolean needUpgrade = false;
 	private PreparedStatement insertPS;
+	/** default number of rows sent to database in a single batch during update */
+	public final static int DEFAULT_BATCHSIZE = 500;
+	private int batchSize = DEFAULT_BATCHSIZE;
+	private int batchCount = 0;
 	private boolean includeObsolete = false;
 	private boolean includeColored = false;
 	private PreparedStatement updatedPartsPS;
@@ -178,6 +182,7 @@ public class LDrawLibDB {
 				" ("+fieldsOrder+") VALUES " +
 				"(?,?,?,?,?,?,?,?,?,?,?,?,?)" +
 				";");
+		batchCount = 0;
 		st = db.createStatement();
 		// drop "something" commits an open transaction
 		st.executeUpdate("DROP INDEX IF EXISTS ldr_ldrid");
@@ -196,6 +201,7 @@ public class LDrawLibDB {
 		
 		Statement st = db.createStatement();
 
+		flushInsert();
 		db.commit();
 		db.autocommitEnable();
 		st.executeUpdate("CREATE INDEX IF NOT EXISTS ldr_ldrid ON "+table+"(ldrid)");
@@ -212,6 +218,8 @@ public class LDrawLibDB {
 	 */
 	public void abortUpdate() throws SQLException {
 		
+		insertPS.clearBatch();
+		batchCount = 0;
 		db.rollback();
 		db.autocommitEnable();
 		Statement st = db.createStatement();
@@ -429,7 +437,44 @@ public class LDrawLibDB {
 		insertPS.setBoolean(11, isOfficial);
 		insertPS.setInt(12, priority);
 		insertPS.setBoolean(13, isEnabled);
-		insertPS.executeUpdate();
+		insertPS.addBatch();
+		batchCount++;
+		if (batchCount >= batchSize) {
+			flushInsert();
+		}
+	}
+
+	
+	
+	/**
+	 * Sends pending inserted rows to database
+	 * @throws SQLException
+	 */
+	private void flushInsert() throws SQLException {
+		
+		if (batchCount > 0) {
+			insertPS.executeBatch();
+			batchCount = 0;
+		}
+	}
+	
+	
+	
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+
+
+	/**
+	 * Sets number of rows sent to database in a single batch during update
+	 * @param batchSize rows in a batch, 1 sends every row when inserted
+	 */
+	public void setBatchSize(int batchSize) {
+		
+		if (batchSize < 1)
+			throw new IllegalArgumentException("[LDrawDB] Batch size must be at least 1");
+		this.batchSize = batchSize;
 	}
 
 	
@@ -0,0 +1,383 @@
+/*
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDrawLib
+
+	LDrawLib is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDrawLib is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDrawLib.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+
+package bricksnspace.ldrawlib;
+
+
+/**
+ * Single pass scanner for LDraw geometry lines (types 1 to 5)
+ * <p>
+ * Reads tokens directly from line characters, without regular expressions
+ * and without creating a substring for every field.
+ * Numbers with up to 7 significant digits and no exponent (almost all numbers in
+ * LDraw library files) are converted in place, others are delegated to Float.parseFloat().
+ * <p>
+ * A lenient scanner doesn't throw exceptions: first error is recorded, following
+ * reads return 0 or null, and caller checks {@link #getError()} when line is read.
+ *
+ * @author Mario Pascucci
+ *
+ */
+final class LDrawLineScanner {
+
+	/** exact powers of ten as float */
+	private static final float[] POW10 = {
+		1f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f
+	};
+
+	/** max integer mantissa that converts exactly to float */
+	private static final int MAXMANTISSA = 1 << 24;
+
+	private final CharSequence line;
+	private final int end;
+	private int pos;
+	private final boolean lenient;
+	private LDrawParseError error = null;
+	private LDrawParseError warning = null;
+
+
+
+	/**
+	 * Creates a scanner for a line, that throws exceptions on errors
+	 * @param l line to scan
+	 */
+	LDrawLineScanner(CharSequence l) {
+
+		this(l, false);
+	}
+
+
+
+	/**
+	 * Creates a scanner for a line
+	 * @param l line to scan
+	 * @param lenient if true errors are recorded instead of throwing exceptions
+	 */
+	LDrawLineScanner(CharSequence l, boolean lenient) {
+
+		line = l;
+		end = l.length();
+		pos = 0;
+		this.lenient = lenient;
+	}
+
+
+
+	/**
+	 * @return first error found by a lenient scanner, or null if line is valid
+	 */
+	LDrawParseError getError() {
+		return error;
+	}
+
+
+
+	/**
+	 * @return problem found by a lenient scanner that doesn't invalidate line
+	 * 			(i.e. {@link LDrawParseError#INVALID_COLOR}), or null
+	 */
+	LDrawParseError getWarning() {
+		return warning;
+	}
+
+
+
+	/**
+	 * Whitespace as in regular expression "\s" class
+	 */
+	static boolean isSpace(char c) {
+
+		return c == ' ' || c == '\t' || c == '\r' || c == '\n' || c == '\f' || c == 0x0b;
+	}
+
+
+
+	/**
+	 * Fast classification of geometry lines, used to avoid full tokenization
+	 * @param l line to check
+	 * @return line type character ('1' to '5') if line starts with a single-digit
+	 * 			type token followed by at least another token, 0 otherwise
+	 */
+	static char geometryType(CharSequence l) {
+
+		int n = l.length();
+		int i = 0;
+		while (i < n && isSpace(l.charAt(i)))
+			i++;
+		if (i+1 >= n || !isSpace(l.charAt(i+1)))
+			return 0;
+		char t = l.charAt(i);
+		if (t < '1' || t > '5')
+			return 0;
+		i += 2;
+		while (i < n && isSpace(l.charAt(i)))
+			i++;
+		return i < n ? t : 0;
+	}
+
+
+
+	private void skipSpaces() {
+
+		while (pos < end && isSpace(line.charAt(pos)))
+			pos++;
+	}
+
+
+
+	/**
+	 * Skips to end of current token
+	 * @return position of first char after token
+	 */
+	private int tokenEnd() {
+
+		int e = pos;
+		while (e < end && !isSpace(line.charAt(e)))
+			e++;
+		return e;
+	}
+
+
+
+	/**
+	 * Throws parse error, or records it and skips rest of line if scanner is lenient
+	 */
+	private void fail(LDrawParseError code) {
+
+		if (!lenient)
+			throw new IllegalArgumentException("Parse error: "+line);
+		if (error == null)
+			error = code;
+		pos = end;
+	}
+
+
+
+	/**
+	 * Checks number syntax accepted by Float.parseFloat(), for chars
+	 * allowed in {@link #number()}: [-]digits[.digits][(e|E)[-]digits]
+	 */
+	private boolean isFloat(int s, int e) {
+
+		int i = s;
+		if (i < e && line.charAt(i) == '-')
+			i++;
+		int digits = 0;
+		while (i < e && line.charAt(i) >= '0' && line.charAt(i) <= '9') {
+			i++;
+			digits++;
+		}
+		if (i < e && line.charAt(i) == '.') {
+			i++;
+			while (i < e && line.charAt(i) >= '0' && line.charAt(i) <= '9') {
+				i++;
+				digits++;
+			}
+		}
+		if (digits == 0)
+			return false;
+		if (i < e && (line.charAt(i) == 'e' || line.charAt(i) == 'E')) {
+			i++;
+			if (i < e && line.charAt(i) == '-')
+				i++;
+			int exp = i;
+			while (i < e && line.charAt(i) >= '0' && line.charAt(i) <= '9')
+				i++;
+			if (i == exp)
+				return false;
+		}
+		return i == e;
+	}
+
+
+
+	/**
+	 * Reads line type token
+	 * @param type expected line type ('1' to '5')
+	 * @throws IllegalArgumentException if line isn't of requested type
+	 */
+	void lineType(char type) {
+
+		skipSpaces();
+		if (pos+1 >= end || line.charAt(pos) != type || !isSpace(line.charAt(pos+1))) {
+			fail(LDrawParseError.SYNTAX);
+			return;
+		}
+		pos++;
+	}
+
+
+
+	/**
+	 * Reads a color index or a direct color (0x2RRGGBB)
+	 * @return color as in {@link LDrawParser#parseColorIndex(String)}
+	 * @throws IllegalArgumentException if token contains invalid characters
+	 */
+	int colour() {
+
+		skipSpaces();
+		int s = pos;
+		int e = tokenEnd();
+		if (s == e) {
+			fail(LDrawParseError.SYNTAX);
+			return LDrawColor.INVALID_COLOR;
+		}
+		pos = e;
+		if (e - s <= 9) {
+			int c = 0;
+			int i;
+			for (i=s;i<e;i++) {
+				char d = line.charAt(i);
+				if (d < '0' || d > '9')
+					break;
+				c = c*10 + (d-'0');
+			}
+			if (i == e)
+				return c;
+		}
+		for (int i=s;i<e;i++) {
+			char d = Character.toLowerCase(line.charAt(i));
+			if (!((d >= '0' && d <= '9') || (d >= 'a' && d <= 'f') || d == 'x')) {
+				fail(LDrawParseError.SYNTAX);
+				return LDrawColor.INVALID_COLOR;
+			}
+		}
+		if (!lenient)
+			return LDrawParser.parseColorIndex(line.subSequence(s, e).toString());
+		// same values as parseColorIndex(), without exceptions
+		long c = 0;
+		int radix = 10;
+		int i = s;
+		if (e - s > 2 && line.charAt(s) == '0' && line.charAt(s+1) == 'x') {
+			radix = 16;
+			i += 2;
+		}
+		for (;i<e && c <= Integer.MAX_VALUE;i++) {
+			int d = Character.digit(line.charAt(i), radix);
+			if (d < 0)
+				break;
+			c = c*radix + d;
+		}
+		if (i < e || c > Integer.MAX_VALUE) {
+			warning = LDrawParseError.INVALID_COLOR;
+			return LDrawColor.INVALID_COLOR;
+		}
+		return (int) c;
+	}
+
+
+
+	/**
+	 * Reads a floating point number
+	 * @return value read
+	 * @throws IllegalArgumentException if token contains invalid characters
+	 * @throws NumberFormatException if token isn't a valid number
+	 */
+	float number() {
+
+		skipSpaces();
+		int s = pos;
+		int e = tokenEnd();
+		if (s == e) {
+			fail(LDrawParseError.SYNTAX);
+			return 0;
+		}
+		pos = e;
+		int i = s;
+		boolean neg = false;
+		if (line.charAt(i) == '-') {
+			neg = true;
+			i++;
+		}
+		int m = 0;
+		int digits = 0;
+		int frac = -1;
+		for (;i<e;i++) {
+			char c = line.charAt(i);
+			if (c >= '0' && c <= '9') {
+				m = m*10 + (c-'0');
+				digits++;
+				if (frac >= 0)
+					frac++;
+				if (m > MAXMANTISSA)
+					break;
+			}
+			else if (c == '.' && frac < 0) {
+				frac = 0;
+			}
+			else {
+				break;
+			}
+		}
+		if (i == e && digits > 0 && frac < POW10.length) {
+			// mantissa and power of ten are exact floats, so division is correctly rounded
+			float f = frac > 0 ? m / POW10[frac] : m;
+			return neg ? -f : f;
+		}
+		for (i=s;i<e;i++) {
+			char c = line.charAt(i);
+			if (!((c >= '0' && c <= '9') || c == '-' || c == '.' || c == 'e' || c == 'E')) {
+				fail(LDrawParseError.SYNTAX);
+				return 0;
+			}
+		}
+		if (lenient && !isFloat(s, e)) {
+			fail(LDrawParseError.INVALID_NUMBER);
+			return 0;
+		}
+		return Float.parseFloat(line.subSequence(s, e).toString());
+	}
+
+
+
+	/**
+	 * Reads remaining part of line, without leading and trailing spaces
+	 * @return remaining text, null if there is no text left and scanner is lenient
+	 * @throws IllegalArgumentException if there is no text left
+	 */
+	String rest() {
+
+		skipSpaces();
+		int e = end;
+		while (e > pos && isSpace(line.charAt(e-1)))
+			e--;
+		if (e == pos) {
+			fail(LDrawParseError.SYNTAX);
+			return null;
+		}
+		String r = line.subSequence(pos, e).toString();
+		pos = end;
+		return r;
+	}
+
+
+
+	/**
+	 * Checks that nothing but spaces follows current position
+	 * @throws IllegalArgumentException if there are other characters in line
+	 */
+	void lineEnd() {
+
+		skipSpaces();
+		if (pos != end)
+			fail(LDrawParseError.SYNTAX);
+	}
+
+}
@@ -0,0 +1,193 @@
+/*
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDrawLib
+
+	LDrawLib is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDrawLib is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDrawLib.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+
+package bricksnspace.ldrawlib;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+
+/**
+ * Writes LDraw lines to a stream, formatting numbers in a reusable buffer
+ * <p>
+ * Number format is the same used in LDraw files from this library:
+ * max 5 decimals, no trailing decimal zeroes, no "-0".
+ *
+ * @author Mario Pascucci
+ *
+ */
+final class LDrawLineWriter {
+
+	private static final char[] HEXDIGITS = "0123456789ABCDEF".toCharArray();
+	/** over this absolute value numbers are formatted with String.format() */
+	private static final float MAXFASTFLOAT = 1e12f;
+
+	private final Writer out;
+	private final StringBuilder line = new StringBuilder(256);
+	private char[] buf = new char[256];
+
+
+
+	/**
+	 * Creates a writer for LDraw lines
+	 * @param w destination stream
+	 */
+	LDrawLineWriter(Writer w) {
+
+		out = w;
+	}
+
+
+
+	/**
+	 * Writes a primitive as an LDraw line
+	 * @param p primitive to write
+	 * @throws IOException
+	 */
+	void write(LDPrimitive p) throws IOException {
+
+		line.setLength(0);
+		p.appendLdrLine(line);
+		int len = line.length();
+		if (len > buf.length) {
+			buf = new char[Math.max(len, buf.length*2)];
+		}
+		line.getChars(0, len, buf, 0);
+		out.write(buf, 0, len);
+	}
+
+
+
+	/**
+	 * Writes a string as is
+	 * @param s string to write
+	 * @throws IOException
+	 */
+	void write(String s) throws IOException {
+
+		out.write(s);
+	}
+
+
+
+	void close() throws IOException {
+
+		out.close();
+	}
+
+
+
+	/**
+	 * Appends a float with a leading space, rounded to 5 decimals (half up)
+	 * and without trailing decimal zeroes.
+	 * Output is the same as String.format(Locale.US, " %.5f", n) with zeroes trimmed
+	 * @param sb destination
+	 * @param n number to format
+	 */
+	static void appendFloat(StringBuilder sb, float n) {
+
+		if (Float.isNaN(n) || Math.abs(n) >= MAXFASTFLOAT) {
+			appendFloatSlow(sb, n);
+			return;
+		}
+		// float times 10^5 is exact in a double (24+17 bit mantissa)
+		double x = Math.abs((double) n * 100000.0);
+		long r = (long) x;
+		if (x - r >= 0.5) {
+			r++;
+		}
+		sb.append(' ');
+		if (r == 0) {
+			sb.append('0');
+			return;
+		}
+		if (n < 0) {
+			sb.append('-');
+		}
+		sb.append(r / 100000);
+		int frac = (int) (r % 100000);
+		if (frac == 0) {
+			return;
+		}
+		int digits = 5;
+		while (frac % 10 == 0) {
+			frac /= 10;
+			digits--;
+		}
+		sb.append('.');
+		for (int d=digits-1, p=1;d>0;d--) {
+			p *= 10;
+			if (frac < p) {
+				sb.append('0');
+			}
+		}
+		sb.append(frac);
+	}
+
+
+
+	/**
+	 * Old formatter, used for very large numbers
+	 */
+	private static void appendFloatSlow(StringBuilder sb, float n) {
+
+		String s = String.format(Locale.US, " %.5f", n);
+		if (s.equals(" -0.00000")) {
+			sb.append(" 0");
+			return;
+		}
+		int e = s.length();
+		if (s.endsWith(".00000")) {
+			e -= 6;
+		}
+		else {
+			while (s.charAt(e-1) == '0') {
+				e--;
+			}
+		}
+		sb.append(s, 0, e);
+	}
+
+
+
+	/**
+	 * Appends a color index, or a direct color as "0x2RRGGBB"
+	 * @param sb destination
+	 * @param c color index
+	 */
+	static void appendColor(StringBuilder sb, int c) {
+
+		if (c >= 0x2000000) {
+			sb.append("0x");
+			int shift = 28;
+			while (shift > 0 && ((c >>> shift) & 0xf) == 0) {
+				shift -= 4;
+			}
+			for (;shift>=0;shift-=4) {
+				sb.append(HEXDIGITS[(c >>> shift) & 0xf]);
+			}
+		}
+		else {
+			sb.append(c);
+		}
+	}
+
+}
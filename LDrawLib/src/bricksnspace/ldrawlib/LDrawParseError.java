@@ -0,0 +1,48 @@
+/*
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDrawLib
+
+	LDrawLib is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDrawLib is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDrawLib.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+
+package bricksnspace.ldrawlib;
+
+/**
+ * Error codes for problems found while parsing LDraw files
+ * 
+ * @see LDrawDiagnostic
+ * @author Mario Pascucci
+ *
+ */
+public enum LDrawParseError {
+	/** malformed line, i.e. wrong line type, missing or extra fields */
+	SYNTAX,
+	/** invalid number in a geometry line */
+	INVALID_NUMBER,
+	/** invalid color index or direct color, line is kept with invalid color */
+	INVALID_COLOR,
+	/** malformed META command, i.e. !COLOUR or !HISTORY */
+	INVALID_META,
+	/** FILE with an invalid name */
+	INVALID_FILE,
+	/** command not allowed in this place, i.e. FILE in a library part or lines outside FILE..NOFILE */
+	MISPLACED_COMMAND,
+	/** sub-model defined twice in MPD */
+	DUPLICATE_NAME,
+	/** reference to a part or sub-model that doesn't exist */
+	UNKNOWN_PART;
+	
+}
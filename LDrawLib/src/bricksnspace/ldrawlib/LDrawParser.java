@@ -41,87 +41,6 @@ public class LDrawParser {
 	private static Pattern filePattern = Pattern.compile("\\s*0\\s+file\\s+(.*)\\s*\\Z", 
 			Pattern.CASE_INSENSITIVE);
 	
-	private static Pattern partPattern = Pattern.compile(
-			"\\s*1\\s+" +		// line type 1 = part
-			"([0-9a-fx]+)\\s+" +	// color index
-			"([-.e0-9]+)\\s+" +	// x, y, z coordinates
-			"([-.e0-9]+)\\s+" +
-			"([-.e0-9]+)\\s+" +
-			"([-.e0-9]+)\\s+" +	// a, b, c
-			"([-.e0-9]+)\\s+" +
-			"([-.e0-9]+)\\s+" +
-			"([-.e0-9]+)\\s+" +	// d, e, f
-			"([-.e0-9]+)\\s+" +
-			"([-.e0-9]+)\\s+" +
-			"([-.e0-9]+)\\s+" +	// g, h, i of 3x3 transformation matrix
-			"([-.e0-9]+)\\s+" +
-			"([-.e0-9]+)\\s+" +
-			"(.*)\\s*\\Z",		// part/file name
-			Pattern.CASE_INSENSITIVE);
-
-	private static Pattern linePattern = Pattern.compile(
-			"\\s*2\\s+" +		// line type 2 = line
-			"([0-9a-fx]+)\\s+" +	// color index
-			"([-.e0-9]+)\\s+" +	// x, y, z coordinates
-			"([-.e0-9]+)\\s+" +
-			"([-.e0-9]+)\\s+" +
-			"([-.e0-9]+)\\s+" +	// x1, y1, z1 coordinates
-			"([-.e0-9]+)\\s+" +
-			"([-.e0-9]+)" +
-			"\\s*\\Z",
-			Pattern.CASE_INSENSITIVE);
-
-	private static Pattern trianglePattern = Pattern.compile(
-			"\\s*3\\s+" +		// line type 3 = triangle
-			"([0-9a-fx]+)\\s+" +	// color index
-			"([-.e0-9]+)\\s+" +	// x, y, z coordinates
-			"([-.e0-9]+)\\s+" +
-			"([-.e0-9]+)\\s+" +
-			"([-.e0-9]+)\\s+" +	// x1, y1, z1 coordinates
-			"([-.e0-9]+)\\s+" +
-			"([-.e0-9]+)\\s+" +
-			"([-.e0-9]+)\\s+" +	// x2, y2, z2 coordinates
-			"([-.e0-9]+)\\s+" +
-			"([-.e0-9]+)" +
-			"\\s*\\Z",
-			Pattern.CASE_INSENSITIVE);
-
-	private static Pattern quadPattern = Pattern.compile(
-			"\\s*4\\s+" +		// line type 4 = quad
-			"([0-9a-fx]+)\\s+" +	// color index
-			"([-.e0-9]+)\\s+" +	// x, y, z coordinates
-			"([-.e0-9]+)\\s+" +
-			"([-.e0-9]+)\\s+" +
-			"([-.e0-9]+)\\s+" +	// x1, y1, z1 coordinates
-			"([-.e0-9]+)\\s+" +
-			"([-.e0-9]+)\\s+" +
-			"([-.e0-9]+)\\s+" +	// x2, y2, z2 coordinates
-			"([-.e0-9]+)\\s+" +
-			"([-.e0-9]+)\\s+" +
-			"([-.e0-9]+)\\s+" +	// x3, y3, z3 coordinates
-			"([-.e0-9]+)\\s+" +
-			"([-.e0-9]+)" +
-			"\\s*\\Z",
-			Pattern.CASE_INSENSITIVE);
-
-	private static Pattern auxLinePattern = Pattern.compile(
-			"\\s*5\\s+" +		// line type 5 = line
-			"([0-9a-fx]+)\\s+" +	// color index
-			"([-.e0-9]+)\\s+" +	// x, y, z coordinates
-			"([-.e0-9]+)\\s+" +
-			"([-.e0-9]+)\\s+" +
-			"([-.e0-9]+)\\s+" +	// x1, y1, z1 coordinates
-			"([-.e0-9]+)\\s+" +
-			"([-.e0-9]+)\\s+" +
-			"([-.e0-9]+)\\s+" +	// x2, y2, z2 coordinates
-			"([-.e0-9]+)\\s+" +
-			"([-.e0-9]+)\\s+" +
-			"([-.e0-9]+)\\s+" +	// x3, y3, z3 coordinates
-			"([-.e0-9]+)\\s+" +
-			"([-.e0-9]+)" +
-			"\\s*\\Z",
-			Pattern.CASE_INSENSITIVE);
-
 	private static Pattern colourPattern = Pattern.compile(
 			"\\s*0\\s+!COLOUR\\s+" +		// 0 !colour statement 
 			"([a-z][a-z0-9_]*)\\s+",			// colour identifier
@@ -168,40 +87,43 @@ public class LDrawParser {
 	 * @param invert if part must be considered "inverted" ({@link http://www.ldraw.org/article/415})
 	 * @return LDPrimitive containing part reference, transform matrix, color and inversion flag
 	 */
-	public static LDPrimitive parseLineType1(String l, boolean invert) {
+	public static LDPrimitive parseLineType1(CharSequence l, boolean invert) {
 		
-        Matcher partMatch = partPattern.matcher(l);
-        if (partMatch.lookingAt()) {
-        	try {
-	        	return LDPrimitive.newPart(
-	        			parseColorIndex(partMatch.group(1)),
-	        			partMatch.group(14).trim(),
-	        			invert,
-	                	Float.parseFloat(partMatch.group(5)), 	// a 
-	                	Float.parseFloat(partMatch.group(6)),	// b
-	                	Float.parseFloat(partMatch.group(7)),	// c 
-	                	Float.parseFloat(partMatch.group(8)), 	// d
-	                	Float.parseFloat(partMatch.group(9)),	// e 
-	                	Float.parseFloat(partMatch.group(10)),	// f 
-	                	Float.parseFloat(partMatch.group(11)),	// g
-	                	Float.parseFloat(partMatch.group(12)),	// h
-	                	Float.parseFloat(partMatch.group(13)), 	// i
-	                	Float.parseFloat(partMatch.group(2)), 	// x
-	                	Float.parseFloat(partMatch.group(3)), 	// y
-	                	Float.parseFloat(partMatch.group(4))  	// z
-	                	);
-        	}
-        	catch (NumberFormatException ex) {
-        		throw new IllegalArgumentException("Invalid number: ",ex);
-        	}
-        	catch (IndexOutOfBoundsException ex) {
-        		throw new IllegalArgumentException("Invalid line type 1: "+ex.getLocalizedMessage()+"\n"+
-        				partMatch.groupCount()+" - "+partMatch.group());
-        	}
-        }
-        else {
-    		throw new IllegalArgumentException("Parse error: "+l);
-        }
+		try {
+			return scanLineType1(new LDrawLineScanner(l), invert);
+		}
+		catch (NumberFormatException ex) {
+			throw new IllegalArgumentException("Invalid number: ",ex);
+		}
+	}
+	
+	
+	
+	/**
+	 * Parses a line type 1 with a scanner, a lenient scanner doesn't throw exceptions
+	 * @return parsed primitive, or null if a lenient scanner found an error
+	 */
+	static LDPrimitive scanLineType1(LDrawLineScanner sc, boolean invert) {
+		
+		sc.lineType('1');
+		int color = sc.colour();
+		float x = sc.number();
+		float y = sc.number();
+		float z = sc.number();
+		float a = sc.number();
+		float b = sc.number();
+		float c = sc.number();
+		float d = sc.number();
+		float e = sc.number();
+		float f = sc.number();
+		float g = sc.number();
+		float h = sc.number();
+		float i = sc.number();
+		String name = sc.rest();
+		if (sc.getError() != null)
+			return null;
+		return LDPrimitive.newPart(color, name, invert,
+				a, b, c, d, e, f, g, h, i, x, y, z);
 	}
 	
 	
@@ -212,31 +134,36 @@ public class LDrawParser {
 	 * @param l string to parse (a complete line)
 	 * @return LDPrimitive containing line points and color
 	 */
-	public static LDPrimitive parseLineType2(String l) {
+	public static LDPrimitive parseLineType2(CharSequence l) {
 		
-        Matcher lineMatch = linePattern.matcher(l);
-        if (lineMatch.lookingAt()) {
-        	try {
-	        	return LDPrimitive.newLine(
-	        			parseColorIndex(lineMatch.group(1)),
-	                	Float.parseFloat(lineMatch.group(2)), 	// x 
-	                	Float.parseFloat(lineMatch.group(3)),	// y
-	                	Float.parseFloat(lineMatch.group(4)),	// z 
-	                	Float.parseFloat(lineMatch.group(5)), 	// x1
-	                	Float.parseFloat(lineMatch.group(6)),	// y1
-	                	Float.parseFloat(lineMatch.group(7))	// z1
-	                	);
-        	}
-        	catch (NumberFormatException ex) {
-        		throw new IllegalArgumentException("Invalid number: ",ex);
-        	}
-        	catch (IndexOutOfBoundsException ex) {
-        		throw new IllegalArgumentException("Invalid line type 2: "+ex.getLocalizedMessage());
-        	}
-        }
-        else {
-        	throw new IllegalArgumentException("Parse error: "+l);
-        }
+		try {
+			return scanLineType2(new LDrawLineScanner(l));
+		}
+		catch (NumberFormatException ex) {
+			throw new IllegalArgumentException("Invalid number: ",ex);
+		}
+	}
+	
+	
+	
+	/**
+	 * Parses a line type 2 with a scanner, a lenient scanner doesn't throw exceptions
+	 * @return parsed primitive, or null if a lenient scanner found an error
+	 */
+	static LDPrimitive scanLineType2(LDrawLineScanner sc) {
+		
+		sc.lineType('2');
+		int color = sc.colour();
+		float x = sc.number();
+		float y = sc.number();
+		float z = sc.number();
+		float x1 = sc.number();
+		float y1 = sc.number();
+		float z1 = sc.number();
+		sc.lineEnd();
+		if (sc.getError() != null)
+			return null;
+		return LDPrimitive.newLine(color, x, y, z, x1, y1, z1);
 	}
 
 	
@@ -247,35 +174,39 @@ public class LDrawParser {
 	 * @param invert if triangle must be considered "inverted" ({@link http://www.ldraw.org/article/415})
 	 * @return LDPrimitive containing triangle points, inversion flag and color
 	 */
-	public static LDPrimitive parseLineType3(String l, boolean invert) {
+	public static LDPrimitive parseLineType3(CharSequence l, boolean invert) {
 		
-        Matcher triangleMatch = trianglePattern.matcher(l);
-        if (triangleMatch.lookingAt()) {
-        	try {
-	        	return LDPrimitive.newTriangle(
-	        			parseColorIndex(triangleMatch.group(1)),
-	        			invert,
-	                	Float.parseFloat(triangleMatch.group(2)), 	// x 
-	                	Float.parseFloat(triangleMatch.group(3)),	// y
-	                	Float.parseFloat(triangleMatch.group(4)),	// z 
-	                	Float.parseFloat(triangleMatch.group(5)), 	// x1
-	                	Float.parseFloat(triangleMatch.group(6)),	// y1
-	                	Float.parseFloat(triangleMatch.group(7)),	// z1
-	                	Float.parseFloat(triangleMatch.group(8)), 	// x2
-	                	Float.parseFloat(triangleMatch.group(9)),	// y2
-	                	Float.parseFloat(triangleMatch.group(10))	// z2
-	                	);
-        	}
-        	catch (NumberFormatException ex) {
-        		throw new IllegalArgumentException("Invalid number: ",ex);
-        	}
-        	catch (IndexOutOfBoundsException ex) {
-        		throw new IllegalArgumentException("Invalid line type 3: "+ex.getLocalizedMessage());
-        	}
-        }
-        else {
-        	throw new IllegalArgumentException("Parse error: "+l);
-        }
+		try {
+			return scanLineType3(new LDrawLineScanner(l), invert);
+		}
+		catch (NumberFormatException ex) {
+			throw new IllegalArgumentException("Invalid number: ",ex);
+		}
+	}
+	
+	
+	
+	/**
+	 * Parses a line type 3 with a scanner, a lenient scanner doesn't throw exceptions
+	 * @return parsed primitive, or null if a lenient scanner found an error
+	 */
+	static LDPrimitive scanLineType3(LDrawLineScanner sc, boolean invert) {
+		
+		sc.lineType('3');
+		int color = sc.colour();
+		float x = sc.number();
+		float y = sc.number();
+		float z = sc.number();
+		float x1 = sc.number();
+		float y1 = sc.number();
+		float z1 = sc.number();
+		float x2 = sc.number();
+		float y2 = sc.number();
+		float z2 = sc.number();
+		sc.lineEnd();
+		if (sc.getError() != null)
+			return null;
+		return LDPrimitive.newTriangle(color, invert, x, y, z, x1, y1, z1, x2, y2, z2);
 	}
 
 	
@@ -286,38 +217,42 @@ public class LDrawParser {
 	 * @param invert if quad must be considered "inverted" ({@link http://www.ldraw.org/article/415})
 	 * @return LDPrimitive containing quad points, inversion flag and color
 	 */
-	public static LDPrimitive parseLineType4(String l, boolean invert) {
+	public static LDPrimitive parseLineType4(CharSequence l, boolean invert) {
 		
-        Matcher quadMatch = quadPattern.matcher(l);
-        if (quadMatch.lookingAt()) {
-        	try {
-	        	return LDPrimitive.newQuad(
-	        			parseColorIndex(quadMatch.group(1)),
-	        			invert,
-	                	Float.parseFloat(quadMatch.group(2)), 	// x 
-	                	Float.parseFloat(quadMatch.group(3)),	// y
-	                	Float.parseFloat(quadMatch.group(4)),	// z 
-	                	Float.parseFloat(quadMatch.group(5)), 	// x1
-	                	Float.parseFloat(quadMatch.group(6)),	// y1
-	                	Float.parseFloat(quadMatch.group(7)),	// z1
-	                	Float.parseFloat(quadMatch.group(8)), 	// x2
-	                	Float.parseFloat(quadMatch.group(9)),	// y2
-	                	Float.parseFloat(quadMatch.group(10)),	// z2
-	                	Float.parseFloat(quadMatch.group(11)), 	// x3
-	                	Float.parseFloat(quadMatch.group(12)),	// y3
-	                	Float.parseFloat(quadMatch.group(13))	// z3
-	                	);
-        	}
-        	catch (NumberFormatException ex) {
-        		throw new IllegalArgumentException("Invalid number: ",ex);
-        	}
-        	catch (IndexOutOfBoundsException ex) {
-        		throw new IllegalArgumentException("Invalid line type 4: "+ex.getLocalizedMessage());
-        	}
-        }
-        else {
-        	throw new IllegalArgumentException("Parse error: "+l);
-        }
+		try {
+			return scanLineType4(new LDrawLineScanner(l), invert);
+		}
+		catch (NumberFormatException ex) {
+			throw new IllegalArgumentException("Invalid number: ",ex);
+		}
+	}
+	
+	
+	
+	/**
+	 * Parses a line type 4 with a scanner, a lenient scanner doesn't throw exceptions
+	 * @return parsed primitive, or null if a lenient scanner found an error
+	 */
+	static LDPrimitive scanLineType4(LDrawLineScanner sc, boolean invert) {
+		
+		sc.lineType('4');
+		int color = sc.colour();
+		float x = sc.number();
+		float y = sc.number();
+		float z = sc.number();
+		float x1 = sc.number();
+		float y1 = sc.number();
+		float z1 = sc.number();
+		float x2 = sc.number();
+		float y2 = sc.number();
+		float z2 = sc.number();
+		float x3 = sc.number();
+		float y3 = sc.number();
+		float z3 = sc.number();
+		sc.lineEnd();
+		if (sc.getError() != null)
+			return null;
+		return LDPrimitive.newQuad(color, invert, x, y, z, x1, y1, z1, x2, y2, z2, x3, y3, z3);
 	}
 
 
@@ -327,37 +262,42 @@ public class LDrawParser {
 	 * @param l string to parse (a complete line)
 	 * @return LDPrimitive containing line points and color
 	 */
-	public static LDPrimitive parseLineType5(String l) {
+	public static LDPrimitive parseLineType5(CharSequence l) {
 		
-        Matcher auxLineMatch = auxLinePattern.matcher(l);
-        if (auxLineMatch.lookingAt()) {
-        	try {
-	        	return LDPrimitive.newAuxLine(
-	        			parseColorIndex(auxLineMatch.group(1)),
-	                	Float.parseFloat(auxLineMatch.group(2)), 	// x 
-	                	Float.parseFloat(auxLineMatch.group(3)),	// y
-	                	Float.parseFloat(auxLineMatch.group(4)),	// z 
-	                	Float.parseFloat(auxLineMatch.group(5)), 	// x1
-	                	Float.parseFloat(auxLineMatch.group(6)),	// y1
-	                	Float.parseFloat(auxLineMatch.group(7)),	// z1
-	                	Float.parseFloat(auxLineMatch.group(8)), 	// x2
-	                	Float.parseFloat(auxLineMatch.group(9)),	// y2
-	                	Float.parseFloat(auxLineMatch.group(10)),	// z2
-	                	Float.parseFloat(auxLineMatch.group(11)), 	// x3
-	                	Float.parseFloat(auxLineMatch.group(12)),	// y3
-	                	Float.parseFloat(auxLineMatch.group(13))	// z3
-	                	);
-        	}
-        	catch (NumberFormatException ex) {
-        		throw new IllegalArgumentException("Invalid number: ",ex);
-        	}
-        	catch (IndexOutOfBoundsException ex) {
-        		throw new IllegalArgumentException("Invalid line type 5: "+ex.getLocalizedMessage());
-        	}
-        }
-        else {
-        	throw new IllegalArgumentException("Parse error: "+l);
-        }
+		try {
+			return scanLineType5(new LDrawLineScanner(l));
+		}
+		catch (NumberFormatException ex) {
+			throw new IllegalArgumentException("Invalid number: ",ex);
+		}
+	}
+	
+	
+	
+	/**
+	 * Parses a line type 5 with a scanner, a lenient scanner doesn't throw exceptions
+	 * @return parsed primitive, or null if a lenient scanner found an error
+	 */
+	static LDPrimitive scanLineType5(LDrawLineScanner sc) {
+		
+		sc.lineType('5');
+		int color = sc.colour();
+		float x = sc.number();
+		float y = sc.number();
+		float z = sc.number();
+		float x1 = sc.number();
+		float y1 = sc.number();
+		float z1 = sc.number();
+		float x2 = sc.number();
+		float y2 = sc.number();
+		float z2 = sc.number();
+		float x3 = sc.number();
+		float y3 = sc.number();
+		float z3 = sc.number();
+		sc.lineEnd();
+		if (sc.getError() != null)
+			return null;
+		return LDPrimitive.newAuxLine(color, x, y, z, x1, y1, z1, x2, y2, z2, x3, y3, z3);
 	}
 
 	
@@ -387,9 +327,22 @@ public class LDrawParser {
 	
 
 	
-	public static LDrawCommand parseCommand(String l) {
+	public static LDrawCommand parseCommand(CharSequence l) {
 		
-	    String[] ld = l.trim().split("\\s+");
+		// geometry lines are the vast majority, classify them without splitting line
+		switch (LDrawLineScanner.geometryType(l)) {
+		case '1':
+			return LDrawCommand.REFERENCE;
+		case '2':
+			return LDrawCommand.LINE;
+		case '3':
+			return LDrawCommand.TRIANGLE;
+		case '4':
+			return LDrawCommand.QUAD;
+		case '5':
+			return LDrawCommand.AUXLINE;
+		}
+	    String[] ld = l.toString().trim().split("\\s+");
 	    if (ld.length < 1) {
 	        return LDrawCommand.EMPTY;
 	    }
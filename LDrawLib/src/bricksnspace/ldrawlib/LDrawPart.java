@@ -30,6 +30,7 @@ import java.io.IOException;
 import java.io.LineNumberReader;
 import java.io.OutputStreamWriter;
 import java.io.StringReader;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
@@ -39,6 +40,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -74,10 +76,11 @@ public class LDrawPart {
 	private Map<Integer,LDPrimitive> partById = new HashMap<Integer,LDPrimitive>();
 	private LDStep stepper = null; //new LDStep();
 	private static LDrawLib ldrlib = null;
-	private static Map<String,LDrawPart> partCache = new HashMap<String,LDrawPart>();
+	private static final LDPartCache partCache = new LDPartCache();
 	private static Map<String,LDrawPart> customPartCache = new HashMap<String,LDrawPart>();
 	private static Map<String,LDrawPart> internalUsePartCache = new HashMap<String,LDrawPart>();
 	private static int globalId = 0;
+	private static LDrawDiagnostics diagnostics = null;
 
 	
 
@@ -95,14 +98,37 @@ public class LDrawPart {
 		}
 		ldrawid = ldrid;
 		id = getUniqueId();
-        LineNumberReader ldf = ldrlib.getPart(ldrawid);
-		parse(ldf, onlyMetadata);
+		ByteBuffer b = ldrlib.getPartBuffer(ldrawid);
+		if (b == null) {
+			throw new IOException("[LDrawPart] Unable to read part "+ldrawid);
+		}
+		LDrawByteLines ldf = new LDrawByteLines(b);
+        if (onlyMetadata) {
+        	parseHeader(ldf);
+        }
+        else {
+        	parse(ldf);
+        }
 //		fromOfficial = ldrlib.isFromOfficial(ldrawid);
 		ldf.close();
 	}
 	
 	
 	
+	/**
+	 * Reads a part definition from a byte buffer
+	 * @param ldrid is LDraw part name (LDraw is case-sensitive, so use lowercase!)
+	 * @param data contains lines in LDraw format
+	 */
+	private LDrawPart(String ldrid, ByteBuffer data) {
+		
+		ldrawid = ldrid;
+		id = getUniqueId();
+		parse(new LDrawByteLines(data));
+	}
+	
+	
+	
 	/**
 	 * Reads a part definition from a String
 	 * @param ldrid is LDraw part name (LDraw is case-sensitive, so use lowercase!)
@@ -114,7 +140,7 @@ public class LDrawPart {
 		ldrawid = ldrid;
 		id = getUniqueId();
         LineNumberReader ldf = new LineNumberReader(new StringReader(datLines));
-		parse(ldf, false);
+		parse(ldf);
 		ldf.close();
 	}
 	
@@ -223,7 +249,7 @@ public class LDrawPart {
 	
 	public static void listcache() {
 		
-		System.out.println("LDraw Part cache: "+ partCache.size() +" ----------------------");
+		System.out.println("LDraw Part cache: "+ partCache +" ----------------------");
 		for (LDrawPart p : partCache.values()) {
 			System.out.println(p);
 		}
@@ -275,6 +301,17 @@ public class LDrawPart {
 
 
     
+    /**
+     * Returns library part cache, to change cache limits and read statistics
+     * @return part cache
+     */
+    public static LDPartCache getPartCache() {
+    	
+    	return partCache;
+    }
+
+
+    
 
 	public static void setLdrlib(LDrawLib ldrlib) {
 
@@ -285,6 +322,25 @@ public class LDrawPart {
 
 
 
+	/**
+	 * Sets a sink for problems found while parsing parts. If a sink is set, geometry
+	 * lines are parsed without exceptions and problems are reported to sink instead of log.
+	 * @param d diagnostics sink, or null to log every problem
+	 */
+	public static void setDiagnostics(LDrawDiagnostics d) {
+		
+		diagnostics = d;
+	}
+	
+	
+	
+	public static LDrawDiagnostics getDiagnostics() {
+		
+		return diagnostics;
+	}
+
+
+
 	/////////////////////
 	//
 	// Official libraries parts
@@ -306,28 +362,22 @@ public class LDrawPart {
 		if (ldrlib == null) {
 			throw new IllegalStateException("[LDrawPart] LDraw library not initialized");
 		}
-		String id = ldrid.toLowerCase();
-		// it is in cache?
-		LDrawPart p = partCache.get(id);
-		if (p == null) {
-			// first seen part
-			if (ldrlib.checkPart(id) == LDrawPartType.NONE) {
-				// unknown part
-				return null;
-			}
-			try {
-				p = new LDrawPart(id, false);
-			} catch (IOException e) {
-				return null;
+		final String id = ldrid.toLowerCase();
+		return partCache.get(id, new Callable<LDrawPart>() {
+			@Override
+			public LDrawPart call() {
+				// first seen part
+				if (ldrlib.checkPart(id) == LDrawPartType.NONE) {
+					// unknown part
+					return null;
+				}
+				try {
+					return new LDrawPart(id, false);
+				} catch (IOException e) {
+					return null;
+				}
 			}
-			// put in cache
-			partCache.put(id, p);
-			return p;
-		}
-		else {
-			// part in cache
-			return p;
-		}
+		});
 	}
 	
 	
@@ -519,6 +569,18 @@ public class LDrawPart {
 	}
 
 	
+	/**
+	 * Computes connection points for all part references in this part, 
+	 * instead of computing them on first request for every reference
+	 */
+	public void computeConnPoints() {
+		
+		for (LDPrimitive p : primitives) {
+			p.getConnPoints();
+		}
+	}
+
+	
 	public LDrawPartType getPartType() {
 		return partType;
 	}
@@ -590,6 +652,20 @@ public class LDrawPart {
 		
 		return partById.get(id);
 	}
+	
+	
+	/**
+	 * Gives new ids to all primitives, in list order, so ids of primitives
+	 * created by more threads don't depend on thread scheduling
+	 */
+	void renumberPrimitives() {
+		
+		LDPrimitive.renumber(primitives);
+		partById.clear();
+		for (LDPrimitive p : primitives) {
+			partById.put(p.getId(), p);
+		}
+	}
 
 	
 	/////////////////////
@@ -840,6 +916,22 @@ public class LDrawPart {
 	
 	
 
+	/**
+	 * Creates a new part parsing LDraw lines from a byte buffer, 
+	 * as returned by {@link LDrawLib#getPartBuffer(String)}
+	 * <p>
+	 * Does NOT register part in cache. Buffer isn't modified.
+	 * @param name part name (includes ".dat" or ".ldr")
+	 * @param data contains part definition in LDraw format, from position to limit
+	 * @return new part
+	 */
+	public static LDrawPart newPartFromBytes(String name, ByteBuffer data) {
+		
+		return new LDrawPart(name, data.duplicate());
+	}
+	
+	
+	
 	/**
 	 * Creates a new part parsing LDraw lines from a string
 	 * <p>
@@ -944,12 +1036,111 @@ public class LDrawPart {
 	
 	
 	
-    private void parse(LineNumberReader ldf, boolean onlyMeta) throws IOException {
+    /**
+     * Parses a metadata line, as found in file header
+     * @param cmd command in line
+     * @param l line to parse
+     * @return true if line contains metadata
+     */
+    private boolean parseMeta(LDrawCommand cmd, String l) {
+    	
+		switch (cmd) {
+		case AUTHOR:
+			author = LDrawParser.parseAuthor(l);
+			return true;
+		case CATEGORY:
+			category = LDrawParser.parseCategory(l);
+			return true;
+		case HISTORY:
+			Date d = LDrawParser.parseHistory(l);
+			if (lastUpdate == null || d.after(lastUpdate)) {
+				// hack to avoid !HISTORY dates in future
+				if (d.before(Calendar.getInstance().getTime())) {
+					lastUpdate = d;
+				}
+			}
+			return true;
+		case KEYWORDS:
+			keywords += " " + LDrawParser.parseKeywords(l);
+			return true;
+		case LICENSE:
+			license = l;
+			return true;
+		case NAME:
+			partName = LDrawParser.parsePartName(l);
+			return true;
+		case FILETYPE:
+			setPartType(LDrawParser.parsePartType(l));
+			setPartTypeString(l);
+			return true;
+		case META_UNKNOWN:
+			// first unknown meta is part description
+			if (description == null) {
+				description = LDrawParser.parseDescription(l);
+			}
+			return true;
+		default:
+			return false;
+		}
+    }
+    
+    
+    
+    /**
+     * Reads only file header, stopping at first geometry line.
+     * Metadata are always in header, so there is no need to read whole file.
+     * @param ldf lines of part file
+     */
+    private void parseHeader(LDrawByteLines ldf) {
+    	
+    	CharSequence l;
+
+        keywords = "";
+
+		while ((l = ldf.nextLine()) != null) {
+			if (!parseHeaderLine(l, ldf.getLineNumber())) {
+				break;
+			}
+		}
+    }
+    
+    
+    
+    /**
+     * @return false if line is a geometry line, i.e. end of header
+     */
+    private boolean parseHeaderLine(CharSequence l, int lineNo) {
+    	
+		if (LDrawLineScanner.geometryType(l) != 0) {
+			// end of header
+			return false;
+		}
+		try {
+			String s = l.toString();
+			parseMeta(LDrawParser.parseCommand(s), s);
+		} catch (IllegalArgumentException lde) {
+			parseProblem(lineNo, LDrawParseError.INVALID_META, l, lde.getLocalizedMessage());
+		}
+		return true;
+    }
+    
+    
+    
+    /**
+     * Winding and inversion flags while parsing a file
+     */
+    private static class ParseState {
+    	
+    	boolean invNext = false;
+    	boolean isClockWise = false;
+    }
+    
+    
+    
+    private void parse(LineNumberReader ldf) throws IOException {
     	
     	String l;
-        boolean invNext = false;
-        boolean isClockWise = false;
-        boolean firstLine = true;
+    	ParseState st = new ParseState();
 
         keywords = "";
 
@@ -959,108 +1150,160 @@ public class LDrawPart {
 
 		while ((l = ldf.readLine()) != null) {
 			//System.out.println("linea: "+ldf.getLineNumber()+" -- "+l);
-			try {
-				LDrawCommand cmd = LDrawParser.parseCommand(l);
-				switch (cmd) {
-				case AUTHOR:
-					author = LDrawParser.parseAuthor(l);
-					break;
-				case AUXLINE:
-					if (! onlyMeta)
-						addPart(LDrawParser.parseLineType5(l));
-					break;
-				case BFC_CCW:
-					isClockWise = false;
-					break;
-				case BFC_CW:
-					isClockWise = true;
-					break;
-				case BFC_INVERTNEXT:
-					invNext = true;
-					break;
-				case CATEGORY:
-					category = LDrawParser.parseCategory(l);
-					break;
-				case COLOUR:
-					if (! onlyMeta)
-						addPart(LDPrimitive.cmdColour(LDrawParser.parseColour(l)));
-					break;
-				case COMMENT:
-					break;
-				case EMPTY:
-					break;
-				case HISTORY:
-					Date d = LDrawParser.parseHistory(l);
-					if (lastUpdate == null || d.after(lastUpdate)) {
-						// hack to avoid !HISTORY dates in future
-						if (d.before(Calendar.getInstance().getTime())) {
-							lastUpdate = d;
-						}
-					}
-					break;
-				case KEYWORDS:
-					keywords += " " + LDrawParser.parseKeywords(l);
-					break;
-				case LICENSE:
-					license = l;
-					break;
-				case LINE:
-					if (! onlyMeta)
-						addPart(LDrawParser.parseLineType2(l));
-					break;
-				case MPDFILE:
-					Logger.getGlobal().warning("[LDrawLib] Illegal command FILE ("+ldrawid+
-							") line#"+ ldf.getLineNumber());
-					break;
-				case MPDNOFILE:
-					Logger.getGlobal().warning("[LDrawLib] Illegal command NOFILE ("+ldrawid+
-							") line#"+ ldf.getLineNumber());
-					break;
-				case NAME:
-					partName = LDrawParser.parsePartName(l);
-					break;
-				case FILETYPE:
-					setPartType(LDrawParser.parsePartType(l));
-					setPartTypeString(l);
-					break;
-				case QUAD:
-					if (! onlyMeta)
-						addPart(LDrawParser.parseLineType4(l,isClockWise));
-					break;
-				case REFERENCE:
-					if (! onlyMeta)
-						addPart(LDrawParser.parseLineType1(l, invNext));
-					invNext = false;
-					break;
-				case SAVE:
-					Logger.getGlobal().warning("[LDrawLib] Illegal command SAVE ("+ldrawid+
-							") line#"+ ldf.getLineNumber());
-					break;
-				case STEP:
-					Logger.getGlobal().warning("[LDrawLib] Illegal command STEP ("+ldrawid+
-						") line#"+ ldf.getLineNumber());
-					break;
-				case TRIANGLE:
-					if (! onlyMeta)
-						addPart(LDrawParser.parseLineType3(l,isClockWise));
-					break;
-				case UNKNOWN:
-					break;
-				case META_UNKNOWN:
-					if (firstLine) {
-						description = LDrawParser.parseDescription(l);
-						firstLine = false;
-					}
-					break;
-				default:
-					break;
-				}
-			} catch (IllegalArgumentException lde) {
-				Logger.getGlobal().log(Level.SEVERE,"[LDrawLib] Parsing error ("+ldrawid+
-						") line#"+ ldf.getLineNumber() +" -> "+lde.getLocalizedMessage());
-			}
+			parseLine(st, l, ldf.getLineNumber());
+        }
+    }
+    
+    
+    
+    /**
+     * Parses a file in a byte buffer. Geometry lines in ASCII are 
+     * scanned directly from bytes, without creating a String. 
+     */
+    private void parse(LDrawByteLines ldf) {
+    	
+    	CharSequence l;
+    	ParseState st = new ParseState();
+
+        keywords = "";
+
+		while ((l = ldf.nextLine()) != null) {
+			parseLine(st, l, ldf.getLineNumber());
         }
     }
+    
+    
+    
+    /**
+     * Reports a problem to diagnostics sink, if any, or to log
+     */
+    private void parseProblem(int lineNo, LDrawParseError code, CharSequence l, String message) {
+    	
+    	LDrawDiagnostics d = diagnostics;
+    	if (d != null) {
+    		d.report(ldrawid, lineNo, code, l, message);
+    	}
+    	else if (code == LDrawParseError.MISPLACED_COMMAND) {
+			Logger.getGlobal().warning("[LDrawLib] "+message+" ("+ldrawid+
+					") line#"+ lineNo);
+    	}
+    	else {
+			Logger.getGlobal().log(Level.SEVERE,"[LDrawLib] Parsing error ("+ldrawid+
+					") line#"+ lineNo +" -> "+message);
+    	}
+    }
+    
+    
+    
+    /**
+     * Parses a geometry line with a lenient scanner, without exceptions
+     * @return false if line isn't a geometry line
+     */
+    private boolean parseGeometry(ParseState st, CharSequence l, int lineNo) {
+    	
+    	LDrawLineScanner sc = new LDrawLineScanner(l, true);
+    	LDPrimitive p;
+    	switch (LDrawLineScanner.geometryType(l)) {
+    	case '1':
+    		p = LDrawParser.scanLineType1(sc, st.invNext);
+    		if (p != null) {
+    			st.invNext = false;
+    		}
+    		break;
+    	case '2':
+    		p = LDrawParser.scanLineType2(sc);
+    		break;
+    	case '3':
+    		p = LDrawParser.scanLineType3(sc, st.isClockWise);
+    		break;
+    	case '4':
+    		p = LDrawParser.scanLineType4(sc, st.isClockWise);
+    		break;
+    	case '5':
+    		p = LDrawParser.scanLineType5(sc);
+    		break;
+    	default:
+    		return false;
+    	}
+    	if (p == null) {
+    		parseProblem(lineNo, sc.getError(), l, null);
+    		return true;
+    	}
+    	if (sc.getWarning() != null) {
+    		parseProblem(lineNo, sc.getWarning(), l, null);
+    	}
+    	addPart(p);
+    	return true;
+    }
+    
+    
+    
+    private void parseLine(ParseState st, CharSequence l, int lineNo) {
+    	
+    	if (diagnostics != null && parseGeometry(st, l, lineNo)) {
+    		return;
+    	}
+		try {
+			LDrawCommand cmd = LDrawParser.parseCommand(l);
+			// geometry lines aren't meta, don't convert them to String
+			if (LDrawLineScanner.geometryType(l) == 0 && parseMeta(cmd, l.toString())) {
+				return;
+			}
+			switch (cmd) {
+			case AUXLINE:
+				addPart(LDrawParser.parseLineType5(l));
+				break;
+			case BFC_CCW:
+				st.isClockWise = false;
+				break;
+			case BFC_CW:
+				st.isClockWise = true;
+				break;
+			case BFC_INVERTNEXT:
+				st.invNext = true;
+				break;
+			case COLOUR:
+				addPart(LDPrimitive.cmdColour(LDrawParser.parseColour(l.toString())));
+				break;
+			case COMMENT:
+				break;
+			case EMPTY:
+				break;
+			case LINE:
+				addPart(LDrawParser.parseLineType2(l));
+				break;
+			case MPDFILE:
+				parseProblem(lineNo, LDrawParseError.MISPLACED_COMMAND, l, "Illegal command FILE");
+				break;
+			case MPDNOFILE:
+				parseProblem(lineNo, LDrawParseError.MISPLACED_COMMAND, l, "Illegal command NOFILE");
+				break;
+			case QUAD:
+				addPart(LDrawParser.parseLineType4(l,st.isClockWise));
+				break;
+			case REFERENCE:
+				addPart(LDrawParser.parseLineType1(l, st.invNext));
+				st.invNext = false;
+				break;
+			case SAVE:
+				parseProblem(lineNo, LDrawParseError.MISPLACED_COMMAND, l, "Illegal command SAVE");
+				break;
+			case STEP:
+				parseProblem(lineNo, LDrawParseError.MISPLACED_COMMAND, l, "Illegal command STEP");
+				break;
+			case TRIANGLE:
+				addPart(LDrawParser.parseLineType3(l,st.isClockWise));
+				break;
+			case UNKNOWN:
+				break;
+			default:
+				break;
+			}
+		} catch (IllegalArgumentException lde) {
+			parseProblem(lineNo, LDrawLineScanner.geometryType(l) != 0 ? 
+					LDrawParseError.SYNTAX : LDrawParseError.INVALID_META, l, lde.getLocalizedMessage());
+		}
+    }
 
 
 	public void setDescription(String parseDescription) {
@@ -1069,7 +1312,7 @@ public class LDrawPart {
 	}
 
 	
-	private void writeParts(BufferedWriter bw) throws IOException {
+	private void writeParts(LDrawLineWriter bw) throws IOException {
 		
 		if (stepper.hasStep()) {
 			for (int i=1;i<=stepper.getTotalSteps();i++) {
@@ -1078,7 +1321,7 @@ public class LDrawPart {
 					continue;
 				}
 				for (LDPrimitive p:s) {
-					bw.write(p.getAsLdrLine());
+					bw.write(p);
 				}
 				if (i<stepper.getTotalSteps()) {
 					bw.write("0 STEP\n");
@@ -1087,7 +1330,7 @@ public class LDrawPart {
 		}
 		else {
 			for (LDPrimitive p:primitives){
-				bw.write(p.getAsLdrLine());
+				bw.write(p);
 			}
 		}		
 	}
@@ -1096,7 +1339,8 @@ public class LDrawPart {
 	
 	public void saveAsLdr(File f) throws IOException {
 		
-		BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f),"UTF-8"));
+		LDrawLineWriter bw = new LDrawLineWriter(
+				new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f),"UTF-8")));
 		bw.write(getDatHeader());
 		writeParts(bw);
 //		if (stepper.hasStep()) {
@@ -1125,7 +1369,8 @@ public class LDrawPart {
 		
 		Set<String> subfiles = new HashSet<String>();
 		checkIncluded(subfiles,this);
-		BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f),"UTF-8"));
+		LDrawLineWriter bw = new LDrawLineWriter(
+				new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f),"UTF-8")));
 		bw.write("0 FILE "+getLdrawId()+"\n");
 		bw.write(getDatHeader());
 		writeParts(bw);
@@ -0,0 +1,101 @@
+/*
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDrawLib
+
+	LDrawLib is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDrawLib is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDrawLib.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+
+package bricksnspace.ldrawlib;
+
+
+
+/**
+ * Receives lines parsed by {@link LDrawEventParser}
+ * <p>
+ * Coordinates are passed in an array reused for every line, in same order as in
+ * LDraw line: copy values to keep them. Current line number is available
+ * from parser. {@link LDrawVisitorAdapter} has empty methods for all callbacks.
+ *
+ * @author Mario Pascucci
+ *
+ */
+public interface LDrawVisitor {
+
+	/**
+	 * Line type 1, a part or sub-model reference
+	 * @param color color index or direct color
+	 * @param v 12 values: x y z a b c d e f g h i
+	 * @param name referenced file name
+	 * @param invert true if reference follows a BFC INVERTNEXT
+	 */
+	public void onReference(int color, float[] v, String name, boolean invert);
+
+	/**
+	 * Line type 2, a line
+	 * @param v 6 values: x1 y1 z1 x2 y2 z2
+	 */
+	public void onLine(int color, float[] v);
+
+	/**
+	 * Line type 3, a triangle
+	 * @param v 9 values: x1 y1 z1 x2 y2 z2 x3 y3 z3
+	 * @param clockWise true if winding is clockwise (BFC CW)
+	 */
+	public void onTriangle(int color, float[] v, boolean clockWise);
+
+	/**
+	 * Line type 4, a quad
+	 * @param v 12 values: x1 y1 z1 to x4 y4 z4
+	 * @param clockWise true if winding is clockwise (BFC CW)
+	 */
+	public void onQuad(int color, float[] v, boolean clockWise);
+
+	/**
+	 * Line type 5, an optional line
+	 * @param v 12 values: x1 y1 z1 to x4 y4 z4
+	 */
+	public void onAuxLine(int color, float[] v);
+
+	/**
+	 * A line type 0 other than STEP, FILE and NOFILE, i.e. header lines, BFC and comments
+	 * @param cmd command type
+	 * @param text complete line
+	 */
+	public void onMeta(LDrawCommand cmd, String text);
+
+	/**
+	 * A "0 STEP" line
+	 */
+	public void onStep();
+
+	/**
+	 * A "0 FILE" line, start of a sub-file in a MPD
+	 * @param name sub-file name
+	 */
+	public void onFile(String name);
+
+	/**
+	 * A "0 NOFILE" line, end of a sub-file in a MPD
+	 */
+	public void onNoFile();
+
+	/**
+	 * A line that can't be parsed, parsing continues on next line
+	 * @param text complete line
+	 * @param message error description
+	 */
+	public void onError(String text, String message);
+}
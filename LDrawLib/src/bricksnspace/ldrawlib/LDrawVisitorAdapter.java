@@ -0,0 +1,73 @@
+/*
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDrawLib
+
+	LDrawLib is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDrawLib is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDrawLib.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+
+package bricksnspace.ldrawlib;
+
+
+
+/**
+ * Empty implementation of {@link LDrawVisitor}, override only needed callbacks
+ *
+ * @author Mario Pascucci
+ *
+ */
+public abstract class LDrawVisitorAdapter implements LDrawVisitor {
+
+	@Override
+	public void onReference(int color, float[] v, String name, boolean invert) {
+	}
+
+	@Override
+	public void onLine(int color, float[] v) {
+	}
+
+	@Override
+	public void onTriangle(int color, float[] v, boolean clockWise) {
+	}
+
+	@Override
+	public void onQuad(int color, float[] v, boolean clockWise) {
+	}
+
+	@Override
+	public void onAuxLine(int color, float[] v) {
+	}
+
+	@Override
+	public void onMeta(LDrawCommand cmd, String text) {
+	}
+
+	@Override
+	public void onStep() {
+	}
+
+	@Override
+	public void onFile(String name) {
+	}
+
+	@Override
+	public void onNoFile() {
+	}
+
+	@Override
+	public void onError(String text, String message) {
+	}
+
+}
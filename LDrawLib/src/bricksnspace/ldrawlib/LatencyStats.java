@@ -0,0 +1,127 @@
+/*
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDrawLib
+
+	LDrawLib is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDrawLib is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDrawLib.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+
+package bricksnspace.ldrawlib;
+
+import java.util.Arrays;
+
+
+
+/**
+ * Keeps last latency samples of an operation and computes percentiles
+ * <p>
+ * Samples are in nanoseconds, in a fixed size ring buffer, so only recent
+ * samples are used.
+ *
+ * @author Mario Pascucci
+ *
+ */
+public class LatencyStats {
+
+	private final long[] samples;
+	private int next = 0;
+	private int count = 0;
+	private long total = 0;
+
+
+
+	/**
+	 * @param size max number of samples kept
+	 */
+	public LatencyStats(int size) {
+
+		if (size < 1)
+			throw new IllegalArgumentException("[LatencyStats] Sample buffer size must be at least 1");
+		samples = new long[size];
+	}
+
+
+
+	/**
+	 * Adds a sample
+	 * @param nanos latency in nanoseconds
+	 */
+	public synchronized void add(long nanos) {
+
+		samples[next] = nanos;
+		next = (next + 1) % samples.length;
+		if (count < samples.length) {
+			count++;
+		}
+		total++;
+	}
+
+
+
+	/**
+	 * Returns a percentile of kept samples, by nearest rank
+	 * @param p percentile, from 0 to 100
+	 * @return latency in nanoseconds, 0 if there are no samples
+	 */
+	public synchronized long getPercentile(double p) {
+
+		if (p < 0 || p > 100)
+			throw new IllegalArgumentException("[LatencyStats] Percentile must be between 0 and 100");
+		if (count == 0) {
+			return 0;
+		}
+		long[] s = Arrays.copyOf(samples, count);
+		Arrays.sort(s);
+		int rank = (int) Math.ceil(p / 100 * count);
+		return s[Math.max(rank, 1) - 1];
+	}
+
+
+
+	/**
+	 * @return number of samples kept
+	 */
+	public synchronized int getCount() {
+		return count;
+	}
+
+
+
+	/**
+	 * @return number of samples added since creation or last reset
+	 */
+	public synchronized long getTotal() {
+		return total;
+	}
+
+
+
+	public synchronized void reset() {
+
+		next = 0;
+		count = 0;
+		total = 0;
+	}
+
+
+
+	@Override
+	public synchronized String toString() {
+
+		return String.format("LatencyStats [samples=%d, p50=%.3fms, p90=%.3fms, p99=%.3fms, max=%.3fms]",
+				count, getPercentile(50)/1e6, getPercentile(90)/1e6, getPercentile(99)/1e6, getPercentile(100)/1e6);
+	}
+
+}
@@ -0,0 +1,309 @@
+/*
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDrawLib
+
+	LDrawLib is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDrawLib is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDrawLib.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+
+package bricksnspace.ldrawlib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+
+
+/**
+ * Read only zip archive accessed by memory mapping
+ * <p>
+ * Entries are located with central directory, read once when archive is opened.
+ * Stored entries are returned as a slice of mapped file, without copy.
+ * Deflated entries are inflated in one step into a buffer taken from a pool,
+ * that can be given back with {@link #release(ByteBuffer)} when entry isn't needed anymore.
+ * <p>
+ * Zip64, encrypted entries and archives bigger than 2GB aren't supported, constructor
+ * throws IOException and caller can use {@link java.util.zip.ZipFile}.
+ * Archive can be read by more threads.
+ *
+ * @author Mario Pascucci
+ *
+ */
+public class MappedZip {
+
+	private static final int LOCALSIG = 0x04034b50;
+	private static final int CENTRALSIG = 0x02014b50;
+	private static final int ENDSIG = 0x06054b50;
+	private static final int ENDSIZE = 22;
+	private static final int LOCALSIZE = 30;
+	private static final int CENTRALSIZE = 46;
+	private static final int STORED = 0;
+	private static final int DEFLATED = 8;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** max buffers kept in pool */
+	private static final int POOLSIZE = 8;
+	/** bigger buffers aren't kept in pool */
+	private static final int MAXPOOLED = 1 << 20;
+	private static final Deque<byte[]> pool = new ArrayDeque<byte[]>();
+
+	private static class Entry {
+
+		final int method;
+		final int compressed;
+		final int size;
+		final int localHeader;
+
+		Entry(int method, int compressed, int size, int localHeader) {
+
+			this.method = method;
+			this.compressed = compressed;
+			this.size = size;
+			this.localHeader = localHeader;
+		}
+	}
+
+	private final ByteBuffer data;
+	private final Map<String,Entry> entries = new HashMap<String,Entry>();
+	private final File file;
+
+
+
+	/**
+	 * Maps a zip archive and reads its central directory
+	 * @param f zip file
+	 * @throws IOException if file can't be read or archive isn't supported
+	 */
+	public MappedZip(File f) throws IOException {
+
+		file = f;
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			FileChannel fc = raf.getChannel();
+			if (fc.size() > Integer.MAX_VALUE) {
+				throw new IOException("[MappedZip] Archive too big: "+f);
+			}
+			// mapping stays valid after channel is closed
+			data = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+		}
+		finally {
+			raf.close();
+		}
+		data.order(ByteOrder.LITTLE_ENDIAN);
+		readCentralDirectory();
+	}
+
+
+
+	private void readCentralDirectory() throws IOException {
+
+		// end of central directory record is followed by a comment up to 64k
+		int end = -1;
+		for (int i=data.limit()-ENDSIZE;i>=Math.max(0, data.limit()-ENDSIZE-0xffff);i--) {
+			if (data.getInt(i) == ENDSIG) {
+				end = i;
+				break;
+			}
+		}
+		if (end < 0) {
+			throw new IOException("[MappedZip] Not a zip archive: "+file);
+		}
+		int count = data.getShort(end+10) & 0xffff;
+		long cdOffset = data.getInt(end+16) & 0xffffffffL;
+		if (count == 0xffff || cdOffset == 0xffffffffL) {
+			throw new IOException("[MappedZip] Zip64 archive not supported: "+file);
+		}
+		int p = (int) cdOffset;
+		for (int i=0;i<count;i++) {
+			if (p+CENTRALSIZE > data.limit() || data.getInt(p) != CENTRALSIG) {
+				throw new IOException("[MappedZip] Corrupted central directory: "+file);
+			}
+			int flags = data.getShort(p+8) & 0xffff;
+			int method = data.getShort(p+10) & 0xffff;
+			long compressed = data.getInt(p+20) & 0xffffffffL;
+			long size = data.getInt(p+24) & 0xffffffffL;
+			int nameLen = data.getShort(p+28) & 0xffff;
+			int extraLen = data.getShort(p+30) & 0xffff;
+			int commentLen = data.getShort(p+32) & 0xffff;
+			long local = data.getInt(p+42) & 0xffffffffL;
+			if (compressed == 0xffffffffL || size == 0xffffffffL || local == 0xffffffffL) {
+				throw new IOException("[MappedZip] Zip64 archive not supported: "+file);
+			}
+			if ((flags & 1) != 0) {
+				throw new IOException("[MappedZip] Encrypted entries not supported: "+file);
+			}
+			byte[] n = new byte[nameLen];
+			for (int j=0;j<nameLen;j++) {
+				n[j] = data.get(p+CENTRALSIZE+j);
+			}
+			String name = new String(n, UTF8);
+			// if a duplicate exists, first wins, as in ZipFile
+			if (!entries.containsKey(name)) {
+				entries.put(name, new Entry(method, (int) compressed, (int) size, (int) local));
+			}
+			p += CENTRALSIZE + nameLen + extraLen + commentLen;
+		}
+	}
+
+
+
+	/**
+	 * @param name entry name
+	 * @return true if archive contains entry
+	 */
+	public boolean contains(String name) {
+
+		return entries.containsKey(name);
+	}
+
+
+
+	/**
+	 * @return number of entries in archive
+	 */
+	public int size() {
+
+		return entries.size();
+	}
+
+
+
+	/**
+	 * Gets entry contents
+	 * @param name entry name, as in archive
+	 * @return entry contents from position 0 to limit, or null if entry isn't in archive
+	 * @throws IOException if entry is corrupted or compressed with an unsupported method
+	 */
+	public ByteBuffer getEntry(String name) throws IOException {
+
+		Entry e = entries.get(name);
+		if (e == null) {
+			return null;
+		}
+		int p = e.localHeader;
+		if (p+LOCALSIZE > data.limit() || data.getInt(p) != LOCALSIG) {
+			throw new IOException("[MappedZip] Corrupted entry "+name+" in "+file);
+		}
+		// local extra field can differ from central directory one
+		int start = p + LOCALSIZE + (data.getShort(p+26) & 0xffff) + (data.getShort(p+28) & 0xffff);
+		if (start+e.compressed > data.limit()) {
+			throw new IOException("[MappedZip] Truncated entry "+name+" in "+file);
+		}
+		ByteBuffer src = data.duplicate();
+		src.position(start);
+		src.limit(start+e.compressed);
+		if (e.method == STORED) {
+			return src.slice();
+		}
+		if (e.method != DEFLATED) {
+			throw new IOException("[MappedZip] Unsupported compression method "+e.method+" for "+name);
+		}
+		// Inflater works only with arrays
+		byte[] in = acquire(e.compressed);
+		src.get(in, 0, e.compressed);
+		byte[] out = acquire(e.size);
+		Inflater inf = new Inflater(true);
+		try {
+			inf.setInput(in, 0, e.compressed);
+			int n = 0;
+			while (n < e.size && !inf.finished()) {
+				int r = inf.inflate(out, n, e.size-n);
+				if (r == 0 && (inf.needsInput() || inf.needsDictionary())) {
+					break;
+				}
+				n += r;
+			}
+			if (n != e.size) {
+				throw new IOException("[MappedZip] Corrupted entry "+name+" in "+file);
+			}
+		} catch (DataFormatException ex) {
+			throw new IOException("[MappedZip] Corrupted entry "+name+" in "+file, ex);
+		}
+		finally {
+			inf.end();
+			release(in);
+		}
+		return ByteBuffer.wrap(out, 0, e.size).slice();
+	}
+
+
+
+	/**
+	 * Takes a buffer from pool, or allocates a new one
+	 * @param size min buffer size
+	 */
+	static byte[] acquire(int size) {
+
+		synchronized (pool) {
+			for (byte[] b : pool) {
+				if (b.length >= size) {
+					pool.remove(b);
+					return b;
+				}
+			}
+		}
+		if (size > MAXPOOLED) {
+			return new byte[size];
+		}
+		// round up, so buffer can be reused for other entries
+		return new byte[Math.max(4096, Integer.highestOneBit(Math.max(size-1, 1)) << 1)];
+	}
+
+
+
+	/**
+	 * Gives back to pool a buffer returned by {@link #getEntry(String)}.
+	 * Buffer must not be used after release. Releasing isn't mandatory.
+	 * @param b buffer to release
+	 */
+	public static void release(ByteBuffer b) {
+
+		if (b != null && b.hasArray()) {
+			release(b.array());
+		}
+	}
+
+
+
+	private static void release(byte[] a) {
+
+		if (a.length > MAXPOOLED) {
+			return;
+		}
+		synchronized (pool) {
+			if (pool.size() >= POOLSIZE) {
+				return;
+			}
+			for (byte[] p : pool) {
+				if (p == a) {
+					// already released
+					return;
+				}
+			}
+			pool.push(a);
+		}
+	}
+
+}
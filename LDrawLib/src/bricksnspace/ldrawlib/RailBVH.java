@@ -0,0 +1,268 @@
+/*
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDrawLib
+
+	LDrawLib is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDrawLib is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDrawLib.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+
+package bricksnspace.ldrawlib;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import bricksnspace.j3dgeom.Point3D;
+
+
+
+/**
+ * Bounding volume hierarchy over rail connection segments (p1-p2) of a single type
+ * <p>
+ * Segments are added and removed in constant time, tree is rebuilt on first query
+ * after a change, so cursor updates between model changes use the same tree.
+ * Tree is stored in flat arrays, nodes are split at middle of centroids on
+ * longest axis.
+ *
+ * @author Mario Pascucci
+ *
+ */
+public class RailBVH {
+
+	/** max segments in a leaf */
+	private static final int LEAFSIZE = 4;
+
+	private final SwapRemoveList<ConnectionPoint> segments = new SwapRemoveList<ConnectionPoint>();
+	private boolean dirty = false;
+
+	// flat tree, node i has bounds in box[6*i..6*i+5] (min xyz, max xyz)
+	private float[] box = new float[0];
+	// inner node: index of children, leaf: start and count in order[]
+	private int[] first = new int[0];
+	private int[] count = new int[0];		// 0 for inner nodes
+	private int[] right = new int[0];		// right child of inner node, left is i+1
+	private int nodes = 0;
+	private ConnectionPoint[] order = new ConnectionPoint[0];
+	private float[] centroid = new float[0];
+
+
+
+	/**
+	 * Adds a rail segment
+	 */
+	public void insertPoint(ConnectionPoint p) {
+
+		segments.add(p);
+		dirty = true;
+	}
+
+
+
+	/**
+	 * Removes a rail segment
+	 */
+	public void removePoint(ConnectionPoint p) {
+
+		if (segments.remove(p)) {
+			dirty = true;
+		}
+	}
+
+
+
+	public int size() {
+
+		return segments.size();
+	}
+
+
+
+	private void rebuild() {
+
+		int n = segments.size();
+		order = segments.toArray(new ConnectionPoint[n]);
+		centroid = new float[n*3];
+		for (int i=0;i<n;i++) {
+			Point3D p1 = order[i].getP1();
+			Point3D p2 = order[i].getP2();
+			centroid[i*3] = (p1.x+p2.x)/2;
+			centroid[i*3+1] = (p1.y+p2.y)/2;
+			centroid[i*3+2] = (p1.z+p2.z)/2;
+		}
+		int maxNodes = Math.max(1, 2*n);
+		box = new float[maxNodes*6];
+		first = new int[maxNodes];
+		count = new int[maxNodes];
+		right = new int[maxNodes];
+		nodes = 0;
+		if (n > 0) {
+			build(0, n);
+		}
+		centroid = null;
+		dirty = false;
+	}
+
+
+
+	private void swap(int i, int j) {
+
+		ConnectionPoint t = order[i];
+		order[i] = order[j];
+		order[j] = t;
+		for (int k=0;k<3;k++) {
+			float c = centroid[i*3+k];
+			centroid[i*3+k] = centroid[j*3+k];
+			centroid[j*3+k] = c;
+		}
+	}
+
+
+
+	/**
+	 * Builds node for segments from start to end (excluded)
+	 * @return node index
+	 */
+	private int build(int start, int end) {
+
+		int node = nodes++;
+		float[] b = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE,
+				-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+		float[] cb = b.clone();
+		for (int i=start;i<end;i++) {
+			Point3D p1 = order[i].getP1();
+			Point3D p2 = order[i].getP2();
+			b[0] = Math.min(b[0], Math.min(p1.x, p2.x));
+			b[1] = Math.min(b[1], Math.min(p1.y, p2.y));
+			b[2] = Math.min(b[2], Math.min(p1.z, p2.z));
+			b[3] = Math.max(b[3], Math.max(p1.x, p2.x));
+			b[4] = Math.max(b[4], Math.max(p1.y, p2.y));
+			b[5] = Math.max(b[5], Math.max(p1.z, p2.z));
+			for (int k=0;k<3;k++) {
+				cb[k] = Math.min(cb[k], centroid[i*3+k]);
+				cb[k+3] = Math.max(cb[k+3], centroid[i*3+k]);
+			}
+		}
+		System.arraycopy(b, 0, box, node*6, 6);
+		if (end - start <= LEAFSIZE) {
+			first[node] = start;
+			count[node] = end - start;
+			return node;
+		}
+		// split at middle of centroids on longest axis
+		int axis = 0;
+		for (int k=1;k<3;k++) {
+			if (cb[k+3]-cb[k] > cb[axis+3]-cb[axis]) {
+				axis = k;
+			}
+		}
+		float mid = (cb[axis]+cb[axis+3])/2;
+		int i = start;
+		int j = end-1;
+		while (i <= j) {
+			if (centroid[i*3+axis] < mid) {
+				i++;
+			}
+			else {
+				swap(i, j--);
+			}
+		}
+		if (i == start || i == end) {
+			// all centroids on same side, split in half
+			i = (start+end) >>> 1;
+		}
+		count[node] = 0;
+		build(start, i);
+		right[node] = build(i, end);
+		return node;
+	}
+
+
+
+	/**
+	 * Checks if a line crosses node box expanded by a distance (slab test)
+	 */
+	private boolean lineHitsBox(int node, double[] o, double[] d, double dist) {
+
+		double tmin = Double.NEGATIVE_INFINITY;
+		double tmax = Double.POSITIVE_INFINITY;
+		for (int k=0;k<3;k++) {
+			double lo = box[node*6+k] - dist;
+			double hi = box[node*6+k+3] + dist;
+			if (d[k] == 0) {
+				if (o[k] < lo || o[k] > hi) {
+					return false;
+				}
+			}
+			else {
+				double t1 = (lo - o[k]) / d[k];
+				double t2 = (hi - o[k]) / d[k];
+				tmin = Math.max(tmin, Math.min(t1, t2));
+				tmax = Math.min(tmax, Math.max(t1, t2));
+				if (tmin > tmax) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+
+
+	/**
+	 * Selects segments that can be within a distance from line eye-target
+	 * <p>
+	 * Line is unbounded, caller must check actual distance.
+	 * @param eye first point of line
+	 * @param target second point of line
+	 * @param distance max distance of segment from line
+	 * @return candidate segments
+	 */
+	public List<ConnectionPoint> selectByRay(Point3D eye, Point3D target, float distance) {
+
+		if (dirty) {
+			rebuild();
+		}
+		List<ConnectionPoint> pt = new ArrayList<ConnectionPoint>();
+		if (nodes == 0) {
+			return pt;
+		}
+		double[] o = {eye.x, eye.y, eye.z};
+		double[] d = {target.x-eye.x, target.y-eye.y, target.z-eye.z};
+		int[] stack = new int[64];
+		int sp = 0;
+		stack[sp++] = 0;
+		while (sp > 0) {
+			int node = stack[--sp];
+			if (!lineHitsBox(node, o, d, distance)) {
+				continue;
+			}
+			if (count[node] > 0) {
+				for (int i=first[node];i<first[node]+count[node];i++) {
+					pt.add(order[i]);
+				}
+			}
+			else {
+				if (sp+2 > stack.length) {
+					int[] s = new int[stack.length*2];
+					System.arraycopy(stack, 0, s, 0, sp);
+					stack = s;
+				}
+				stack[sp++] = right[node];
+				stack[sp++] = node+1;
+			}
+		}
+		return pt;
+	}
+
+}
@@ -0,0 +1,196 @@
+/*
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDrawLib
+
+	LDrawLib is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDrawLib is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDrawLib.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+
+package bricksnspace.ldrawlib;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import bricksnspace.j3dgeom.Point3D;
+
+
+
+/**
+ * Keeps candidates of recent ray queries, to reuse them while cursor moves a little
+ * <p>
+ * Every entry holds all points of a type nearer than capture distance plus a slack
+ * to a ray. A new query reuses an entry if its ray can't reach, inside occupied space,
+ * a point farther than slack from cached ray: eye shift plus max distance of
+ * occupied space from eye times sine of angle between rays must be less than slack.
+ * So reused candidates are a superset of a new index query, apart from points
+ * nearer to eye than capture distance.
+ * <p>
+ * A few entries are kept for every type, because a dragged part has many connection
+ * points of same type, every one with its own ray. Entries of a type are dropped when
+ * a point of that type is added or removed.
+ *
+ * @author Mario Pascucci
+ *
+ */
+final class RayCandidateCache {
+
+	/** entries kept for every connection type */
+	private static final int ENTRIES = 32;
+	/** extra distance of cached candidates from ray, in LDU */
+	private static final float SLACK = 20;
+	/** safety margin for float rounding, in LDU */
+	private static final double EPS = 0.01;
+
+	private static class Entry {
+
+		double ex, ey, ez;		// eye
+		double dx, dy, dz;		// unit direction
+		float radius;
+		List<ConnectionPoint> points;
+	}
+
+	private static class TypeEntries {
+
+		Entry[] entries = new Entry[ENTRIES];
+		int next = 0;
+	}
+
+	private final ConnHashGrid index;
+	private final Map<Integer,TypeEntries> types = new HashMap<Integer,TypeEntries>();
+	private long hits = 0;
+	private long misses = 0;
+
+
+
+	RayCandidateCache(ConnHashGrid index) {
+
+		this.index = index;
+	}
+
+
+
+	/**
+	 * Drops cached candidates for a connection type
+	 */
+	void invalidate(int connType) {
+
+		types.remove(connType);
+	}
+
+
+
+	void clear() {
+
+		types.clear();
+	}
+
+
+
+	/**
+	 * Selects candidate points of a type near to a ray
+	 * @param connType connection type id
+	 * @param eye ray origin
+	 * @param target a point on ray
+	 * @param radius capture distance from ray in LDU
+	 * @return candidate points, caller must check actual distance from ray
+	 */
+	List<ConnectionPoint> selectByRay(int connType, Point3D eye, Point3D target, float radius) {
+
+		double dx = target.x - eye.x;
+		double dy = target.y - eye.y;
+		double dz = target.z - eye.z;
+		double l = Math.sqrt(dx*dx + dy*dy + dz*dz);
+		if (l == 0) {
+			return index.selectByRay(connType, eye, target);
+		}
+		dx /= l;
+		dy /= l;
+		dz /= l;
+		TypeEntries te = types.get(connType);
+		if (te == null) {
+			te = new TypeEntries();
+			types.put(connType, te);
+		}
+		float maxDist = index.getMaxDistance(eye);
+		for (Entry e : te.entries) {
+			if (e == null || e.radius < radius) {
+				continue;
+			}
+			double cos = e.dx*dx + e.dy*dy + e.dz*dz;
+			if (cos <= 0) {
+				continue;
+			}
+			double cx = e.dy*dz - e.dz*dy;
+			double cy = e.dz*dx - e.dx*dz;
+			double cz = e.dx*dy - e.dy*dx;
+			double sin = Math.sqrt(cx*cx + cy*cy + cz*cz);
+			double sx = eye.x - e.ex;
+			double sy = eye.y - e.ey;
+			double sz = eye.z - e.ez;
+			double shift = Math.sqrt(sx*sx + sy*sy + sz*sz);
+			if (radius + shift + maxDist*sin + EPS <= e.radius) {
+				hits++;
+				return e.points;
+			}
+		}
+		misses++;
+		Entry e = new Entry();
+		e.ex = eye.x;
+		e.ey = eye.y;
+		e.ez = eye.z;
+		e.dx = dx;
+		e.dy = dy;
+		e.dz = dz;
+		e.radius = radius + SLACK;
+		e.points = new ArrayList<ConnectionPoint>();
+		double r2 = (double) e.radius * e.radius;
+		for (ConnectionPoint p : index.selectByRay(connType, eye, target, e.radius)) {
+			// keep only points near to ray, index returns whole cells
+			double px = p.getP1().x - e.ex;
+			double py = p.getP1().y - e.ey;
+			double pz = p.getP1().z - e.ez;
+			double t = px*dx + py*dy + pz*dz;
+			if (px*px + py*py + pz*pz - t*t <= r2) {
+				e.points.add(p);
+			}
+		}
+		te.entries[te.next] = e;
+		te.next = (te.next + 1) % ENTRIES;
+		return e.points;
+	}
+
+
+
+	long getHits() {
+		return hits;
+	}
+
+
+
+	long getMisses() {
+		return misses;
+	}
+
+
+
+	void resetCounters() {
+
+		hits = 0;
+		misses = 0;
+	}
+
+}
@@ -0,0 +1,186 @@
+/*
+	Copyright 2017 Mario Pascucci <mpascucci@gmail.com>
+	This file is part of LDrawLib
+
+	LDrawLib is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	LDrawLib is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with LDrawLib.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+
+package bricksnspace.ldrawlib;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+
+/**
+ * Unordered list with constant time removal of elements
+ * <p>
+ * Removed element is replaced by last element, so order isn't kept.
+ * Element positions are tracked by identity when list grows over a few elements,
+ * small lists are scanned. Elements are compared by identity and must not
+ * be added twice.
+ *
+ * @author Mario Pascucci
+ *
+ */
+final class SwapRemoveList<T> extends AbstractList<T> {
+
+	/** over this size element positions are kept in a map */
+	private static final int INDEXSIZE = 16;
+
+	private Object[] data;
+	private int size = 0;
+	private Map<T,Integer> index = null;
+
+
+
+	SwapRemoveList() {
+
+		data = new Object[4];
+	}
+
+
+
+	SwapRemoveList(int capacity) {
+
+		data = new Object[Math.max(capacity, 1)];
+	}
+
+
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public T get(int i) {
+
+		if (i < 0 || i >= size) {
+			throw new IndexOutOfBoundsException("Index: "+i+", size: "+size);
+		}
+		return (T) data[i];
+	}
+
+
+
+	@Override
+	public int size() {
+
+		return size;
+	}
+
+
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public boolean add(T e) {
+
+		if (size == data.length) {
+			data = Arrays.copyOf(data, size*2);
+		}
+		data[size] = e;
+		if (index != null) {
+			index.put(e, size);
+		}
+		else if (size >= INDEXSIZE) {
+			index = new IdentityHashMap<T,Integer>(size*2);
+			for (int i=0;i<=size;i++) {
+				index.put((T) data[i], i);
+			}
+		}
+		size++;
+		modCount++;
+		return true;
+	}
+
+
+
+	private int position(Object o) {
+
+		if (index != null) {
+			Integer i = index.get(o);
+			return i == null ? -1 : i;
+		}
+		for (int i=0;i<size;i++) {
+			if (data[i] == o) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+
+
+	@Override
+	public boolean contains(Object o) {
+
+		return position(o) >= 0;
+	}
+
+
+
+	@Override
+	public int indexOf(Object o) {
+
+		return position(o);
+	}
+
+
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public T remove(int i) {
+
+		T e = get(i);
+		int last = size-1;
+		if (index != null) {
+			index.remove(e);
+		}
+		if (i != last) {
+			data[i] = data[last];
+			if (index != null) {
+				index.put((T) data[i], i);
+			}
+		}
+		data[last] = null;
+		size = last;
+		modCount++;
+		return e;
+	}
+
+
+
+	@Override
+	public boolean remove(Object o) {
+
+		int i = position(o);
+		if (i < 0) {
+			return false;
+		}
+		remove(i);
+		return true;
+	}
+
+
+
+	@Override
+	public void clear() {
+
+		Arrays.fill(data, 0, size, null);
+		size = 0;
+		index = null;
+		modCount++;
+	}
+
+}